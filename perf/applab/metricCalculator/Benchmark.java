@@ -0,0 +1,126 @@
+package applab.metricCalculator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * A small benchmark runner. Each benchmark is warmed up and then run for a number of timed iterations. The throughput
+ * is reported along with the bytes allocated per operation where the JVM can measure it.
+ *
+ * There is no JMH here as the calculator is built with plain javac and has nowhere to pull JMH from. This runner does
+ * the parts of JMH that matter for comparing two versions of the per row code: warm up, repeated timed iterations, a
+ * sink so the work cannot be optimised away and allocation per operation. It does not fork a JVM per benchmark, so run
+ * a single benchmark on its own when the numbers need to be trusted.
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public abstract class Benchmark {
+
+    // Results are written here so the JIT cannot throw the work away
+    public static volatile Object sink;
+
+    private static final Method allocatedBytesMethod = findAllocatedBytesMethod();
+
+    private String name;
+
+    public Benchmark(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Do one operation
+     */
+    public abstract void run() throws Exception;
+
+    /**
+     * Run the benchmark and print the results
+     *
+     * @param warmupMillis      - How long to warm up for
+     * @param iterations        - How many timed iterations to run
+     * @param iterationMillis   - How long each timed iteration runs for
+     */
+    public void measure(long warmupMillis, int iterations, long iterationMillis) throws Exception {
+
+        runFor(warmupMillis);
+        double[] opsPerSecond = new double[iterations];
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long bytesBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            long ops = runFor(iterationMillis);
+            long elapsed = System.nanoTime() - start;
+            long bytesAfter = getAllocatedBytes();
+            opsPerSecond[i] = ops / (elapsed / 1000000000.0);
+            totalOps += ops;
+            totalBytes += bytesAfter - bytesBefore;
+        }
+        double mean = 0;
+        for (double value : opsPerSecond) {
+            mean += value;
+        }
+        mean /= iterations;
+        double variance = 0;
+        for (double value : opsPerSecond) {
+            variance += (value - mean) * (value - mean);
+        }
+        double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+        String allocation = allocatedBytesMethod == null ? "n/a" : String.format("%.1f", (double)totalBytes / totalOps);
+        System.out.println(String.format("%-70s %14.1f +/- %12.1f ops/s %12s B/op", this.name, mean, error, allocation));
+    }
+
+    private long runFor(long millis) throws Exception {
+
+        long ops = 0;
+        long end = System.nanoTime() + millis * 1000000;
+        while (System.nanoTime() < end) {
+
+            // Check the clock every few operations so timing does not swamp fast benchmarks
+            for (int i = 0; i < 16; i++) {
+                run();
+            }
+            ops += 16;
+        }
+        return ops;
+    }
+
+    /**
+     * Get how many bytes this thread has allocated. Uses com.sun.management.ThreadMXBean where the JVM has it
+     *
+     * @return - The bytes allocated. 0 if the JVM cannot measure it
+     */
+    private static long getAllocatedBytes() {
+
+        if (allocatedBytesMethod == null) {
+            return 0;
+        }
+        try {
+            return (Long)allocatedBytesMethod.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+        }
+        catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private static Method findAllocatedBytesMethod() {
+
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            Class<?> sunBean = Class.forName("com.sun.management.ThreadMXBean");
+            if (!sunBean.isInstance(bean)) {
+                return null;
+            }
+            Method method = sunBean.getMethod("getThreadAllocatedBytes", long.class);
+            method.invoke(bean, Thread.currentThread().getId());
+            return method;
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+}
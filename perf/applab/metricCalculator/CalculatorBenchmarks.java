@@ -0,0 +1,222 @@
+package applab.metricCalculator;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Benchmarks for the per row paths of the calculator. Everything runs in memory: the answers come from a
+ * SyntheticResultSet and the interviewers are put straight into the InterviewerMap, so no DB or Salesforce is needed.
+ *
+ * The cardinalities are taken from the bigger partners: up to 100 districts, 5000 interviewers and lickert questions
+ * with 5 options. A fold operation is one pass over a result set of 10000 answers.
+ *
+ * To compile and run from the project dir
+ *     javac -sourcepath src:perf -d perf-bin perf/applab/metricCalculator/CalculatorBenchmarks.java
+ *     java -cp perf-bin -Dwarmup=2000 -Diterations=5 -Dmillis=1000 applab.metricCalculator.CalculatorBenchmarks [filter]
+ * Only benchmarks with the filter in their name are run if a filter is given.
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class CalculatorBenchmarks {
+
+    private static final int ROWS_PER_FOLD = 10000;
+
+    public static void main(String[] args) throws Exception {
+
+        long warmupMillis = Long.getLong("warmup", 2000);
+        int iterations = Integer.getInteger("iterations", 5);
+        long iterationMillis = Long.getLong("millis", 1000);
+        String filter = args.length > 0 ? args[0] : "";
+
+        InterviewerMap.init();
+        ArrayList<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        addUpdateCalculationBenchmarks(benchmarks);
+        addFoldBenchmarks(benchmarks);
+        addUtilsBenchmarks(benchmarks);
+        addSubDividerBenchmarks(benchmarks);
+
+        System.out.println("Warm up " + warmupMillis + "ms, " + iterations + " iterations of " + iterationMillis + "ms");
+        for (Benchmark benchmark : benchmarks) {
+            if (benchmark.getName().contains(filter)) {
+                benchmark.measure(warmupMillis, iterations, iterationMillis);
+            }
+        }
+    }
+
+    /**
+     * MetricParameter.updateCalculation for each question type
+     */
+    private static void addUpdateCalculationBenchmarks(ArrayList<Benchmark> benchmarks) {
+
+        Random random = new Random(42);
+        for (QuestionType questionType : QuestionType.values()) {
+            final MetricParameter parameter = createParameter(questionType, 0);
+            final String[] answers = new String[1024];
+            for (int i = 0; i < answers.length; i++) {
+                answers[i] = createAnswer(questionType, 0, random);
+            }
+            final MetricCalculation calculation = new MetricCalculation("District_1", "Metric", "Metric");
+            benchmarks.add(new Benchmark("updateCalculation " + questionType) {
+                private int next = 0;
+                public void run() {
+                    next = (next + 1) & 1023;
+                    sink = parameter.updateCalculation(calculation, answers[next], 1.0);
+                }
+            });
+        }
+    }
+
+    /**
+     * The per row work of a metric scan: find the district, build the labels and update the calculation maps
+     */
+    private static void addFoldBenchmarks(ArrayList<Benchmark> benchmarks) {
+
+        int[][] shapes = {
+            // districts, interviewers, lickert
+            { 10, 100, 0 },
+            { 100, 5000, 0 },
+            { 100, 5000, 5 }
+        };
+        for (QuestionType questionType : new QuestionType[] { QuestionType.number, QuestionType.singleSelect }) {
+            for (int[] shape : shapes) {
+                int districts = shape[0];
+                int interviewers = shape[1];
+                int lickert = shape[2];
+                if (lickert > 0 && questionType != QuestionType.singleSelect) {
+                    continue;
+                }
+                final MetricParameter parameter = createParameter(questionType, lickert);
+                final ResultSet answers = createAnswers(questionType, districts, interviewers, lickert);
+                String name = "foldAnswers " + questionType + " districts=" + districts + " interviewers=" + interviewers + " lickert=" + lickert;
+                benchmarks.add(new Benchmark(name) {
+                    public void run() throws Exception {
+                        answers.first();
+                        Dashboard.MetricResult result = new Dashboard.MetricResult(parameter);
+                        Dashboard.foldAnswers(parameter, answers, result);
+                        sink = result;
+                    }
+                });
+            }
+        }
+    }
+
+    private static void addUtilsBenchmarks(ArrayList<Benchmark> benchmarks) {
+
+        final String[] metricNames = new String[16];
+        for (int i = 0; i < metricNames.length; i++) {
+            metricNames[i] = "PARTNER_metric_name_" + i + "_3";
+        }
+        final String[] districts = createDistricts(100);
+        benchmarks.add(new Benchmark("createMetricLabel") {
+            private int next = 0;
+            public void run() {
+                next++;
+                sink = Utils.createMetricLabel(metricNames[next & 15], districts[next % 100]);
+            }
+        });
+
+        for (int size : new int[] { 10, 200 }) {
+            final ArrayList<String> ids = new ArrayList<String>();
+            for (int i = 0; i < size; i++) {
+                ids.add("PERSON" + (100000 + i));
+            }
+            benchmarks.add(new Benchmark("generateCommaSeparatedString size=" + size) {
+                public void run() {
+                    sink = Utils.generateCommaSeparatedString(ids, true);
+                }
+            });
+        }
+    }
+
+    private static void addSubDividerBenchmarks(ArrayList<Benchmark> benchmarks) {
+
+        final String[] ids = registerInterviewers("", 5000, 100);
+        benchmarks.add(new Benchmark("getSubDivider interviewers=5000") {
+            private int next = 0;
+            public void run() {
+                next = (next + 1) % ids.length;
+                sink = InterviewerMap.getSubDivider(ids[next]);
+            }
+        });
+        benchmarks.add(new Benchmark("getSubDivider unknown interviewer") {
+            public void run() {
+                sink = InterviewerMap.getSubDivider("PERSON_UNKNOWN");
+            }
+        });
+    }
+
+    private static MetricParameter createParameter(QuestionType questionType, int lickert) {
+
+        String calculationType = questionType == QuestionType.number ? "sum" : "percentage";
+        String selectOptions = questionType == QuestionType.multiSelect ? "1 2 3" : null;
+        return new MetricParameter("PARTNER_benchmark_" + questionType, 1, "q1", questionType.toString(), calculationType, selectOptions, null, lickert, "N", "N");
+    }
+
+    private static String createAnswer(QuestionType questionType, int lickert, Random random) {
+
+        switch (questionType) {
+            case bool :
+                return random.nextBoolean() ? "1" : "0";
+            case number :
+                return String.valueOf(random.nextInt(1000));
+            case singleSelect :
+                return String.valueOf(1 + random.nextInt(lickert > 0 ? lickert : 4));
+            default :
+                return (1 + random.nextInt(4)) + " " + (5 + random.nextInt(4));
+        }
+    }
+
+    /**
+     * Build the answers for a fold. 1 in 20 answers is from an interviewer who is not in the map, as happens with test
+     * submissions and interviewers who have left
+     */
+    private static ResultSet createAnswers(QuestionType questionType, int districts, int interviewers, int lickert) {
+
+        Random random = new Random(42);
+        String[] ids = registerInterviewers("D" + districts + "I" + interviewers + "_", interviewers, districts);
+        String[][] rows = new String[ROWS_PER_FOLD][];
+        for (int i = 0; i < rows.length; i++) {
+            String interviewerId = random.nextInt(20) == 0 ? "PERSON_UNKNOWN" : ids[random.nextInt(ids.length)];
+            rows[i] = new String[] { interviewerId, createAnswer(questionType, lickert, random) };
+        }
+        return SyntheticResultSet.create(new String[] { "interviewer_id", "answer" }, rows);
+    }
+
+    /**
+     * Put interviewers into the InterviewerMap. 1 in 10 is a CKW whose name has to be switched to the person name
+     *
+     * @param prefix        - Added to the ids so each set of interviewers keeps its own districts
+     * @param interviewers  - How many interviewers to add
+     * @param districtCount - How many districts to share them between
+     *
+     * @return - The ids as they would be in the DB
+     */
+    private static String[] registerInterviewers(String prefix, int interviewers, int districtCount) {
+
+        String[] districts = createDistricts(districtCount);
+        String[] ids = new String[interviewers];
+        for (int i = 0; i < interviewers; i++) {
+            String personId = "PERSON" + prefix + (100000 + i);
+            InterviewerMap.addInterviewer(personId, i % 2 == 0 ? "Male" : "Female", districts[i % districtCount]);
+            if (i % 10 == 0) {
+                String ckwId = "CKW" + prefix + (100000 + i);
+                InterviewerMap.addCkwName(ckwId, personId);
+                ids[i] = ckwId;
+            }
+            else {
+                ids[i] = personId;
+            }
+        }
+        return ids;
+    }
+
+    private static String[] createDistricts(int count) {
+
+        String[] districts = new String[count];
+        for (int i = 0; i < count; i++) {
+            districts[i] = "District_" + i;
+        }
+        return districts;
+    }
+}
@@ -0,0 +1,202 @@
+package applab.metricCalculator;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs the whole calculator against generated data and a stand in for Salesforce and reports how long it took, the peak
+ * heap and how many Salesforce calls were made.
+ *
+ * The data goes into a scratch MySQL database (see LoadTestDataGenerator) and Salesforce is a SalesforceStub on a local
+ * port, so nothing real is touched. A config file is written that points the calculator at both and the calculator is
+ * then run for all dashboards. Setting runs to 2 or more shows how the later runs of a daemon behave once the metric
+ * datas exist.
+ *
+ * System properties used:
+ *     databaseURL            - JDBC URL for the scratch database. Must have loadtest in the database name.
+ *                              Default jdbc:mysql://localhost:3306/metric_loadtest
+ *     databaseUsername       - Default zebra
+ *     databasePassword       - Default zebra
+ *     generate               - Create the data before running. Set to false to run against the data from last time.
+ *                              Default true
+ *     partners               - Default 5
+ *     dashboardsPerPartner   - Default 4
+ *     surveysPerDashboard    - Default 2
+ *     parametersPerDashboard - Default 12
+ *     submissionsPerSurvey   - Default 5000
+ *     interviewers           - Default 2000
+ *     districts              - How many districts Salesforce puts the interviewers in. Default 50
+ *     latencyMillis          - How long each Salesforce call takes. Default 50
+ *     pageSize               - How many records each Salesforce query returns at once. Default 2000
+ *     failureRate            - The chance of a Salesforce call failing. Default 0
+ *     upsertErrorRate        - The chance of each upserted record failing. Default 0
+ *     runs                   - How many times to run the calculator. Default 1
+ *     seed                   - Seed for the data and the failures. Default 42
+ * Any other property that starts with config. is passed to the calculator as a config item e.g. -Dconfig.metricThreads=8
+ *
+ * To compile and run from the project dir
+ *     javac -cp "lib/*" -sourcepath src:perf -d perf-bin perf/applab/metricCalculator/LoadTest.java
+ *     java -cp "perf-bin:lib/*" -Xmx1g -DsubmissionsPerSurvey=20000 applab.metricCalculator.LoadTest
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class LoadTest {
+
+    // Kept out of the working directory so a load test never leaves datas behind for a real run to replay or report
+    private static final File OUTBOX_FILE = new File(System.getProperty("java.io.tmpdir"), "loadtest-metric-outbox.journal");
+    private static final File DEAD_LETTER_FILE = new File(System.getProperty("java.io.tmpdir"), "loadtest-metric-dead-letters.csv");
+
+    public static void main(String[] args) throws Exception {
+
+        String url = System.getProperty("databaseURL", "jdbc:mysql://localhost:3306/metric_loadtest");
+        String username = System.getProperty("databaseUsername", "zebra");
+        String password = System.getProperty("databasePassword", "zebra");
+        long seed = Long.getLong("seed", 42);
+        LoadTestDataGenerator.checkScratchUrl(url);
+
+        LoadTestDataGenerator generator = new LoadTestDataGenerator(
+                Integer.getInteger("partners", 5),
+                Integer.getInteger("dashboardsPerPartner", 4),
+                Integer.getInteger("surveysPerDashboard", 2),
+                Integer.getInteger("parametersPerDashboard", 12),
+                Integer.getInteger("submissionsPerSurvey", 5000),
+                Integer.getInteger("interviewers", 2000),
+                seed
+        );
+        if (!"false".equalsIgnoreCase(System.getProperty("generate"))) {
+            generator.generate(url, username, password);
+        }
+
+        SalesforceStub stub = new SalesforceStub(
+                Long.getLong("latencyMillis", 50),
+                Integer.getInteger("pageSize", 2000),
+                Double.valueOf(System.getProperty("failureRate", "0")),
+                Double.valueOf(System.getProperty("upsertErrorRate", "0")),
+                Integer.getInteger("districts", 50),
+                generator.getInterviewerIds(),
+                seed
+        );
+        String salesforceAddress = stub.start();
+        File configFile = writeConfig(url, username, password, salesforceAddress);
+        System.setProperty("configFile", configFile.getPath());
+        try {
+            int runs = Integer.getInteger("runs", 1);
+            MetricCalculator calculator = new MetricCalculator(new String[] { "all", "force" });
+            for (int run = 1; run <= runs; run++) {
+                if (run > 1) {
+                    calculator.prepareNextRun();
+                }
+                Map<String, Long> countsBefore = stub.getCounts();
+                resetPeakHeap();
+                long start = System.currentTimeMillis();
+                calculator.calculate();
+                long wallMillis = System.currentTimeMillis() - start;
+                Log.flush();
+                printReport(run, wallMillis, countsBefore, stub);
+            }
+        }
+        finally {
+            Log.flush();
+            stub.stop();
+            DatabaseHelpers.closeConnection();
+            configFile.delete();
+            OUTBOX_FILE.delete();
+            new File(OUTBOX_FILE.getPath() + ".lock").delete();
+            DEAD_LETTER_FILE.delete();
+        }
+    }
+
+    /**
+     * Write a config file that points the calculator at the scratch database and the stub
+     *
+     * @return - The file
+     */
+    private static File writeConfig(String url, String username, String password, String salesforceAddress) throws IOException {
+
+        TreeMap<String, String> items = new TreeMap<String, String>();
+        items.put("databaseURL", url);
+        items.put("databaseUsername", username);
+        items.put("databasePassword", password);
+        items.put("salesforceAddress", salesforceAddress);
+        items.put("salesforceUsername", "loadtest");
+        items.put("salesforcePassword", "loadtest");
+        items.put("salesforceToken", "");
+        items.put("outboxFile", OUTBOX_FILE.getPath());
+        items.put("deadLetterFile", DEAD_LETTER_FILE.getPath());
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("config.")) {
+                items.put(name.substring("config.".length()), System.getProperty(name));
+            }
+        }
+
+        File configFile = File.createTempFile("loadtest-configuration", ".xml");
+        FileWriter writer = new FileWriter(configFile);
+        try {
+            writer.write("<?xml version=\"1.0\"?>\n<configuration>\n");
+            for (Map.Entry<String, String> item : items.entrySet()) {
+                writer.write("    <configItem>\n");
+                writer.write("        <configName>" + escape(item.getKey()) + "</configName>\n");
+                writer.write("        <configValue>" + escape(item.getValue()) + "</configValue>\n");
+                writer.write("    </configItem>\n");
+            }
+            writer.write("</configuration>\n");
+        }
+        finally {
+            writer.close();
+        }
+        return configFile;
+    }
+
+    private static void resetPeakHeap() {
+
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Get the peak heap use since the last reset. This is the sum of the peak of each heap pool so can be a little
+     * higher than the heap ever really was
+     *
+     * @return - The peak in bytes
+     */
+    private static long getPeakHeap() {
+
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static void printReport(int run, long wallMillis, Map<String, Long> countsBefore, SalesforceStub stub) {
+
+        System.out.println();
+        System.out.println("Load test run " + run);
+        System.out.println(String.format("    %-20s %12d ms", "wall time", wallMillis));
+        System.out.println(String.format("    %-20s %12.1f MB", "peak heap", getPeakHeap() / (1024.0 * 1024.0)));
+        ArrayList<String> names = new ArrayList<String>(stub.getCounts().keySet());
+        for (String name : names) {
+            Long before = countsBefore.get(name);
+            long count = stub.getCounts().get(name) - (before == null ? 0 : before);
+            System.out.println(String.format("    %-20s %12d", name, count));
+        }
+        System.out.println(String.format("    %-20s %12d", "metric datas held", stub.getStoredDataCount()));
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
@@ -0,0 +1,439 @@
+package applab.metricCalculator;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Random;
+
+/**
+ * Fills a scratch MySQL database with made up partners, dashboards, surveys, metric parameters, submissions and answers
+ * so a full calculator run can be timed without touching the real data.
+ *
+ * Each dashboard has its own surveys. Every survey asks the same four questions: a number, a yes/no, a lickert scale
+ * of 5 and a multi select with 5 options. The metric parameters of a dashboard cycle through the calculations that
+ * can be done on those questions. The submissions are spread across the current quarter and between the interviewers.
+ * 1 in 10 interviewers is a CKW and 1 in 50 submissions comes from a test handset that is not in Salesforce.
+ *
+ * The tables are dropped and created again each time so the generator refuses to run against a database that does
+ * not have loadtest in its name.
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class LoadTestDataGenerator {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String[] QUESTIONS = { "q_number", "q_bool", "q_lickert", "q_multi" };
+
+    // The metrics that are cycled through for each dashboard: binding, question type, calculation type, select options,
+    // lickert, only answered surveys
+    private static final String[][] PARAMETER_TEMPLATES = {
+        { "q_number", "number", "sum", null, "0", "N" },
+        { "q_number", "number", "average", null, "0", "Y" },
+        { "q_bool", "bool", "percentage", null, "0", "N" },
+        { "q_lickert", "singleSelect", "percentage", null, "5", "N" },
+        { "q_lickert", "singleSelect", "count", "3", "0", "Y" },
+        { "q_multi", "multiSelect", "count", "1 3", "0", "N" }
+    };
+
+    private int partners;
+    private int dashboardsPerPartner;
+    private int surveysPerDashboard;
+    private int parametersPerDashboard;
+    private int submissionsPerSurvey;
+    private int interviewers;
+    private Random random;
+
+    private ArrayList<String> interviewerIds;
+
+    /**
+     * @param partners               - How many partners to create
+     * @param dashboardsPerPartner   - How many dashboards each partner has
+     * @param surveysPerDashboard    - How many surveys each dashboard shows
+     * @param parametersPerDashboard - How many metric parameters each dashboard has
+     * @param submissionsPerSurvey   - How many submissions each survey has this quarter
+     * @param interviewers           - How many interviewers share the submissions
+     * @param seed                   - Seed for the random data so runs can be repeated
+     */
+    public LoadTestDataGenerator(
+            int partners,
+            int dashboardsPerPartner,
+            int surveysPerDashboard,
+            int parametersPerDashboard,
+            int submissionsPerSurvey,
+            int interviewers,
+            long seed
+    ) {
+        this.partners = partners;
+        this.dashboardsPerPartner = dashboardsPerPartner;
+        this.surveysPerDashboard = surveysPerDashboard;
+        this.parametersPerDashboard = parametersPerDashboard;
+        this.submissionsPerSurvey = submissionsPerSurvey;
+        this.interviewers = interviewers;
+        this.random = new Random(seed);
+        this.interviewerIds = new ArrayList<String>();
+        for (int i = 0; i < interviewers; i++) {
+            this.interviewerIds.add(String.format(i % 10 == 0 ? "CKW%06d" : "PERSON%06d", i));
+        }
+    }
+
+    /**
+     * Get the ids the interviewers are given in the submissions. These are the Person__c and CKW__c names the
+     * Salesforce stub has to know about
+     *
+     * @return - The ids
+     */
+    public ArrayList<String> getInterviewerIds() {
+        return this.interviewerIds;
+    }
+
+    /**
+     * Check that a JDBC URL points at a scratch database
+     *
+     * @param url - The JDBC URL
+     *
+     * @throws IllegalArgumentException - If the database name does not contain loadtest
+     */
+    public static void checkScratchUrl(String url) {
+
+        String databaseName = url;
+        if (databaseName.indexOf('?') > -1) {
+            databaseName = databaseName.substring(0, databaseName.indexOf('?'));
+        }
+        databaseName = databaseName.substring(databaseName.lastIndexOf('/') + 1);
+        if (!databaseName.toLowerCase().contains("loadtest")) {
+            throw new IllegalArgumentException("Refusing to generate data in " + databaseName + ". The load test database must have loadtest in its name");
+        }
+    }
+
+    /**
+     * Drop and create the tables and fill them
+     *
+     * @param url      - JDBC URL for the scratch database
+     * @param username - The username for the database
+     * @param password - The password for the database
+     */
+    public void generate(String url, String username, String password) throws ClassNotFoundException, SQLException, ParseException {
+
+        checkScratchUrl(url);
+        Class.forName(DatabaseHelpers.JDBC_DRIVER);
+        Connection connection = DriverManager.getConnection(url, username, password);
+        try {
+            createTables(connection);
+            connection.setAutoCommit(false);
+            long start = System.currentTimeMillis();
+            long submissions = insertDashboards(connection);
+            connection.commit();
+            System.out.println("Generated " + submissions + " submissions in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+    private void createTables(Connection connection) throws SQLException {
+
+        Statement statement = connection.createStatement();
+        String[] tables = {
+            DatabaseHelpers.PARTNER_TABLE,
+            DatabaseHelpers.DASHBOARD_TABLE,
+            DatabaseHelpers.SURVEY_TABLE,
+            DatabaseHelpers.DASHBOARD_SURVEY_TABLE,
+            DatabaseHelpers.METRIC_PARAMETER_TABLE,
+            DatabaseHelpers.SUBMISSION_TABLE,
+            DatabaseHelpers.SUBMISSION_ANSWERS_TABLE
+        };
+        for (String table : tables) {
+            statement.executeUpdate("DROP TABLE IF EXISTS " + table);
+        }
+
+        // The calculator's own tables would describe the old data so they go too
+        String[] derivedTables = {
+            DatabaseHelpers.DASHBOARD_FINGERPRINT_TABLE,
+            DatabaseHelpers.INTERVIEWER_DIM_TABLE,
+            DatabaseHelpers.INTERVIEWER_DIM_SYNC_TABLE,
+            DatabaseHelpers.ANSWER_ROLLUP_TABLE,
+            DatabaseHelpers.ANSWER_ROLLUP_STATE_TABLE,
+            DatabaseHelpers.ANSWER_OPTION_TABLE,
+            DatabaseHelpers.ANSWER_OPTION_STATE_TABLE
+        };
+        for (String table : derivedTables) {
+            statement.executeUpdate("DROP TABLE IF EXISTS " + table);
+        }
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("CREATE TABLE ");
+        commandText.append(DatabaseHelpers.PARTNER_TABLE);
+        commandText.append(" (");
+        commandText.append("id INT NOT NULL, ");
+        commandText.append("name VARCHAR(128) NOT NULL, ");
+        commandText.append("short_code VARCHAR(16) NOT NULL, ");
+        commandText.append("active CHAR(1) NOT NULL, ");
+        commandText.append("PRIMARY KEY (id)");
+        commandText.append(") ENGINE=InnoDB");
+        statement.executeUpdate(commandText.toString());
+
+        commandText = new StringBuilder();
+        commandText.append("CREATE TABLE ");
+        commandText.append(DatabaseHelpers.DASHBOARD_TABLE);
+        commandText.append(" (");
+        commandText.append("id INT NOT NULL, ");
+        commandText.append("name VARCHAR(128) NOT NULL, ");
+        commandText.append("partner_id INT NOT NULL, ");
+        commandText.append("active CHAR(1) NOT NULL, ");
+        commandText.append("include_survey_count CHAR(1) NOT NULL, ");
+        commandText.append("include_interviewer_gender CHAR(1) NOT NULL, ");
+        commandText.append("PRIMARY KEY (id)");
+        commandText.append(") ENGINE=InnoDB");
+        statement.executeUpdate(commandText.toString());
+
+        commandText = new StringBuilder();
+        commandText.append("CREATE TABLE ");
+        commandText.append(DatabaseHelpers.SURVEY_TABLE);
+        commandText.append(" (");
+        commandText.append("id INT NOT NULL, ");
+        commandText.append("survey_id VARCHAR(32) NOT NULL, ");
+        commandText.append("survey_name VARCHAR(128) NOT NULL, ");
+        commandText.append("PRIMARY KEY (id)");
+        commandText.append(") ENGINE=InnoDB");
+        statement.executeUpdate(commandText.toString());
+
+        commandText = new StringBuilder();
+        commandText.append("CREATE TABLE ");
+        commandText.append(DatabaseHelpers.DASHBOARD_SURVEY_TABLE);
+        commandText.append(" (");
+        commandText.append("dashboard_id INT NOT NULL, ");
+        commandText.append("survey_id INT NOT NULL, ");
+        commandText.append("PRIMARY KEY (dashboard_id, survey_id)");
+        commandText.append(") ENGINE=InnoDB");
+        statement.executeUpdate(commandText.toString());
+
+        commandText = new StringBuilder();
+        commandText.append("CREATE TABLE ");
+        commandText.append(DatabaseHelpers.METRIC_PARAMETER_TABLE);
+        commandText.append(" (");
+        commandText.append("id INT NOT NULL, ");
+        commandText.append("name VARCHAR(128) NOT NULL, ");
+        commandText.append("dashboard_id INT NOT NULL, ");
+        commandText.append("survey_id INT NOT NULL, ");
+        commandText.append("binding VARCHAR(128) NOT NULL, ");
+        commandText.append("question_type VARCHAR(32) NOT NULL, ");
+        commandText.append("calculation_type VARCHAR(32) NOT NULL, ");
+        commandText.append("select_options VARCHAR(255) NULL, ");
+        commandText.append("group_by_field VARCHAR(128) NULL, ");
+        commandText.append("lickert INT NOT NULL, ");
+        commandText.append("only_answered_surveys CHAR(1) NOT NULL, ");
+        commandText.append("is_repeat CHAR(1) NOT NULL, ");
+        commandText.append("active CHAR(1) NOT NULL, ");
+        commandText.append("PRIMARY KEY (id), ");
+        commandText.append("KEY idx_dashboard (dashboard_id)");
+        commandText.append(") ENGINE=InnoDB");
+        statement.executeUpdate(commandText.toString());
+
+        commandText = new StringBuilder();
+        commandText.append("CREATE TABLE ");
+        commandText.append(DatabaseHelpers.SUBMISSION_TABLE);
+        commandText.append(" (");
+        commandText.append("id BIGINT NOT NULL, ");
+        commandText.append("survey_id INT NOT NULL, ");
+        commandText.append("interviewer_id VARCHAR(64) NOT NULL, ");
+        commandText.append("handset_submit_time DATETIME NOT NULL, ");
+        commandText.append("PRIMARY KEY (id), ");
+        commandText.append("KEY idx_survey_time (survey_id, handset_submit_time)");
+        commandText.append(") ENGINE=InnoDB");
+        statement.executeUpdate(commandText.toString());
+
+        commandText = new StringBuilder();
+        commandText.append("CREATE TABLE ");
+        commandText.append(DatabaseHelpers.SUBMISSION_ANSWERS_TABLE);
+        commandText.append(" (");
+        commandText.append("id BIGINT NOT NULL, ");
+        commandText.append("submission_id BIGINT NOT NULL, ");
+        commandText.append("question_name VARCHAR(128) NOT NULL, ");
+        commandText.append("answer TEXT NULL, ");
+        commandText.append("position INT NOT NULL, ");
+        commandText.append("PRIMARY KEY (id), ");
+        commandText.append("KEY idx_submission_question (submission_id, question_name)");
+        commandText.append(") ENGINE=InnoDB");
+        statement.executeUpdate(commandText.toString());
+        statement.close();
+    }
+
+    /**
+     * Insert the partners, dashboards, surveys and metric parameters along with the submissions for each survey
+     *
+     * @return - How many submissions were created
+     */
+    private long insertDashboards(Connection connection) throws SQLException, ParseException {
+
+        PreparedStatement partnerStatement = connection.prepareStatement("INSERT INTO " + DatabaseHelpers.PARTNER_TABLE + " (id, name, short_code, active) VALUES (?, ?, ?, 'Y')");
+        PreparedStatement dashboardStatement = connection.prepareStatement("INSERT INTO " + DatabaseHelpers.DASHBOARD_TABLE + " (id, name, partner_id, active, include_survey_count, include_interviewer_gender) VALUES (?, ?, ?, 'Y', 'Y', ?)");
+        PreparedStatement surveyStatement = connection.prepareStatement("INSERT INTO " + DatabaseHelpers.SURVEY_TABLE + " (id, survey_id, survey_name) VALUES (?, ?, ?)");
+        PreparedStatement dashboardSurveyStatement = connection.prepareStatement("INSERT INTO " + DatabaseHelpers.DASHBOARD_SURVEY_TABLE + " (dashboard_id, survey_id) VALUES (?, ?)");
+        PreparedStatement parameterStatement = connection.prepareStatement("INSERT INTO " + DatabaseHelpers.METRIC_PARAMETER_TABLE + " (id, name, dashboard_id, survey_id, binding, question_type, calculation_type, select_options, group_by_field, lickert, only_answered_surveys, is_repeat, active) VALUES (?, ?, ?, ?, ?, ?, ?, ?, NULL, ?, ?, 'N', 'Y')");
+        SubmissionWriter submissionWriter = new SubmissionWriter(connection);
+
+        int dashboardId = 0;
+        int surveyId = 0;
+        int parameterId = 0;
+        for (int partnerId = 1; partnerId <= this.partners; partnerId++) {
+            String shortCode = "P" + partnerId;
+            partnerStatement.setInt(1, partnerId);
+            partnerStatement.setString(2, "Load Test Partner " + partnerId);
+            partnerStatement.setString(3, shortCode);
+            partnerStatement.executeUpdate();
+            for (int i = 0; i < this.dashboardsPerPartner; i++) {
+                dashboardId++;
+                dashboardStatement.setInt(1, dashboardId);
+                dashboardStatement.setString(2, "Load Test Dashboard " + dashboardId);
+                dashboardStatement.setInt(3, partnerId);
+                dashboardStatement.setString(4, dashboardId % 2 == 0 ? "Y" : "N");
+                dashboardStatement.executeUpdate();
+                int firstSurveyId = surveyId + 1;
+                for (int j = 0; j < this.surveysPerDashboard; j++) {
+                    surveyId++;
+                    surveyStatement.setInt(1, surveyId);
+                    surveyStatement.setString(2, String.format("LT%06d", surveyId));
+                    surveyStatement.setString(3, "Load Test Survey " + surveyId);
+                    surveyStatement.executeUpdate();
+                    dashboardSurveyStatement.setInt(1, dashboardId);
+                    dashboardSurveyStatement.setInt(2, surveyId);
+                    dashboardSurveyStatement.executeUpdate();
+                    submissionWriter.addSurvey(surveyId);
+                }
+                for (int j = 0; j < this.parametersPerDashboard; j++) {
+                    parameterId++;
+                    String[] template = PARAMETER_TEMPLATES[j % PARAMETER_TEMPLATES.length];
+                    parameterStatement.setInt(1, parameterId);
+                    parameterStatement.setString(2, shortCode + "_d" + dashboardId + "_m" + j);
+                    parameterStatement.setInt(3, dashboardId);
+                    parameterStatement.setInt(4, firstSurveyId + j % this.surveysPerDashboard);
+                    parameterStatement.setString(5, template[0]);
+                    parameterStatement.setString(6, template[1]);
+                    parameterStatement.setString(7, template[2]);
+                    parameterStatement.setString(8, template[3]);
+                    parameterStatement.setInt(9, Integer.valueOf(template[4]));
+                    parameterStatement.setString(10, template[5]);
+                    parameterStatement.executeUpdate();
+                }
+                connection.commit();
+            }
+        }
+        partnerStatement.close();
+        dashboardStatement.close();
+        surveyStatement.close();
+        dashboardSurveyStatement.close();
+        parameterStatement.close();
+        submissionWriter.close();
+        return submissionWriter.getSubmissionCount();
+    }
+
+    private String createAnswer(String question) {
+
+        if (question.equals("q_number")) {
+
+            // A few handsets send rubbish for number questions
+            return this.random.nextInt(200) == 0 ? "n/a" : String.valueOf(this.random.nextInt(100));
+        }
+        if (question.equals("q_bool")) {
+            return this.random.nextBoolean() ? "1" : "0";
+        }
+        if (question.equals("q_lickert")) {
+            return String.valueOf(1 + this.random.nextInt(5));
+        }
+        StringBuilder answer = new StringBuilder();
+        for (int option = 1; option <= 5; option++) {
+            if (this.random.nextInt(3) == 0) {
+                if (answer.length() > 0) {
+                    answer.append(" ");
+                }
+                answer.append(option);
+            }
+        }
+        return answer.length() == 0 ? null : answer.toString();
+    }
+
+    /**
+     * Writes the submissions and answers in batches
+     */
+    private class SubmissionWriter {
+
+        private Connection connection;
+        private PreparedStatement submissionStatement;
+        private PreparedStatement answerStatement;
+        private long quarterStart;
+        private long now;
+        private long submissionId;
+        private long answerId;
+        private int pending;
+
+        public SubmissionWriter(Connection connection) throws SQLException, ParseException {
+            this.connection = connection;
+            this.submissionStatement = connection.prepareStatement("INSERT INTO " + DatabaseHelpers.SUBMISSION_TABLE + " (id, survey_id, interviewer_id, handset_submit_time) VALUES (?, ?, ?, ?)");
+            this.answerStatement = connection.prepareStatement("INSERT INTO " + DatabaseHelpers.SUBMISSION_ANSWERS_TABLE + " (id, submission_id, question_name, answer, position) VALUES (?, ?, ?, ?, ?)");
+            this.quarterStart = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(Utils.getQuarterDate(Calendar.getInstance(), true, false, false)).getTime();
+            this.now = System.currentTimeMillis();
+            this.submissionId = 0;
+            this.answerId = 0;
+            this.pending = 0;
+        }
+
+        public long getSubmissionCount() {
+            return this.submissionId;
+        }
+
+        public void addSurvey(int surveyId) throws SQLException {
+
+            for (int i = 0; i < submissionsPerSurvey; i++) {
+                this.submissionId++;
+                String interviewerId = random.nextInt(50) == 0 ? "TEST_HANDSET" : interviewerIds.get(random.nextInt(interviewers));
+                long submitTime = this.quarterStart + (long)(random.nextDouble() * (this.now - this.quarterStart));
+                this.submissionStatement.setLong(1, this.submissionId);
+                this.submissionStatement.setInt(2, surveyId);
+                this.submissionStatement.setString(3, interviewerId);
+                this.submissionStatement.setTimestamp(4, new Timestamp(submitTime));
+                this.submissionStatement.addBatch();
+                for (String question : QUESTIONS) {
+
+                    // Not every question gets answered
+                    if (random.nextInt(20) == 0) {
+                        continue;
+                    }
+                    this.answerId++;
+                    this.answerStatement.setLong(1, this.answerId);
+                    this.answerStatement.setLong(2, this.submissionId);
+                    this.answerStatement.setString(3, question);
+                    this.answerStatement.setString(4, createAnswer(question));
+                    this.answerStatement.setInt(5, 0);
+                    this.answerStatement.addBatch();
+                }
+                this.pending++;
+                if (this.pending >= BATCH_SIZE) {
+                    flush();
+                }
+            }
+        }
+
+        public void close() throws SQLException {
+
+            flush();
+            this.submissionStatement.close();
+            this.answerStatement.close();
+        }
+
+        private void flush() throws SQLException {
+
+            this.submissionStatement.executeBatch();
+            this.answerStatement.executeBatch();
+            this.connection.commit();
+            this.pending = 0;
+        }
+    }
+}
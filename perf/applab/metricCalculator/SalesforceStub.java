@@ -0,0 +1,620 @@
+package applab.metricCalculator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand in for the Salesforce SOAP API that answers the calls SalesforceProxy makes: login, query, queryMore, upsert
+ * and delete. Runs on a local port so a load test can point salesforceAddress at it.
+ *
+ * Only the SOQL the calculator sends is understood:
+ *     Person__c and CKW__c by Name IN (...) or by LastModifiedDate, which returns the whole roster
+ *     District__c by LastModifiedDate
+ *     M_E_Metric__c by Name IN (...). Every metric asked for exists
+ *     M_E_Metric_Data__c by M_E_Metric__r.Name IN (...). Returns the datas upserted so far for those metrics
+ * Each interviewer is put in a district and given a gender worked out from their name so the answers are the same every
+ * time. A metric is lickert if its name with the last _n taken off was asked for in the same query, as the calculator
+ * asks for both.
+ *
+ * Every call waits latencyMillis before it is answered. A call fails with a SOAP fault with a chance of failureRate and
+ * each record in an upsert fails with a chance of upsertErrorRate. Half of those record failures are UNABLE_TO_LOCK_ROW,
+ * which would work if sent again, and half are FIELD_CUSTOM_VALIDATION_EXCEPTION, which never will.
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class SalesforceStub implements HttpHandler {
+
+    private static final String PATH = "/services/Soap/c/18.0";
+    private static final String ENVELOPE_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+    private static final String ENTERPRISE_NS = "urn:enterprise.soap.sforce.com";
+    private static final String SOBJECT_NS = "urn:sobject.enterprise.soap.sforce.com";
+    private static final String XSI_NS = "http://www.w3.org/2001/XMLSchema-instance";
+
+    private static final Pattern FROM_PATTERN = Pattern.compile("FROM\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern NAME_IN_PATTERN = Pattern.compile("Name IN \\(([^)]*)\\)", Pattern.CASE_INSENSITIVE);
+
+    private long latencyMillis;
+    private int pageSize;
+    private double failureRate;
+    private double upsertErrorRate;
+    private int districtCount;
+    private ArrayList<String> roster;
+    private Random random;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private ConcurrentHashMap<String, AtomicLong> counts;
+
+    // Everything below is guarded by this
+    private long nextId;
+    private HashMap<String, String> metricIds;
+    private HashMap<String, String> metricNames;
+    private HashSet<String> lickertMetrics;
+    private HashMap<String, StoredData> datas;
+    private HashMap<String, List<String>> queryLocators;
+
+    /**
+     * @param latencyMillis   - How long each call waits before it is answered
+     * @param pageSize        - How many records a query or queryMore returns at once
+     * @param failureRate     - The chance of a call failing with a SOAP fault. Login never fails
+     * @param upsertErrorRate - The chance of each record in an upsert failing
+     * @param districtCount   - How many districts the interviewers are spread across
+     * @param roster          - The interviewer ids returned by the LastModifiedDate queries
+     * @param seed            - Seed for the failures so runs can be repeated
+     */
+    public SalesforceStub(
+            long latencyMillis,
+            int pageSize,
+            double failureRate,
+            double upsertErrorRate,
+            int districtCount,
+            ArrayList<String> roster,
+            long seed
+    ) {
+        this.latencyMillis = latencyMillis;
+        this.pageSize = pageSize;
+        this.failureRate = failureRate;
+        this.upsertErrorRate = upsertErrorRate;
+        this.districtCount = districtCount;
+        this.roster = roster;
+        this.random = new Random(seed);
+        this.counts = new ConcurrentHashMap<String, AtomicLong>();
+        this.nextId = 1;
+        this.metricIds = new HashMap<String, String>();
+        this.metricNames = new HashMap<String, String>();
+        this.lickertMetrics = new HashSet<String>();
+        this.datas = new HashMap<String, StoredData>();
+        this.queryLocators = new HashMap<String, List<String>>();
+    }
+
+    /**
+     * Start listening on a free port on localhost
+     *
+     * @return - The address to use for salesforceAddress
+     */
+    public String start() throws IOException {
+
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext(PATH, this);
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.executor);
+        this.server.start();
+        return getAddress();
+    }
+
+    public void stop() {
+
+        if (this.server != null) {
+            this.server.stop(0);
+            this.executor.shutdownNow();
+            this.server = null;
+        }
+    }
+
+    public String getAddress() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * Get how many of each call have been made along with the records upserted and the failures injected
+     *
+     * @return - The counts keyed by name
+     */
+    public Map<String, Long> getCounts() {
+
+        TreeMap<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : this.counts.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        return values;
+    }
+
+    public synchronized int getStoredDataCount() {
+        return this.datas.size();
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+
+        String response;
+        int status = 200;
+        try {
+            Document request = parse(exchange.getRequestBody());
+            Element call = getCall(request);
+            String operation = call.getLocalName();
+            count(operation, 1);
+            if (this.latencyMillis > 0) {
+                Thread.sleep(this.latencyMillis);
+            }
+            if (!operation.equals("login") && nextDouble() < this.failureRate) {
+                count("injectedFaults", 1);
+                throw new StubFault("UNKNOWN_EXCEPTION", "Injected failure");
+            }
+            if (operation.equals("login")) {
+                response = login();
+            }
+            else if (operation.equals("query")) {
+                response = query(getChildText(call, "queryString"));
+            }
+            else if (operation.equals("queryMore")) {
+                response = queryMore(getChildText(call, "queryLocator"));
+            }
+            else if (operation.equals("upsert")) {
+                response = upsert(call);
+            }
+            else if (operation.equals("delete")) {
+                response = delete(call);
+            }
+            else {
+                throw new StubFault("UNSUPPORTED_API_VERSION", "The stub does not support " + operation);
+            }
+        }
+        catch (StubFault fault) {
+            status = 500;
+            response = createFault(fault.code, fault.getMessage());
+        }
+        catch (Exception e) {
+            status = 500;
+            response = createFault("UNKNOWN_EXCEPTION", e.toString());
+        }
+        byte[] body = response.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(body);
+        output.close();
+    }
+
+    private String login() {
+
+        StringBuilder result = new StringBuilder();
+        result.append("<loginResponse><result>");
+        result.append("<metadataServerUrl>" + getAddress() + "</metadataServerUrl>");
+        result.append("<passwordExpired>false</passwordExpired>");
+        result.append("<sandbox>true</sandbox>");
+        result.append("<serverUrl>" + getAddress() + "</serverUrl>");
+        result.append("<sessionId>LOADTEST" + System.nanoTime() + "</sessionId>");
+        result.append("<userId>005000000000001</userId>");
+        result.append("</result></loginResponse>");
+        return wrap(result.toString());
+    }
+
+    private String query(String soql) throws StubFault {
+
+        Matcher from = FROM_PATTERN.matcher(soql);
+        if (!from.find()) {
+            throw new StubFault("MALFORMED_QUERY", "No FROM in " + soql);
+        }
+        String objectName = from.group(1);
+        ArrayList<String> names = getNames(soql);
+        ArrayList<String> records = new ArrayList<String>();
+        if (objectName.equals("Person__c")) {
+            for (String name : names == null ? getRoster("PERSON") : names) {
+                records.add(createPerson(name, "records"));
+            }
+        }
+        else if (objectName.equals("CKW__c")) {
+            for (String name : names == null ? getRoster("CKW") : names) {
+                records.add(createCkw(name));
+            }
+        }
+        else if (objectName.equals("District__c")) {
+            for (int i = 0; i < this.districtCount; i++) {
+                records.add(createDistrict(i, "records"));
+            }
+        }
+        else if (objectName.equals("M_E_Metric__c") && names != null) {
+            records.addAll(getMetrics(names));
+        }
+        else if (objectName.equals("M_E_Metric_Data__c") && names != null) {
+            records.addAll(getDatas(names));
+        }
+        else {
+            throw new StubFault("INVALID_TYPE", "The stub cannot answer " + soql);
+        }
+        return createQueryResponse("queryResponse", records, records.size());
+    }
+
+    private String queryMore(String locator) throws StubFault {
+
+        List<String> records;
+        synchronized (this) {
+            records = this.queryLocators.remove(locator);
+        }
+        if (records == null) {
+            throw new StubFault("INVALID_QUERY_LOCATOR", "Unknown query locator " + locator);
+        }
+        return createQueryResponse("queryMoreResponse", records, records.size());
+    }
+
+    /**
+     * Build a query response with the first page of the records. The rest are kept for queryMore
+     */
+    private String createQueryResponse(String responseName, List<String> records, int size) {
+
+        String locator = null;
+        List<String> page = records;
+        if (records.size() > this.pageSize) {
+            page = records.subList(0, this.pageSize);
+            synchronized (this) {
+                locator = "01g" + this.nextId++;
+                this.queryLocators.put(locator, new ArrayList<String>(records.subList(this.pageSize, records.size())));
+            }
+        }
+        StringBuilder result = new StringBuilder();
+        result.append("<" + responseName + "><result xsi:type=\"QueryResult\">");
+        result.append("<done>" + (locator == null) + "</done>");
+        if (locator == null) {
+            result.append("<queryLocator xsi:nil=\"true\"/>");
+        }
+        else {
+            result.append("<queryLocator>" + locator + "</queryLocator>");
+        }
+        for (String record : page) {
+            result.append(record);
+        }
+        result.append("<size>" + size + "</size>");
+        result.append("</result></" + responseName + ">");
+        return wrap(result.toString());
+    }
+
+    private String upsert(Element call) {
+
+        StringBuilder result = new StringBuilder();
+        result.append("<upsertResponse>");
+        int records = 0;
+        for (Node child = call.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() != Node.ELEMENT_NODE || !child.getLocalName().equals("sObjects")) {
+                continue;
+            }
+            records++;
+            Element record = (Element)child;
+            String id = getChildText(record, "Id");
+            result.append("<result>");
+            if (nextDouble() < this.upsertErrorRate) {
+                count("upsertErrors", 1);
+                Boolean transientError = nextDouble() < 0.5;
+                result.append("<errors>");
+                result.append("<message>" + (transientError ? "unable to obtain exclusive access to this record" : "Actual value is out of range") + "</message>");
+                result.append("<statusCode>" + (transientError ? "UNABLE_TO_LOCK_ROW" : "FIELD_CUSTOM_VALIDATION_EXCEPTION") + "</statusCode>");
+                result.append("</errors>");
+                result.append("<id xsi:nil=\"true\"/>");
+                result.append("<success>false</success>");
+            }
+            else {
+                String valueText = getChildText(record, "Actual_Value__c");
+                Double value = valueText == null ? null : Double.valueOf(valueText);
+                Boolean created = false;
+                synchronized (this) {
+                    StoredData data = id == null ? null : this.datas.get(id);
+                    if (data == null) {
+                        id = String.format("a0E%012d", this.nextId++);
+                        data = new StoredData(id, getChildText(record, "M_E_Metric__c"), getChildText(record, "District__c"));
+                        this.datas.put(id, data);
+                        created = true;
+                    }
+                    data.value = value;
+                }
+                result.append("<created>" + created + "</created>");
+                result.append("<id>" + id + "</id>");
+                result.append("<success>true</success>");
+            }
+            result.append("</result>");
+        }
+        count("upsertRecords", records);
+        result.append("</upsertResponse>");
+        return wrap(result.toString());
+    }
+
+    private String delete(Element call) {
+
+        StringBuilder result = new StringBuilder();
+        result.append("<deleteResponse>");
+        int records = 0;
+        for (Node child = call.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() != Node.ELEMENT_NODE || !child.getLocalName().equals("ids")) {
+                continue;
+            }
+            records++;
+            String id = child.getTextContent();
+            synchronized (this) {
+                this.datas.remove(id);
+            }
+            result.append("<result><id>" + id + "</id><success>true</success></result>");
+        }
+        count("deleteRecords", records);
+        result.append("</deleteResponse>");
+        return wrap(result.toString());
+    }
+
+    /**
+     * Get the metrics with the given names, creating any that have not been asked for before
+     */
+    private synchronized ArrayList<String> getMetrics(ArrayList<String> names) {
+
+        HashSet<String> asked = new HashSet<String>(names);
+        ArrayList<String> records = new ArrayList<String>();
+        for (String name : names) {
+            String id = this.metricIds.get(name);
+            if (id == null) {
+                id = String.format("a0M%012d", this.nextId++);
+                this.metricIds.put(name, id);
+                this.metricNames.put(id, name);
+                if (name.lastIndexOf('_') > 0 && asked.contains(name.substring(0, name.lastIndexOf('_')))) {
+                    this.lickertMetrics.add(name);
+                }
+            }
+            records.add("<records xsi:type=\"sf:M_E_Metric__c\"><sf:Id>" + id + "</sf:Id><sf:Name>" + escape(name) + "</sf:Name></records>");
+        }
+        return records;
+    }
+
+    /**
+     * Get the stored metric datas for the metrics with the given names
+     */
+    private synchronized ArrayList<String> getDatas(ArrayList<String> names) {
+
+        HashSet<String> ids = new HashSet<String>();
+        for (String name : names) {
+            if (this.metricIds.containsKey(name)) {
+                ids.add(this.metricIds.get(name));
+            }
+        }
+        ArrayList<String> records = new ArrayList<String>();
+        for (StoredData data : this.datas.values()) {
+            if (!ids.contains(data.metricId)) {
+                continue;
+            }
+            String metricName = this.metricNames.get(data.metricId);
+            StringBuilder record = new StringBuilder();
+            record.append("<records xsi:type=\"sf:M_E_Metric_Data__c\">");
+            record.append("<sf:Id>" + data.id + "</sf:Id>");
+            record.append("<sf:Actual_Value__c>" + (data.value == null ? "0.0" : data.value.toString()) + "</sf:Actual_Value__c>");
+            if (data.districtId != null) {
+                record.append("<sf:District__c>" + data.districtId + "</sf:District__c>");
+                record.append(createDistrict(Integer.valueOf(data.districtId.substring(3)), "sf:District__r"));
+            }
+            record.append("<sf:M_E_Metric__r xsi:type=\"sf:M_E_Metric__c\">");
+            record.append("<sf:Id>" + data.metricId + "</sf:Id>");
+            record.append("<sf:Is_Lickert__c>" + this.lickertMetrics.contains(metricName) + "</sf:Is_Lickert__c>");
+            record.append("<sf:Name>" + escape(metricName) + "</sf:Name>");
+            record.append("</sf:M_E_Metric__r>");
+            record.append("<sf:Name>MD-" + data.id.substring(3) + "</sf:Name>");
+            record.append("</records>");
+            records.add(record.toString());
+        }
+        return records;
+    }
+
+    private String createPerson(String name, String elementName) {
+
+        int district = getDistrictIndex(name);
+        StringBuilder record = new StringBuilder();
+        record.append("<" + elementName + " xsi:type=\"sf:Person__c\">");
+        record.append("<sf:Id>a0P" + String.format("%012d", Math.abs(name.hashCode())) + "</sf:Id>");
+        record.append("<sf:District__c>" + getDistrictId(district) + "</sf:District__c>");
+        record.append(createDistrict(district, "sf:District__r"));
+        record.append("<sf:Gender__c>" + (name.hashCode() % 2 == 0 ? "Male" : "Female") + "</sf:Gender__c>");
+        record.append("<sf:Name>" + escape(name) + "</sf:Name>");
+        record.append("</" + elementName + ">");
+        return record.toString();
+    }
+
+    private String createCkw(String name) {
+
+        StringBuilder record = new StringBuilder();
+        record.append("<records xsi:type=\"sf:CKW__c\">");
+        record.append("<sf:Id>a0C" + String.format("%012d", Math.abs(name.hashCode())) + "</sf:Id>");
+        record.append("<sf:Name>" + escape(name) + "</sf:Name>");
+        record.append(createPerson("PERSON_" + name, "sf:Person__r"));
+        record.append("</records>");
+        return record.toString();
+    }
+
+    private String createDistrict(int district, String elementName) {
+
+        return "<" + elementName + " xsi:type=\"sf:District__c\"><sf:Id>" + getDistrictId(district) + "</sf:Id><sf:Name>District_" + district + "</sf:Name></" + elementName + ">";
+    }
+
+    private String getDistrictId(int district) {
+        return String.format("a0D%012d", district);
+    }
+
+    private int getDistrictIndex(String name) {
+        return Math.abs(name.hashCode() % this.districtCount);
+    }
+
+    private ArrayList<String> getRoster(String prefix) {
+
+        ArrayList<String> names = new ArrayList<String>();
+        for (String name : this.roster) {
+            if (name.startsWith(prefix)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Get the quoted names from the Name IN (...) part of a query
+     *
+     * @return - The names. Null if the query does not select by name
+     */
+    private static ArrayList<String> getNames(String soql) {
+
+        Matcher matcher = NAME_IN_PATTERN.matcher(soql);
+        if (!matcher.find()) {
+            return null;
+        }
+        ArrayList<String> names = new ArrayList<String>();
+        for (String name : matcher.group(1).split(",")) {
+            name = name.trim();
+            if (name.startsWith("'") && name.endsWith("'") && name.length() > 1) {
+                name = name.substring(1, name.length() - 1);
+            }
+            if (name.length() > 0) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private static Document parse(InputStream input) throws Exception {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+            bytes.write(buffer, 0, read);
+        }
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    /**
+     * Find the element for the call in the SOAP body
+     */
+    private static Element getCall(Document request) throws StubFault {
+
+        Node body = request.getElementsByTagNameNS(ENVELOPE_NS, "Body").item(0);
+        if (body != null) {
+            for (Node child = body.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                    return (Element)child;
+                }
+            }
+        }
+        throw new StubFault("INVALID_OPERATION", "No call in the request");
+    }
+
+    /**
+     * Get the text of the first child element with the given local name
+     *
+     * @return - The text. Null if there is no such element or it is nil
+     */
+    private static String getChildText(Element parent, String localName) {
+
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && child.getLocalName().equals(localName)) {
+                if ("true".equals(((Element)child).getAttributeNS(XSI_NS, "nil"))) {
+                    return null;
+                }
+                return child.getTextContent();
+            }
+        }
+        return null;
+    }
+
+    private static String wrap(String body) {
+
+        StringBuilder envelope = new StringBuilder();
+        envelope.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        envelope.append("<soapenv:Envelope xmlns:soapenv=\"" + ENVELOPE_NS + "\" xmlns=\"" + ENTERPRISE_NS + "\" ");
+        envelope.append("xmlns:sf=\"" + SOBJECT_NS + "\" xmlns:xsi=\"" + XSI_NS + "\">");
+        envelope.append("<soapenv:Body>");
+        envelope.append(body);
+        envelope.append("</soapenv:Body></soapenv:Envelope>");
+        return envelope.toString();
+    }
+
+    private static String createFault(String code, String message) {
+        return wrap("<soapenv:Fault xmlns=\"\"><faultcode>soapenv:Server</faultcode><faultstring>" + code + ": " + escape(message) + "</faultstring></soapenv:Fault>");
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private synchronized double nextDouble() {
+        return this.random.nextDouble();
+    }
+
+    private void count(String name, long amount) {
+
+        AtomicLong count = this.counts.get(name);
+        if (count == null) {
+            count = new AtomicLong();
+            AtomicLong existing = this.counts.putIfAbsent(name, count);
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        count.addAndGet(amount);
+    }
+
+    /**
+     * A metric data held by the stub
+     */
+    private static class StoredData {
+
+        private String id;
+        private String metricId;
+        private String districtId;
+        private Double value;
+
+        public StoredData(String id, String metricId, String districtId) {
+            this.id = id;
+            this.metricId = metricId;
+            this.districtId = districtId;
+        }
+    }
+
+    private static class StubFault extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        private String code;
+
+        public StubFault(String code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package applab.metricCalculator;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.HashMap;
+
+/**
+ * A read only ResultSet over rows held in memory so the per row code can be benchmarked without a DB.
+ * Supports the calls the calculator makes: next, first, last, getRow, beforeFirst, getString, getDouble, getInt,
+ * getLong, wasNull, getMetaData and close. Anything else throws UnsupportedOperationException.
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class SyntheticResultSet implements InvocationHandler {
+
+    private String[] columns;
+    private HashMap<String, Integer> columnIndexes;
+    private String[][] rows;
+    private int row;
+    private Boolean lastWasNull;
+
+    private SyntheticResultSet(String[] columns, String[][] rows) {
+        this.columns = columns;
+        this.columnIndexes = new HashMap<String, Integer>();
+        for (int i = 0; i < columns.length; i++) {
+            this.columnIndexes.put(columns[i].toLowerCase(), i);
+        }
+        this.rows = rows;
+        this.row = -1;
+        this.lastWasNull = false;
+    }
+
+    /**
+     * Create a result set
+     *
+     * @param columns - The column labels
+     * @param rows    - The values for each row in the same order as the columns. A value can be null
+     *
+     * @return - The result set, before the first row
+     */
+    public static ResultSet create(String[] columns, String[][] rows) {
+
+        return (ResultSet)Proxy.newProxyInstance(
+                ResultSet.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class },
+                new SyntheticResultSet(columns, rows)
+        );
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+        String name = method.getName();
+        if (name.equals("next")) {
+            this.row++;
+            return this.row < this.rows.length;
+        }
+        if (name.equals("first")) {
+            this.row = 0;
+            return this.rows.length > 0;
+        }
+        if (name.equals("last")) {
+            this.row = this.rows.length - 1;
+            return this.rows.length > 0;
+        }
+        if (name.equals("beforeFirst")) {
+            this.row = -1;
+            return null;
+        }
+        if (name.equals("getRow")) {
+            return this.row + 1;
+        }
+        if (name.equals("wasNull")) {
+            return this.lastWasNull;
+        }
+        if (name.equals("close")) {
+            return null;
+        }
+        if (name.equals("getMetaData")) {
+            return createMetaData();
+        }
+        if (name.equals("getString") || name.equals("getDouble") || name.equals("getInt") || name.equals("getLong")) {
+            String value = getValue(args[0]);
+            this.lastWasNull = value == null;
+            if (name.equals("getString")) {
+                return value;
+            }
+            if (name.equals("getDouble")) {
+                return value == null ? 0.0 : Double.valueOf(value);
+            }
+            if (name.equals("getInt")) {
+                return value == null ? 0 : Integer.valueOf(value);
+            }
+            return value == null ? 0L : Long.valueOf(value);
+        }
+        if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        if (name.equals("equals")) {
+            return proxy == args[0];
+        }
+        if (name.equals("toString")) {
+            return "SyntheticResultSet(" + this.rows.length + " rows)";
+        }
+        throw new UnsupportedOperationException("SyntheticResultSet does not support " + name);
+    }
+
+    private String getValue(Object column) {
+
+        int index;
+        if (column instanceof Integer) {
+            index = (Integer)column - 1;
+        }
+        else {
+            Integer found = this.columnIndexes.get(((String)column).toLowerCase());
+            if (found == null) {
+                throw new IllegalArgumentException("No column " + column);
+            }
+            index = found;
+        }
+        return this.rows[this.row][index];
+    }
+
+    private ResultSetMetaData createMetaData() {
+
+        return (ResultSetMetaData)Proxy.newProxyInstance(
+                ResultSetMetaData.class.getClassLoader(),
+                new Class<?>[] { ResultSetMetaData.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getColumnCount")) {
+                            return columns.length;
+                        }
+                        if (name.equals("getColumnLabel") || name.equals("getColumnName")) {
+                            return columns[(Integer)args[0] - 1];
+                        }
+                        throw new UnsupportedOperationException("SyntheticResultSet metadata does not support " + name);
+                    }
+                }
+        );
+    }
+}
@@ -0,0 +1,237 @@
+package applab.metricCalculator;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+/**
+ * Keeps the answer_option table up to date. Multi select answers are saved as a space separated list of the options that
+ * were chosen, which can only be matched with LIKE '% option %' and so cannot use an index. The answer_option table
+ * holds one row for each option chosen in each answer so multi select metrics can find their answers with an indexed
+ * lookup on the option instead.
+ *
+ * Only the multi select questions used by a metric parameter are indexed. The answer_option_state table remembers the
+ * last submission id indexed for each of them so each run only adds the submissions that have arrived since the last run.
+ *
+ * Config items used:
+ *     useAnswerOptionIndex - Y to keep the index up to date and use it for multi select metrics. Default N
+ *     optionIndexBatchSize - How many submission ids to index in each transaction. Default 50000
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class AnswerOptionIndex {
+
+    // Set once the index has been brought up to the snapshot for this run
+    private static volatile Boolean upToDate = false;
+
+    /**
+     * Is the calculator set up to use the index
+     *
+     * @return - True if multi select metrics should use the index
+     */
+    public static Boolean isEnabled() {
+        return Configuration.getConfiguration("useAnswerOptionIndex", "N").equals("Y");
+    }
+
+    /**
+     * Can the index be used for this run. Only true once it has been brought up to the snapshot for the run
+     *
+     * @return - True if the index can be read
+     */
+    public static Boolean isReady() {
+        return isEnabled() && upToDate;
+    }
+
+    /**
+     * Add the options from the submissions that have arrived since the last run to the index. Should be called at the
+     * start of a run after the snapshot has been taken
+     */
+    public static void update() throws SQLException {
+
+        upToDate = false;
+        Long snapshot = DatabaseHelpers.getSnapshotSubmissionId();
+        if (snapshot == null) {
+            return;
+        }
+        createTables();
+        long batchSize = Long.valueOf(Configuration.getConfiguration("optionIndexBatchSize", "50000"));
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getQuestionsQuery());
+        ArrayList<Integer> surveyIds = new ArrayList<Integer>();
+        ArrayList<String> questionNames = new ArrayList<String>();
+        ArrayList<Long> lastIds = new ArrayList<Long>();
+        while (resultSet.next()) {
+            surveyIds.add(resultSet.getInt("survey_id"));
+            questionNames.add(resultSet.getString("question_name"));
+            lastIds.add(resultSet.getLong("last_submission_id"));
+        }
+        resultSet.close();
+        for (int i = 0; i < surveyIds.size(); i++) {
+            long fromId = lastIds.get(i);
+            while (fromId < snapshot) {
+                long toId = Math.min(fromId + batchSize, snapshot);
+                indexRange(surveyIds.get(i), questionNames.get(i), fromId, toId);
+                fromId = toId;
+            }
+        }
+        upToDate = true;
+    }
+
+    /**
+     * Index the answers to a question in a range of submissions
+     *
+     * @param surveyId     - The survey
+     * @param questionName - The question binding
+     * @param fromId       - Only submissions after this id are indexed
+     * @param toId         - The last submission id to index
+     */
+    private static void indexRange(Integer surveyId, String questionName, long fromId, long toId) throws SQLException {
+
+        ArrayList<String> queries = new ArrayList<String>();
+        StringBuilder values = new StringBuilder();
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getAnswersQuery(surveyId, questionName, fromId, toId));
+        while (resultSet.next()) {
+            String answer = resultSet.getString("answer");
+            if (answer == null) {
+                continue;
+            }
+            for (String option : answer.trim().split(" +")) {
+                if (option.length() == 0) {
+                    continue;
+                }
+                if (values.length() > 0) {
+                    values.append(", ");
+                }
+                values.append("(");
+                values.append(resultSet.getLong("submission_id") + ", ");
+                values.append(resultSet.getInt("position") + ", ");
+                values.append("'" + escape(questionName) + "', ");
+                values.append("'" + escape(option) + "')");
+
+                // Keep each insert to a sensible size
+                if (values.length() > 500000) {
+                    queries.add(getInsertQuery(values.toString()));
+                    values = new StringBuilder();
+                }
+            }
+        }
+        resultSet.close();
+        if (values.length() > 0) {
+            queries.add(getInsertQuery(values.toString()));
+        }
+
+        // Add the options and move the state on together. The inserts ignore rows that are already there so a range can
+        // safely be indexed twice
+        queries.add(getSaveStateQuery(surveyId, questionName, toId));
+        DatabaseHelpers.executeUpdatesInTransaction(queries);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("'", "\\'");
+    }
+
+    private static void createTables() throws SQLException {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("CREATE TABLE IF NOT EXISTS ");
+        commandText.append(DatabaseHelpers.ANSWER_OPTION_TABLE);
+        commandText.append(" (");
+        commandText.append("submission_id BIGINT NOT NULL, ");
+        commandText.append("position INT NOT NULL, ");
+        commandText.append("question_name VARCHAR(128) NOT NULL, ");
+        commandText.append("answer_option VARCHAR(128) NOT NULL, ");
+        commandText.append("PRIMARY KEY (question_name, answer_option, submission_id, position), ");
+        commandText.append("KEY submission (submission_id, position)");
+        commandText.append(") ENGINE=InnoDB");
+        DatabaseHelpers.executeUpdateQuery(commandText.toString());
+
+        commandText = new StringBuilder();
+        commandText.append("CREATE TABLE IF NOT EXISTS ");
+        commandText.append(DatabaseHelpers.ANSWER_OPTION_STATE_TABLE);
+        commandText.append(" (");
+        commandText.append("survey_id INT NOT NULL, ");
+        commandText.append("question_name VARCHAR(128) NOT NULL, ");
+        commandText.append("last_submission_id BIGINT NOT NULL, ");
+        commandText.append("updated DATETIME NOT NULL, ");
+        commandText.append("PRIMARY KEY (survey_id, question_name)");
+        commandText.append(") ENGINE=InnoDB");
+        DatabaseHelpers.executeUpdateQuery(commandText.toString());
+    }
+
+    /**
+     * Build the query that gets every multi select question used by a metric along with how far it has been indexed.
+     * A question that has never been indexed starts from just before the first submission for its survey
+     *
+     * @return - The query string
+     */
+    private static String getQuestionsQuery() {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("q.survey_id AS survey_id, ");
+        commandText.append("q.question_name AS question_name, ");
+        commandText.append("COALESCE(os.last_submission_id, ");
+        commandText.append("(SELECT COALESCE(MIN(s.id) - 1, 0) FROM " + DatabaseHelpers.SUBMISSION_TABLE + " s WHERE s.survey_id = q.survey_id)");
+        commandText.append(") AS last_submission_id ");
+        commandText.append("FROM (");
+        commandText.append("SELECT DISTINCT ");
+        commandText.append("mp.survey_id, ");
+        commandText.append("mp.binding AS question_name ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.METRIC_PARAMETER_TABLE + " mp ");
+        commandText.append("WHERE ");
+        commandText.append("mp.question_type = 'multiSelect' ");
+        commandText.append("AND mp.binding IS NOT NULL ");
+        commandText.append("AND mp.survey_id IS NOT NULL");
+        commandText.append(") q ");
+        commandText.append("LEFT JOIN ");
+        commandText.append(DatabaseHelpers.ANSWER_OPTION_STATE_TABLE + " os ");
+        commandText.append("ON os.survey_id = q.survey_id ");
+        commandText.append("AND os.question_name = q.question_name");
+        return commandText.toString();
+    }
+
+    private static String getAnswersQuery(Integer surveyId, String questionName, long fromId, long toId) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("a.submission_id, ");
+        commandText.append("a.position, ");
+        commandText.append("a.answer ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.SUBMISSION_ANSWERS_TABLE + " a, ");
+        commandText.append(DatabaseHelpers.SUBMISSION_TABLE + " s ");
+        commandText.append("WHERE ");
+        commandText.append("s.survey_id = " + surveyId + " ");
+        commandText.append("AND s.id = a.submission_id ");
+        commandText.append("AND a.question_name = '" + questionName + "' ");
+        commandText.append("AND s.id > " + fromId + " ");
+        commandText.append("AND s.id <= " + toId);
+        return commandText.toString();
+    }
+
+    private static String getInsertQuery(String values) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("INSERT IGNORE INTO ");
+        commandText.append(DatabaseHelpers.ANSWER_OPTION_TABLE);
+        commandText.append(" (submission_id, position, question_name, answer_option) VALUES ");
+        commandText.append(values);
+        return commandText.toString();
+    }
+
+    private static String getSaveStateQuery(Integer surveyId, String questionName, long toId) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("INSERT INTO ");
+        commandText.append(DatabaseHelpers.ANSWER_OPTION_STATE_TABLE);
+        commandText.append(" (survey_id, question_name, last_submission_id, updated) VALUES (");
+        commandText.append(surveyId + ", ");
+        commandText.append("'" + questionName + "', ");
+        commandText.append(toId + ", ");
+        commandText.append("NOW()) ");
+        commandText.append("ON DUPLICATE KEY UPDATE ");
+        commandText.append("last_submission_id = VALUES(last_submission_id), ");
+        commandText.append("updated = VALUES(updated)");
+        return commandText.toString();
+    }
+}
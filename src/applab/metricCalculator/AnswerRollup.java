@@ -0,0 +1,223 @@
+package applab.metricCalculator;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+/**
+ * Keeps the answer_rollup_daily table up to date. The table holds how many times each answer was given to each question
+ * by each interviewer on each day, so a metric for any period only has to add up a few thousand rows rather than read
+ * every answer. As the answer value is part of the key the sum for a number question is just the value times the count.
+ *
+ * Only the questions that are used by a metric parameter are rolled up. The answer_rollup_state table remembers the last
+ * submission id rolled up for each of them so each run only adds the submissions that have arrived since the last run.
+ * A question that is new to a metric is rolled up from the start the first time it is seen.
+ * Submissions are added in id order, so a submission that is changed once it has been rolled up is not picked up again.
+ * This relies on submissions being saved in id order, which holds as they are written by a single importer.
+ *
+ * Repeat questions are not rolled up as they count answers per submission.
+ *
+ * Config items used:
+ *     useAnswerRollup - Y to keep the rollup up to date and use it to calculate metrics. Default N
+ *     rollupBatchSize - How many submission ids to roll up in each transaction. Default 50000
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class AnswerRollup {
+
+    // Set once the rollup has been brought up to the snapshot for this run
+    private static volatile Boolean upToDate = false;
+
+    /**
+     * Is the calculator set up to use the rollup
+     *
+     * @return - True if metrics should be calculated from the rollup
+     */
+    public static Boolean isEnabled() {
+        return Configuration.getConfiguration("useAnswerRollup", "N").equals("Y");
+    }
+
+    /**
+     * Can the rollup be used for this run. Only true once it has been brought up to the snapshot for the run so the
+     * metrics see the same submissions as the totals
+     *
+     * @return - True if the rollup can be read
+     */
+    public static Boolean isReady() {
+        return isEnabled() && upToDate;
+    }
+
+    /**
+     * Add the submissions that have arrived since the last run to the rollup. Should be called at the start of a run
+     * after the snapshot has been taken
+     */
+    public static void update() throws SQLException {
+
+        upToDate = false;
+        Long snapshot = DatabaseHelpers.getSnapshotSubmissionId();
+        if (snapshot == null) {
+            return;
+        }
+        createTables();
+        long batchSize = Long.valueOf(Configuration.getConfiguration("rollupBatchSize", "50000"));
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getQuestionsQuery());
+        ArrayList<Integer> surveyIds = new ArrayList<Integer>();
+        ArrayList<String> questionNames = new ArrayList<String>();
+        ArrayList<Long> lastIds = new ArrayList<Long>();
+        while (resultSet.next()) {
+            surveyIds.add(resultSet.getInt("survey_id"));
+            questionNames.add(resultSet.getString("question_name"));
+            lastIds.add(resultSet.getLong("last_submission_id"));
+        }
+        resultSet.close();
+        for (int i = 0; i < surveyIds.size(); i++) {
+            long fromId = lastIds.get(i);
+            if (fromId == 0) {
+
+                // New question so start from the first submission for the survey rather than the start of the table
+                fromId = getFirstSubmissionId(surveyIds.get(i));
+            }
+            while (fromId < snapshot) {
+                long toId = Math.min(fromId + batchSize, snapshot);
+
+                // Add the counts and move the state on together so a failure part way cannot count anything twice
+                ArrayList<String> queries = new ArrayList<String>();
+                queries.add(getRollupQuery(surveyIds.get(i), questionNames.get(i), fromId, toId));
+                queries.add(getSaveStateQuery(surveyIds.get(i), questionNames.get(i), toId));
+                DatabaseHelpers.executeUpdatesInTransaction(queries);
+                fromId = toId;
+            }
+        }
+        upToDate = true;
+    }
+
+    private static long getFirstSubmissionId(Integer surveyId) throws SQLException {
+
+        long firstId = 0;
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("MIN(s.id) - 1 AS firstId ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.SUBMISSION_TABLE + " s ");
+        commandText.append("WHERE ");
+        commandText.append("s.survey_id = " + surveyId);
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(commandText.toString());
+        if (resultSet.next()) {
+            firstId = Math.max(0, resultSet.getLong("firstId"));
+        }
+        resultSet.close();
+        return firstId;
+    }
+
+    private static void createTables() throws SQLException {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("CREATE TABLE IF NOT EXISTS ");
+        commandText.append(DatabaseHelpers.ANSWER_ROLLUP_TABLE);
+        commandText.append(" (");
+        commandText.append("survey_id INT NOT NULL, ");
+        commandText.append("question_name VARCHAR(128) NOT NULL, ");
+        commandText.append("day DATE NOT NULL, ");
+        commandText.append("interviewer_id VARCHAR(64) NOT NULL, ");
+        commandText.append("answer_hash CHAR(32) NOT NULL, ");
+        commandText.append("answer TEXT NULL, ");
+        commandText.append("answer_count INT NOT NULL, ");
+        commandText.append("PRIMARY KEY (survey_id, question_name, day, interviewer_id, answer_hash)");
+        commandText.append(") ENGINE=InnoDB");
+        DatabaseHelpers.executeUpdateQuery(commandText.toString());
+
+        commandText = new StringBuilder();
+        commandText.append("CREATE TABLE IF NOT EXISTS ");
+        commandText.append(DatabaseHelpers.ANSWER_ROLLUP_STATE_TABLE);
+        commandText.append(" (");
+        commandText.append("survey_id INT NOT NULL, ");
+        commandText.append("question_name VARCHAR(128) NOT NULL, ");
+        commandText.append("last_submission_id BIGINT NOT NULL, ");
+        commandText.append("updated DATETIME NOT NULL, ");
+        commandText.append("PRIMARY KEY (survey_id, question_name)");
+        commandText.append(") ENGINE=InnoDB");
+        DatabaseHelpers.executeUpdateQuery(commandText.toString());
+    }
+
+    /**
+     * Build the query that gets every question used by a metric along with how far it has been rolled up
+     *
+     * @return - The query string
+     */
+    private static String getQuestionsQuery() {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT DISTINCT ");
+        commandText.append("mp.survey_id AS survey_id, ");
+        commandText.append("mp.binding AS question_name, ");
+        commandText.append("COALESCE(rs.last_submission_id, 0) AS last_submission_id ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.METRIC_PARAMETER_TABLE + " mp ");
+        commandText.append("LEFT JOIN ");
+        commandText.append(DatabaseHelpers.ANSWER_ROLLUP_STATE_TABLE + " rs ");
+        commandText.append("ON rs.survey_id = mp.survey_id ");
+        commandText.append("AND rs.question_name = mp.binding ");
+        commandText.append("WHERE ");
+        commandText.append("mp.binding IS NOT NULL ");
+        commandText.append("AND mp.survey_id IS NOT NULL ");
+        commandText.append("AND (mp.is_repeat IS NULL OR mp.is_repeat != 'Y')");
+        return commandText.toString();
+    }
+
+    /**
+     * Build the query that adds the answers to a question in a range of submissions to the rollup
+     *
+     * @param surveyId     - The survey
+     * @param questionName - The question binding
+     * @param fromId       - Only submissions after this id are added
+     * @param toId         - The last submission id to add
+     *
+     * @return - The query string
+     */
+    private static String getRollupQuery(Integer surveyId, String questionName, long fromId, long toId) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("INSERT INTO ");
+        commandText.append(DatabaseHelpers.ANSWER_ROLLUP_TABLE);
+        commandText.append(" (survey_id, question_name, day, interviewer_id, answer_hash, answer, answer_count) ");
+        commandText.append("SELECT ");
+        commandText.append("s.survey_id, ");
+        commandText.append("a.question_name, ");
+        commandText.append("DATE(s.handset_submit_time), ");
+        commandText.append("UPPER(s.interviewer_id), ");
+        commandText.append("MD5(COALESCE(a.answer, '')), ");
+        commandText.append("a.answer, ");
+        commandText.append("COUNT(*) ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.SUBMISSION_ANSWERS_TABLE + " a, ");
+        commandText.append(DatabaseHelpers.SUBMISSION_TABLE + " s ");
+        commandText.append("WHERE ");
+        commandText.append("s.survey_id = " + surveyId + " ");
+        commandText.append("AND s.id = a.submission_id ");
+        commandText.append("AND a.question_name = '" + questionName + "' ");
+        commandText.append("AND s.id > " + fromId + " ");
+        commandText.append("AND s.id <= " + toId + " ");
+        commandText.append("AND s.handset_submit_time IS NOT NULL ");
+        commandText.append("AND s.interviewer_id IS NOT NULL ");
+        commandText.append("GROUP BY 1, 2, 3, 4, 5 ");
+        commandText.append("ON DUPLICATE KEY UPDATE ");
+        commandText.append("answer_count = answer_count + VALUES(answer_count)");
+        return commandText.toString();
+    }
+
+    private static String getSaveStateQuery(Integer surveyId, String questionName, long toId) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("INSERT INTO ");
+        commandText.append(DatabaseHelpers.ANSWER_ROLLUP_STATE_TABLE);
+        commandText.append(" (survey_id, question_name, last_submission_id, updated) VALUES (");
+        commandText.append(surveyId + ", ");
+        commandText.append("'" + questionName + "', ");
+        commandText.append(toId + ", ");
+        commandText.append("NOW()) ");
+        commandText.append("ON DUPLICATE KEY UPDATE ");
+        commandText.append("last_submission_id = VALUES(last_submission_id), ");
+        commandText.append("updated = VALUES(updated)");
+        return commandText.toString();
+    }
+}
@@ -0,0 +1,84 @@
+package applab.metricCalculator;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the hits and misses for one of the calculator's caches so the hit rates can be shown on the status page.
+ * The counts are kept for the life of the process so a daemon shows how well the caches work across runs.
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class CacheStats {
+
+    private static ConcurrentHashMap<String, CacheStats> caches = new ConcurrentHashMap<String, CacheStats>();
+
+    private AtomicLong hits;
+    private AtomicLong misses;
+
+    private CacheStats() {
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    /**
+     * Get the stats for a cache, creating them the first time
+     *
+     * @param name - The name of the cache
+     *
+     * @return - The stats
+     */
+    public static CacheStats register(String name) {
+
+        CacheStats stats = new CacheStats();
+        CacheStats existing = caches.putIfAbsent(name, stats);
+        return existing == null ? stats : existing;
+    }
+
+    /**
+     * Get the stats for every cache
+     *
+     * @return - The stats keyed by the name of the cache
+     */
+    public static Map<String, CacheStats> getAll() {
+        return new TreeMap<String, CacheStats>(caches);
+    }
+
+    public void hit() {
+        this.hits.incrementAndGet();
+    }
+
+    public void hits(long count) {
+        this.hits.addAndGet(count);
+    }
+
+    public void miss() {
+        this.misses.incrementAndGet();
+    }
+
+    public void misses(long count) {
+        this.misses.addAndGet(count);
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Get the fraction of lookups that were hits
+     *
+     * @return - The hit rate between 0 and 1. 0 if there have been no lookups
+     */
+    public double getHitRate() {
+
+        long hits = this.hits.get();
+        long total = hits + this.misses.get();
+        return total == 0 ? 0.0 : (double)hits / total;
+    }
+}
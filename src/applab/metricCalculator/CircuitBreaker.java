@@ -0,0 +1,83 @@
+package applab.metricCalculator;
+
+/**
+ * Stops calls to a service that keeps failing so the calculator does not spend the run waiting on timeouts.
+ *
+ * The breaker starts closed and lets every call through. Once failureThreshold calls in a row have failed it opens and
+ * no calls are let through for openSeconds. After that one call is let through to test the service (half open). If it
+ * works the breaker closes again, otherwise it stays open for another openSeconds.
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private String name;
+    private String failureThresholdConfig;
+    private String openSecondsConfig;
+    private State state;
+    private int failures;
+    private long openedAt;
+
+    /**
+     * @param name                   - The name used in the log
+     * @param failureThresholdConfig - The config item that holds how many failures in a row open the breaker. Default 3
+     * @param openSecondsConfig      - The config item that holds how long the breaker stays open. Default 300
+     */
+    public CircuitBreaker(String name, String failureThresholdConfig, String openSecondsConfig) {
+        this.name = name;
+        this.failureThresholdConfig = failureThresholdConfig;
+        this.openSecondsConfig = openSecondsConfig;
+        this.state = State.CLOSED;
+        this.failures = 0;
+    }
+
+    /**
+     * Can a call be made now
+     *
+     * @return - True if the call should go ahead. The caller must then report how it went
+     */
+    public synchronized Boolean allowRequest() {
+
+        if (this.state == State.OPEN) {
+            long openMillis = Long.valueOf(Configuration.getConfiguration(this.openSecondsConfig, "300")) * 1000;
+            if (System.currentTimeMillis() - this.openedAt < openMillis) {
+                return false;
+            }
+            this.state = State.HALF_OPEN;
+            Log.info("circuitBreaker", this.name + " is half open. Trying a call");
+        }
+        return true;
+    }
+
+    public synchronized void recordSuccess() {
+
+        if (this.state != State.CLOSED) {
+            Log.info("circuitBreaker", this.name + " is closed again");
+        }
+        this.state = State.CLOSED;
+        this.failures = 0;
+    }
+
+    public synchronized void recordFailure() {
+
+        this.failures++;
+        int threshold = Integer.valueOf(Configuration.getConfiguration(this.failureThresholdConfig, "3"));
+        if (this.state == State.HALF_OPEN || this.failures >= threshold) {
+            if (this.state != State.OPEN) {
+                Log.warn("circuitBreaker", this.name + " is open after " + this.failures + " failures in a row");
+            }
+            this.state = State.OPEN;
+            this.openedAt = System.currentTimeMillis();
+        }
+    }
+
+    public synchronized State getState() {
+        return this.state;
+    }
+}
@@ -2,12 +2,17 @@ package applab.metricCalculator;
 
 import java.rmi.RemoteException;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.xml.rpc.ServiceException;
 
@@ -29,6 +34,9 @@ import com.sforce.soap.enterprise.sobject.SObject;
 
 public class Dashboard {
 
+    // Hit rate for the metrics fetched from Salesforce. Shown on the status page
+    private static final CacheStats metricCache = CacheStats.register("metrics");
+
     private int dashboardId = -1;
 
     // Only consider active Dashboards and Metric Parameters
@@ -64,6 +72,9 @@ public class Dashboard {
     // General detail map. Key is subdivider subDivider
     private HashMap<String, GeneralDashboardDetail> totalGeneralDetailMap;
 
+    // The fingerprint to store once this dashboard has been uploaded. Null if not running in change detection mode
+    private DashboardFingerprint fingerprint;
+
     /**
      * Constructor
      *
@@ -81,6 +92,18 @@ public class Dashboard {
         this.totalCalcualtionMap = new HashMap<String, MetricCalculation>();
     }
 
+    public int getDashboardId() {
+        return this.dashboardId;
+    }
+
+    public DashboardFingerprint getFingerprint() {
+        return this.fingerprint;
+    }
+
+    public void setFingerprint(DashboardFingerprint fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
     /**
      * Load the parameters form the DB into the parameter map
      *
@@ -90,44 +113,49 @@ public class Dashboard {
 
         // There is no dashboard id set so return.
         if (this.dashboardId == -1) {
-            System.out.println("Dashboard id is not set");
+            Log.warn("dashboardIdNotSet", "Dashboard id is not set");
             return false;
         }
 
-        System.out.println("Starting Dashboard with id: " + this.dashboardId);
+        Log.info("dashboardStart", "Starting Dashboard with id: " + this.dashboardId);
 
         // Get the parameters from the DB.
         ResultSet resultSet = DatabaseHelpers.executeSelectQuery(DatabaseHelpers.getMetricParametersQueryString(this.dashboardId, this.activeOnly));
-        if (DatabaseHelpers.getNumberOfRows(resultSet) == 0) {
-            System.out.println("There are no valid Metric Parameters for dashboard with ID - " + this.dashboardId);
-            return false;
-        }
-
-        // Add the general dashboard wide config from the DB
-        this.calculateGender = resultSet.getString("includeInterviewerGender");
-        this.calculateSurveyCount = resultSet.getString("includeSurveyCount");
-        this.partnerName = resultSet.getString("partnerName");
-        this.partnerShortCode = resultSet.getString("partnerShortCode");
+        try {
+            if (DatabaseHelpers.getNumberOfRows(resultSet) == 0) {
+                Log.info("noParameters", "There are no valid Metric Parameters for dashboard with ID - " + this.dashboardId);
+                return false;
+            }
 
-        // Loop through the record set to generate the map of metrics
-        do {
-            parameterMap.put(resultSet.getString("name"),
-                    new MetricParameter(
-                            resultSet.getString("name"),
-                            resultSet.getInt("surveyId"),
-                            resultSet.getString("binding"),
-                            resultSet.getString("questionType"),
-                            resultSet.getString("calculationType"),
-                            resultSet.getString("selectOptions"),
-                            resultSet.getString("groupByField"),
-                            resultSet.getInt("lickert"),
-                            resultSet.getString("onlyAnsweredSurveys"),
-                            resultSet.getString("isRepeat")
-                    )
-            );
-        }
-        while (resultSet.next());
-        return true;
+            // Add the general dashboard wide config from the DB
+            this.calculateGender = resultSet.getString("includeInterviewerGender");
+            this.calculateSurveyCount = resultSet.getString("includeSurveyCount");
+            this.partnerName = resultSet.getString("partnerName");
+            this.partnerShortCode = resultSet.getString("partnerShortCode");
+
+            // Loop through the record set to generate the map of metrics
+            do {
+                MetricParameter parameter = new MetricParameter(
+                        resultSet.getString("name"),
+                        resultSet.getInt("surveyId"),
+                        resultSet.getString("binding"),
+                        resultSet.getString("questionType"),
+                        resultSet.getString("calculationType"),
+                        resultSet.getString("selectOptions"),
+                        resultSet.getString("groupByField"),
+                        resultSet.getInt("lickert"),
+                        resultSet.getString("onlyAnsweredSurveys"),
+                        resultSet.getString("isRepeat")
+                );
+                parameter.setParameterId(resultSet.getInt("parameterId"));
+                parameterMap.put(resultSet.getString("name"), parameter);
+            }
+            while (resultSet.next());
+            return true;
+        }
+        finally {
+            resultSet.close();
+        }
     }
 
     /**
@@ -138,17 +166,29 @@ public class Dashboard {
     public Boolean calculateDashboard() throws SQLException, RemoteException, ServiceException {
 
         if (this.parameterMap.isEmpty()) {
-            System.out.println("");
             return false;
         }
 
         // Load all the people that have submitted surveys 
-        this.peopleList = InterviewerMap.populateMapForDashboard(this.dashboardId);
+        Trace.Span span = Trace.begin("InterviewerMap.populateMapForDashboard");
+        try {
+            this.peopleList = InterviewerMap.populateMapForDashboard(this.dashboardId);
+        }
+        finally {
+            Trace.end(span);
+        }
 
         // Calculate each metric for this dashboard
         this.calcualtionMap = new HashMap<String, MetricCalculation>();
-        for (Entry<String, MetricParameter> entry : this.parameterMap.entrySet()) {
-            calculateMetric(entry.getValue());
+        ExecutorService executor = WorkerPools.getMetricExecutor();
+        if (executor == null) {
+            for (Entry<String, MetricParameter> entry : this.parameterMap.entrySet()) {
+                DatabaseHelpers.checkDeadline();
+                mergeMetricResult(calculateMetric(entry.getValue()));
+            }
+        }
+        else {
+            calculateMetricsConcurrently(executor);
         }
         if (this.calcualtionMap.isEmpty()) {
             return false;
@@ -156,27 +196,274 @@ public class Dashboard {
         return true;
     }
 
+    /**
+     * Calculate the metrics side by side. Each metric works on its own maps which are merged into the dashboard maps
+     * in the same order as they would be calculated one at a time so the results are the same.
+     *
+     * @param executor - The pool to run the metrics on
+     */
+    private void calculateMetricsConcurrently(ExecutorService executor) throws SQLException {
+
+        final Long deadline = DatabaseHelpers.getDeadline();
+        final QueryContext context = QueryContext.get();
+        ArrayList<Future<MetricResult>> futures = new ArrayList<Future<MetricResult>>();
+        for (Entry<String, MetricParameter> entry : this.parameterMap.entrySet()) {
+            final MetricParameter parameter = entry.getValue();
+            futures.add(executor.submit(new Callable<MetricResult>() {
+                public MetricResult call() throws SQLException {
+
+                    // Work to the same budget as the dashboard
+                    DatabaseHelpers.setDeadline(deadline);
+                    QueryContext.set(context);
+                    try {
+                        DatabaseHelpers.checkDeadline();
+                        return calculateMetric(parameter);
+                    }
+                    finally {
+                        DatabaseHelpers.clearDeadline();
+                        QueryContext.clear();
+                    }
+                }
+            }));
+        }
+        for (MetricResult result : waitForAll(futures)) {
+            mergeMetricResult(result);
+        }
+    }
+
+    /**
+     * Wait for work that has been handed to a pool and pass on anything that it threw
+     *
+     * @param futures - The work
+     *
+     * @return - The results in the same order as the futures
+     */
+    private static <T> ArrayList<T> waitForAll(ArrayList<Future<T>> futures) throws SQLException {
+
+        ArrayList<T> results = new ArrayList<T>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException("Interrupted while calculating metrics", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Add the calculations for one metric into the dashboard
+     *
+     * @param result - The calculations for the metric
+     */
+    private void mergeMetricResult(MetricResult result) {
+
+        mergeCalculations(this.calcualtionMap, result.calculations);
+        mergeCalculations(this.totalCalcualtionMap, result.totals);
+        for (Entry<String, Double> entry : result.answeredTotals.entrySet()) {
+            result.parameter.addToTotalSubmissions(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Add the calculations from one metric into a dashboard map
+     *
+     * @param target  - The dashboard map
+     * @param partial - The calculations for the metric
+     */
+    private static void mergeCalculations(HashMap<String, MetricCalculation> target, HashMap<String, MetricCalculation> partial) {
+
+        for (Entry<String, MetricCalculation> entry : partial.entrySet()) {
+            MetricCalculation existing = target.get(entry.getKey());
+            if (existing == null) {
+                target.put(entry.getKey(), entry.getValue());
+            }
+            else {
+                existing.merge(entry.getValue());
+            }
+        }
+    }
+
     /**
      * Calculates and individual Metric Parameter.
+     * If the survey has a lot of submissions this quarter the answers are scanned in ranges of submission id side by side
+     * and the ranges added together.
      *
      * TODO - Expand to allow for other subDividers and to allow fo no subDividers
      *
-     * @param entry - Key = MetricName, Value = MetricParamter
+     * @param parameter - The metric parameter
+     *
+     * @return - The calculations for the metric
      */
-    private void calculateMetric(MetricParameter parameter) throws SQLException {
+    private MetricResult calculateMetric(final MetricParameter parameter) throws SQLException {
 
-        String onlyAnsweredSurveys = parameter.getOnlyAnsweredSurveys();
+        // Tag the queries for this metric so slow ones can be traced back to it
+        QueryContext previousContext = QueryContext.get();
+        ParameterCost cost = null;
+        if (parameter.getParameterId() != null) {
+            cost = ParameterCost.start(this.dashboardId, parameter);
+        }
+        QueryContext.setParameter(parameter.getMetricName(), cost);
+        long start = RunMetrics.startTimer();
+        Trace.Span span = Trace.begin("Dashboard.calculateMetric");
+        try {
+            MetricResult result = readMetric(parameter);
+            if (cost != null) {
+                cost.finish(result.calculations.size() + result.totals.size());
+            }
+            return result;
+        }
+        finally {
+            Trace.end(span);
+            RunMetrics.stopTimer("metricScan", null, start);
+            QueryContext.set(previousContext);
+        }
+    }
+
+    private MetricResult readMetric(final MetricParameter parameter) throws SQLException {
+
+        MetricResult result = new MetricResult(parameter);
         if (parameter.getBinding() == null) {
-            System.out.println("Parameter has no binding so cannot calculate a metric from it");
-            return;
+            Log.warn("noBinding", "Parameter has no binding so cannot calculate a metric from it");
+            return result;
         }
-        String metricName = parameter.getMetricName();
+
+        // Let the DB do the grouping by district if it can
+        if (InterviewerDimension.isReady() && !parameter.getIsRepeat().equals("Y")) {
+            aggregateAnswers(parameter, result);
+            return result;
+        }
+
+        // Otherwise read the answers already counted by day from the rollup if it is up to date
+        if (AnswerRollup.isReady() && !parameter.getIsRepeat().equals("Y")) {
+            scanAnswers(parameter, parameter.getRollupQueryString(), result);
+            return result;
+        }
+        ArrayList<long[]> ranges = getScanRanges(parameter);
+        if (ranges == null) {
+            scanAnswers(parameter, parameter.getQueryString(), result);
+            return result;
+        }
+        Log.debug("rangeScan", "Scanning " + parameter.getMetricName() + " in " + ranges.size() + " ranges");
+        final Long deadline = DatabaseHelpers.getDeadline();
+        final QueryContext context = QueryContext.get();
+        ArrayList<Future<MetricResult>> futures = new ArrayList<Future<MetricResult>>();
+        for (final long[] range : ranges) {
+            futures.add(WorkerPools.getScanExecutor().submit(new Callable<MetricResult>() {
+                public MetricResult call() throws SQLException {
+
+                    DatabaseHelpers.setDeadline(deadline);
+                    QueryContext.set(context);
+                    try {
+                        MetricResult partial = new MetricResult(parameter);
+                        scanAnswers(parameter, parameter.getQueryString(range[0], range[1]), partial);
+                        return partial;
+                    }
+                    finally {
+                        DatabaseHelpers.clearDeadline();
+                        QueryContext.clear();
+                    }
+                }
+            }));
+        }
+        for (MetricResult partial : waitForAll(futures)) {
+            result.merge(partial);
+        }
+        return result;
+    }
+
+    /**
+     * Decide if a metric should be scanned in ranges and if so work out the ranges.
+     *
+     * @param parameter - The metric parameter
+     *
+     * @return - List of the first and last submission id in each range. Null if the metric should be scanned in one go
+     */
+    private ArrayList<long[]> getScanRanges(MetricParameter parameter) throws SQLException {
+
+        if (WorkerPools.getScanExecutor() == null) {
+            return null;
+        }
+        long threshold = Long.valueOf(Configuration.getConfiguration("partitionedScanThreshold", "100000"));
+        int rangeCount = Integer.valueOf(Configuration.getConfiguration("partitionedScanRanges", "8"));
+        if (rangeCount < 2) {
+            return null;
+        }
+        long[] submissionRange = InterviewerMap.getSubmissionRange(parameter);
+        if (submissionRange[0] < threshold) {
+            return null;
+        }
+        long minId = submissionRange[1];
+        long maxId = submissionRange[2];
+        ArrayList<long[]> ranges = new ArrayList<long[]>();
+        long step = (maxId - minId) / rangeCount + 1;
+        for (long start = minId; start <= maxId; start += step) {
+            ranges.add(new long[] { start, Math.min(start + step - 1, maxId) });
+        }
+        return ranges;
+    }
+
+    /**
+     * Run a query for a metric and fold the answers into the calculations. If the query has an answer_count column then
+     * each row is counted that many times
+     *
+     * @param parameter - The metric parameter
+     * @param query     - The query that gets the answers
+     * @param result    - Where to put the calculations
+     */
+    private void scanAnswers(MetricParameter parameter, String query, MetricResult result) throws SQLException {
 
         // Run the query to get the answers for this metric
-        ResultSet answersSet = DatabaseHelpers.executeSelectQuery(parameter.getQueryString());
+        ResultSet answersSet = DatabaseHelpers.executeSelectQuery(query);
         if (DatabaseHelpers.getNumberOfRows(answersSet) < 1) {
+            answersSet.close();
             return;
         }
+        long foldStart = System.currentTimeMillis();
+        foldAnswers(parameter, answersSet, result);
+        addFoldTime(foldStart);
+        answersSet.close();
+    }
+
+    /**
+     * Add the time since the fold started to the cost of the metric parameter this thread is working on
+     *
+     * @param foldStart - When the fold started
+     */
+    private static void addFoldTime(long foldStart) {
+
+        QueryContext context = QueryContext.get();
+        if (context != null && context.getCost() != null) {
+            context.getCost().addFold(System.currentTimeMillis() - foldStart);
+        }
+    }
+
+    /**
+     * Fold the answers from a result set into the calculations. This is the per row work of a scan, kept apart from the
+     * query so the benchmarks can run it over a result set held in memory
+     *
+     * @param parameter  - The metric parameter
+     * @param answersSet - The answers. Must be on the first row
+     * @param result     - Where to put the calculations
+     */
+    static void foldAnswers(MetricParameter parameter, ResultSet answersSet, MetricResult result) throws SQLException {
+
+        String onlyAnsweredSurveys = parameter.getOnlyAnsweredSurveys();
+        String metricName = parameter.getMetricName();
+        Boolean counted = hasColumn(answersSet, "answer_count");
         do {
 
             String lickertName = "";
@@ -195,42 +482,101 @@ public class Dashboard {
             String metricLabel = Utils.createMetricLabel(metricName + lickertName, subDivider);
 
             // Get the calculation from the map or make a new one if it does not exisit
-            MetricCalculation metricCalculation = this.calcualtionMap.get(metricLabel);
+            MetricCalculation metricCalculation = result.calculations.get(metricLabel);
             if (metricCalculation == null) {
                 metricCalculation = new MetricCalculation(subDivider, metricName, metricName + lickertName);
             }
 
             // Update the calculations values
+            Double times = counted ? answersSet.getDouble("answer_count") : 1.0;
             metricCalculation.setNeedsUpdate(true);
-            this.calcualtionMap.put(metricLabel, parameter.updateCalculation(metricCalculation, answersSet.getString("answer")));
+            result.calculations.put(metricLabel, parameter.updateCalculation(metricCalculation, answersSet.getString("answer"), times));
 
             // Add to the parameters total submissions if this metric only uses submissions who answered the question
             if (onlyAnsweredSurveys.equals("Y")) {
-                parameter.addToTotalSubmissions(subDivider, 1.0);
-                parameter.addToTotalSubmissions("total", 1.0);
+                result.addToAnsweredTotal(subDivider, times);
+                result.addToAnsweredTotal("total", times);
             }
 
             // Sort out the totals
-            MetricCalculation total = this.totalCalcualtionMap.get(metricName + lickertName);
+            MetricCalculation total = result.totals.get(metricName + lickertName);
             if (total == null) {
                 total = new MetricCalculation(subDivider, metricName, metricName + lickertName);
             }
 
             // Update the calculations values
             total.setNeedsUpdate(true);
-            this.totalCalcualtionMap.put(metricName + lickertName, parameter.updateCalculation(total, answersSet.getString("answer")));
+            result.totals.put(metricName + lickertName, parameter.updateCalculation(total, answersSet.getString("answer"), times));
 
         } while (answersSet.next());
     }
 
+    private static Boolean hasColumn(ResultSet resultSet, String column) throws SQLException {
+
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            if (metaData.getColumnLabel(i).equalsIgnoreCase(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the answers for a metric already added up for each district by the DB and add them into the calculations
+     *
+     * @param parameter - The metric parameter
+     * @param result    - Where to put the calculations
+     */
+    private void aggregateAnswers(MetricParameter parameter, MetricResult result) throws SQLException {
+
+        String onlyAnsweredSurveys = parameter.getOnlyAnsweredSurveys();
+        String metricName = parameter.getMetricName();
+        ResultSet answersSet = DatabaseHelpers.executeSelectQuery(parameter.getDistrictQueryString());
+        long foldStart = System.currentTimeMillis();
+        while (answersSet.next()) {
+
+            String lickertName = "";
+            String subDivider = answersSet.getString("sub_divider");
+            Double answerCount = answersSet.getDouble("answer_count");
+            Double answerValue = answersSet.getDouble("answer_value");
+            if (parameter.getLickert() > 0) {
+                lickertName = "_" + answersSet.getString("answer");
+            }
+            String metricLabel = Utils.createMetricLabel(metricName + lickertName, subDivider);
+            MetricCalculation metricCalculation = result.calculations.get(metricLabel);
+            if (metricCalculation == null) {
+                metricCalculation = new MetricCalculation(subDivider, metricName, metricName + lickertName);
+            }
+            metricCalculation.setNeedsUpdate(true);
+            metricCalculation.addToValue1(answerValue);
+            result.calculations.put(metricLabel, metricCalculation);
+
+            if (onlyAnsweredSurveys.equals("Y")) {
+                result.addToAnsweredTotal(subDivider, answerCount);
+                result.addToAnsweredTotal("total", answerCount);
+            }
+
+            MetricCalculation total = result.totals.get(metricName + lickertName);
+            if (total == null) {
+                total = new MetricCalculation(subDivider, metricName, metricName + lickertName);
+            }
+            total.setNeedsUpdate(true);
+            total.addToValue1(answerValue);
+            result.totals.put(metricName + lickertName, total);
+        }
+        addFoldTime(foldStart);
+        answersSet.close();
+    }
+
     /**
      * Extract the M_E_Metric_Datas from the metric calculation and add to list to be uploaded
      *
-     * @return - List of metrics to upload
+     * @return - The datas to upload, labelled with their metric and district
      */
-    public ArrayList<M_E_Metric_Data__c> getDatas() throws SQLException, RemoteException, ServiceException {
+    public DashboardUpload getUpload() throws SQLException, RemoteException, ServiceException {
 
-        ArrayList<M_E_Metric_Data__c> datas = new ArrayList<M_E_Metric_Data__c>();
+        DashboardUpload upload = new DashboardUpload(this.dashboardId, this.fingerprint, new ArrayList<M_E_Metric_Data__c>());
 
         // Get the generic metrics if needed
         if (this.calculateGender.equals("Y")) {
@@ -243,7 +589,16 @@ public class Dashboard {
         }
 
         // Get the metric data from salesforce.
-        getMetricDatas();
+        long start = RunMetrics.startTimer();
+        Trace.Span span = Trace.begin("Dashboard.getMetricDatas");
+        try {
+            getMetricDatas();
+        }
+        finally {
+            Trace.end(span);
+        }
+        RunMetrics.stopTimer("salesforceFetch", this.dashboardId, start);
+        start = RunMetrics.startTimer();
 
         for (Entry<String, MetricCalculation> entry : this.calcualtionMap.entrySet()) {
 
@@ -271,8 +626,12 @@ public class Dashboard {
             M_E_Metric_Data__c data = entry.getValue().getData();
             if (data == null) {
                 if (this.metricMap.isEmpty() || !this.metricMap.containsKey(entry.getValue().getMetricName())) {
+                    metricCache.miss();
                     populateMetricMap();
                 }
+                else {
+                    metricCache.hit();
+                }
                 if (!this.metricMap.containsKey(entry.getValue().getMetricName())) {
                     continue;
                 }
@@ -292,27 +651,28 @@ public class Dashboard {
 
             // Only add datas that need updating
             if (entry.getValue().getNeedsUpdate()) {
-                datas.add(data);
+                upload.addData(data, entry.getValue().getMetricName(), subDivider);
             }
         }
-        datas.addAll(calculateTotals());
-        return datas;
+        calculateTotals(upload);
+        RunMetrics.stopTimer("diff", this.dashboardId, start);
+        RunMetrics.addCount("metricDatas", this.dashboardId, upload.getDatas().size());
+        return upload;
     }
 
     /**
      * Perform the calculation to update the total metrics. These are the ones with no subdivider
      *
-     * @return - List of metric datas to upload to SF
+     * @param upload - The upload to add the total datas to
      */
-    private ArrayList<M_E_Metric_Data__c> calculateTotals() throws RemoteException, ServiceException, SQLException {
+    private void calculateTotals(DashboardUpload upload) throws RemoteException, ServiceException, SQLException {
 
-        ArrayList<M_E_Metric_Data__c> datas = new ArrayList<M_E_Metric_Data__c>();
         if (this.totalCalcualtionMap.isEmpty()) {
-            return datas;
+            return;
         }
 
         for (Entry<String, MetricCalculation> entry : this.totalCalcualtionMap.entrySet()) {
-System.out.println(entry.getKey());
+            Log.debug("totalKey", "Calculating total " + entry.getKey());
             M_E_Metric_Data__c data = entry.getValue().getData();
             MetricParameter parameter = this.parameterMap.get(entry.getValue().getParameterName());
             if (parameter == null) {
@@ -337,12 +697,16 @@ System.out.println(entry.getKey());
             }
             if (data == null) {
                 if (this.metricMap.isEmpty() || !this.metricMap.containsKey(entry.getValue().getMetricName())) {
+                    metricCache.miss();
                     populateMetricMap();
                 }
+                else {
+                    metricCache.hit();
+                }
                 if (!this.metricMap.containsKey(entry.getValue().getMetricName())) {
                     continue;
                 }
-System.out.println("CREATING NEW TOTAL " + entry.getKey());
+                Log.debug("newTotal", "Creating new total " + entry.getKey());
                 data = entry.getValue().createNewMetricData(
                     this.parameterMap.get(entry.getValue().getParameterName()),
                     this.metricMap.get(entry.getValue().getMetricName()),
@@ -354,9 +718,8 @@ System.out.println("CREATING NEW TOTAL " + entry.getKey());
                 entry.getValue().updateMetricDataValue(this.parameterMap.get(entry.getValue().getParameterName()), total);
                 data = entry.getValue().getData();
             }
-            datas.add(data);
+            upload.addData(data, entry.getValue().getMetricName(), null);
         }
-        return datas;
     }
 
     /**
@@ -451,55 +814,60 @@ System.out.println("CREATING NEW TOTAL " + entry.getKey());
 
         // Get all the surveys that are to be shown in this dashboard
         ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getSurveysForDashboardQuery());
-        if (DatabaseHelpers.getNumberOfRows(resultSet) < 1) {
-            return;
-        }
-        do {
-
-            Integer surveyId = resultSet.getInt("surveyId");
-            String surveySalesforceName = resultSet.getString("surveySalesforceId");
-            InterviewerMap.getTotalSubmissions(surveyId, null);
-            Set<String> subDividers = InterviewerMap.getSubmissionKeySet(surveyId.toString());
-            if (subDividers == null) {
-                continue;
+        try {
+            if (DatabaseHelpers.getNumberOfRows(resultSet) < 1) {
+                return;
             }
+            do {
 
-            // Create the metric parameter
-            String paramName = this.partnerShortCode + "_total_surveys_" + surveySalesforceName;
-            MetricParameter parameter = new MetricParameter(
-                    paramName,
-                    surveyId,
-                    null,
-                    "number",
-                    "sum",
-                    null,
-                    null,
-                    0,
-                    "N",
-                    null
-            );
-            this.parameterMap.put(paramName, parameter);
-            Iterator<String> iter = subDividers.iterator();
-            while (iter.hasNext()) {
-                String subDivider = iter.next();
-
-                if (!subDivider.equals("total")) {
-                     String metricLabel = paramName + "_" + subDivider;
-                    MetricCalculation metricCalculation = this.calcualtionMap.get(metricLabel);
-                    if (metricCalculation == null) {
-                        metricCalculation = new MetricCalculation(subDivider, paramName, paramName);
+                Integer surveyId = resultSet.getInt("surveyId");
+                String surveySalesforceName = resultSet.getString("surveySalesforceId");
+                InterviewerMap.getTotalSubmissions(surveyId, null);
+                Set<String> subDividers = InterviewerMap.getSubmissionKeySet(surveyId.toString());
+                if (subDividers == null) {
+                    continue;
+                }
+
+                // Create the metric parameter
+                String paramName = this.partnerShortCode + "_total_surveys_" + surveySalesforceName;
+                MetricParameter parameter = new MetricParameter(
+                        paramName,
+                        surveyId,
+                        null,
+                        "number",
+                        "sum",
+                        null,
+                        null,
+                        0,
+                        "N",
+                        null
+                );
+                this.parameterMap.put(paramName, parameter);
+                Iterator<String> iter = subDividers.iterator();
+                while (iter.hasNext()) {
+                    String subDivider = iter.next();
+
+                    if (!subDivider.equals("total")) {
+                         String metricLabel = paramName + "_" + subDivider;
+                        MetricCalculation metricCalculation = this.calcualtionMap.get(metricLabel);
+                        if (metricCalculation == null) {
+                            metricCalculation = new MetricCalculation(subDivider, paramName, paramName);
+                        }
+                        metricCalculation.setNeedsUpdate(true);
+                        this.calcualtionMap.put(metricLabel, parameter.updateCalculation(metricCalculation, InterviewerMap.getTotalSubmissions(surveyId, subDivider).toString()));
                     }
-                    metricCalculation.setNeedsUpdate(true);
-                    this.calcualtionMap.put(metricLabel, parameter.updateCalculation(metricCalculation, InterviewerMap.getTotalSubmissions(surveyId, subDivider).toString()));
                 }
-            }
-            MetricCalculation total = this.totalCalcualtionMap.get(paramName);
-            if (total == null) {
-                total = new MetricCalculation(null, paramName, paramName);
-            }
-            total.setNeedsUpdate(true);
-            this.totalCalcualtionMap.put(paramName, parameter.updateCalculation(total, InterviewerMap.getTotalSubmissions(surveyId, "total").toString()));
-        } while (resultSet.next());
+                MetricCalculation total = this.totalCalcualtionMap.get(paramName);
+                if (total == null) {
+                    total = new MetricCalculation(null, paramName, paramName);
+                }
+                total.setNeedsUpdate(true);
+                this.totalCalcualtionMap.put(paramName, parameter.updateCalculation(total, InterviewerMap.getTotalSubmissions(surveyId, "total").toString()));
+            } while (resultSet.next());
+        }
+        finally {
+            resultSet.close();
+        }
     }
 
     /**
@@ -507,34 +875,55 @@ System.out.println("CREATING NEW TOTAL " + entry.getKey());
      */
     private void populateMetricMap() throws RemoteException, ServiceException, SQLException {
 
-        // Get all the metrics that have currently been created in Salesforce
-        if (this.partnerName == null) {
-            this.partnerName = DatabaseHelpers.getPartnerName(this.dashboardId);
-        }
-        QueryResult result = SalesforceProxy.getSalesforceObjects(getMetricsSalesforceQueryString(this.partnerName));
-        Boolean moreRows = true;
-        if (result.getSize() > 0) {
-            while (moreRows) {
-                SObject[] datas = result.getRecords();
-                for (int i = 0; i < datas.length; i++) {
-                    M_E_Metric__c metric = (M_E_Metric__c)datas[i];
-                    this.metricMap.put(metric.getName(), metric);
-                }
-                if (result.isDone()) {
-                    moreRows = false;
+        Trace.Span span = Trace.begin("Dashboard.populateMetricMap");
+        try {
+
+            // Nothing is going to Salesforce so the metrics only need their names
+            if (MetricSinks.isOffline()) {
+                for (String name : getMetricNameList()) {
+                    M_E_Metric__c metric = new M_E_Metric__c();
+                    metric.setName(name);
+                    this.metricMap.put(name, metric);
                 }
-                else {
-                    result = SalesforceProxy.getSalesforceObjectsMore(result.getQueryLocator());
+                return;
+            }
+
+            // Get all the metrics that have currently been created in Salesforce
+            if (this.partnerName == null) {
+                this.partnerName = DatabaseHelpers.getPartnerName(this.dashboardId);
+            }
+            QueryResult result = SalesforceProxy.getSalesforceObjects(getMetricsSalesforceQueryString(this.partnerName));
+            Boolean moreRows = true;
+            if (result.getSize() > 0) {
+                while (moreRows) {
+                    SObject[] datas = result.getRecords();
+                    for (int i = 0; i < datas.length; i++) {
+                        M_E_Metric__c metric = (M_E_Metric__c)datas[i];
+                        this.metricMap.put(metric.getName(), metric);
+                    }
+                    if (result.isDone()) {
+                        moreRows = false;
+                    }
+                    else {
+                        result = SalesforceProxy.getSalesforceObjectsMore(result.getQueryLocator());
+                    }
                 }
             }
         }
+        finally {
+            Trace.end(span);
+        }
     }
 
     /**
-     * Get all the metric datas for this dashboard and add them to the relevant MetricCalculation
+     * Get all the metric datas for this dashboard and add them to the relevant MetricCalculation. Offline runs write
+     * every data as new so there is nothing to get
      */
     private void getMetricDatas() throws RemoteException, ServiceException, SQLException {
 
+        if (MetricSinks.isOffline()) {
+            return;
+        }
         if (this.partnerName == null) {
             this.partnerName = DatabaseHelpers.getPartnerName(this.dashboardId);
         }
@@ -668,6 +1057,15 @@ System.out.println("CREATING NEW TOTAL " + entry.getKey());
      * @return - String of the names suitable for an SQL or SOQL query.
      */
     private String getMetricNames() {
+        return Utils.generateCommaSeparatedString(getMetricNameList(), true);
+    }
+
+    /**
+     * Gets the names of the available metrics including the lickert scale
+     *
+     * @return - The names
+     */
+    private ArrayList<String> getMetricNameList() {
 
         ArrayList<String> metricNames = new ArrayList<String>();
         for (Entry<String, MetricParameter> entry : this.parameterMap.entrySet()) {
@@ -681,6 +1079,49 @@ System.out.println("CREATING NEW TOTAL " + entry.getKey());
             }
         }
         metricNames.addAll(this.parameterMap.keySet());
-        return Utils.generateCommaSeparatedString(metricNames, true);
+        return metricNames;
+    }
+
+    /**
+     * The calculations worked out for a single metric, or a range of submissions for a metric, before they are added
+     * into the dashboard. Lets metrics and ranges be calculated side by side without sharing any maps.
+     */
+    static class MetricResult {
+
+        private MetricParameter parameter;
+        private HashMap<String, MetricCalculation> calculations;
+        private HashMap<String, MetricCalculation> totals;
+
+        // Submissions that answered the question. Only used if the metric only counts submissions that answered
+        private HashMap<String, Double> answeredTotals;
+
+        public MetricResult(MetricParameter parameter) {
+            this.parameter = parameter;
+            this.calculations = new HashMap<String, MetricCalculation>();
+            this.totals = new HashMap<String, MetricCalculation>();
+            this.answeredTotals = new HashMap<String, Double>();
+        }
+
+        public void addToAnsweredTotal(String subDivider, Double total) {
+
+            if (this.answeredTotals.containsKey(subDivider)) {
+                this.answeredTotals.put(subDivider, this.answeredTotals.get(subDivider) + total);
+            }
+            else {
+                this.answeredTotals.put(subDivider, total);
+            }
+        }
+
+        /**
+         * Add the calculations for another range of the same metric into this one
+         */
+        public void merge(MetricResult other) {
+
+            mergeCalculations(this.calculations, other.calculations);
+            mergeCalculations(this.totals, other.totals);
+            for (Entry<String, Double> entry : other.answeredTotals.entrySet()) {
+                addToAnsweredTotal(entry.getKey(), entry.getValue());
+            }
+        }
     }
 }
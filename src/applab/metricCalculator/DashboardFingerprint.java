@@ -0,0 +1,267 @@
+package applab.metricCalculator;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * A fingerprint of everything that goes into calculating a dashboard. If the fingerprint has not changed since the
+ * dashboard was last calculated successfully then there is no point calculating it again.
+ *
+ * The fingerprint is made up of:
+ *     The max submission id, max handset_submit_time and submission count this quarter for each survey linked to the dashboard.
+ *     These only go up to the snapshot for the run so the fingerprint matches the submissions the dashboard was calculated from
+ *     A hash of the dashboard and metricparameter rows
+ *     The roster version from the InterviewerMap
+ *     The quarter being calculated
+ *     Whether inactive metric parameters are being calculated (allowInactive), as that changes which metrics are uploaded
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class DashboardFingerprint {
+
+    // How often a dashboard is skipped as unchanged. Shown on the status page
+    private static final CacheStats fingerprintCache = CacheStats.register("dashboardFingerprints");
+
+    private int dashboardId;
+    private String fingerprint;
+
+    // Total submissions this quarter across all the surveys for the dashboard
+    private long submissionCount;
+
+    // How many submissions have arrived since the fingerprint was last stored
+    private long newSubmissions;
+
+    public DashboardFingerprint(int dashboardId, String fingerprint, long submissionCount) {
+        this.dashboardId = dashboardId;
+        this.fingerprint = fingerprint;
+        this.submissionCount = submissionCount;
+        this.newSubmissions = submissionCount;
+    }
+
+    public int getDashboardId() {
+        return this.dashboardId;
+    }
+
+    public String getFingerprint() {
+        return this.fingerprint;
+    }
+
+    public long getSubmissionCount() {
+        return this.submissionCount;
+    }
+
+    public long getNewSubmissions() {
+        return this.newSubmissions;
+    }
+
+    /**
+     * Work out which of the given dashboards need calculating.
+     *
+     * @param dashboardIds - The ids of the dashboards in this run
+     * @param force        - Include dashboards even if they have not changed
+     * @param activeOnly   - Only active metric parameters are being calculated
+     *
+     * @return - The fingerprints of the dashboards that need calculating. Ordered by the most new submissions first
+     */
+    public static ArrayList<DashboardFingerprint> findChangedDashboards(ArrayList<Integer> dashboardIds, Boolean force, Boolean activeOnly) throws SQLException {
+
+        createTable();
+        HashMap<Integer, DashboardFingerprint> storedFingerprints = loadStoredFingerprints();
+        ArrayList<DashboardFingerprint> changed = new ArrayList<DashboardFingerprint>();
+        for (Integer dashboardId : dashboardIds) {
+            DashboardFingerprint fingerprint = calculate(dashboardId, activeOnly);
+            DashboardFingerprint stored = storedFingerprints.get(dashboardId);
+            if (stored != null) {
+                if (!force && stored.getFingerprint().equals(fingerprint.getFingerprint())) {
+                    Log.info("dashboardSkipped", "Skipping dashboard with id: " + dashboardId + " as nothing has changed since it was last calculated");
+                    RunSummary.addSkipped(dashboardId);
+                    fingerprintCache.hit();
+                    continue;
+                }
+                fingerprint.newSubmissions = Math.max(0, fingerprint.submissionCount - stored.submissionCount);
+            }
+            fingerprintCache.miss();
+            changed.add(fingerprint);
+        }
+
+        // Get the dashboards with the most new data done first
+        Collections.sort(changed, new Comparator<DashboardFingerprint>() {
+            public int compare(DashboardFingerprint first, DashboardFingerprint second) {
+                if (first.newSubmissions == second.newSubmissions) {
+                    return 0;
+                }
+                return first.newSubmissions > second.newSubmissions ? -1 : 1;
+            }
+        });
+        return changed;
+    }
+
+    /**
+     * Calculate the current fingerprint for a dashboard
+     *
+     * @param dashboardId - The id of the dashboard
+     * @param activeOnly  - Only active metric parameters are being calculated
+     *
+     * @return - The fingerprint
+     */
+    public static DashboardFingerprint calculate(int dashboardId, Boolean activeOnly) throws SQLException {
+
+        StringBuilder fingerprint = new StringBuilder();
+        long submissionCount = 0;
+
+        // Add the submission high water marks for each survey
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getSurveyHighWaterMarkQuery(dashboardId));
+        while (resultSet.next()) {
+            fingerprint.append(resultSet.getInt("surveyId"));
+            fingerprint.append(":");
+            fingerprint.append(resultSet.getLong("maxId"));
+            fingerprint.append(":");
+            fingerprint.append(resultSet.getString("maxTime"));
+            fingerprint.append(":");
+            fingerprint.append(resultSet.getLong("total"));
+            fingerprint.append(";");
+            submissionCount += resultSet.getLong("total");
+        }
+        resultSet.close();
+
+        // Add the set up of the dashboard
+        appendRows(fingerprint, DatabaseHelpers.executeSelectQuery(getDashboardSetupQuery(dashboardId)));
+        appendRows(fingerprint, DatabaseHelpers.executeSelectQuery(getParameterSetupQuery(dashboardId)));
+
+        fingerprint.append("roster:" + InterviewerMap.getRosterVersion() + ";");
+        fingerprint.append("quarter:" + Utils.getQuarterDate(InterviewerMap.getTime(), true, false, true) + ";");
+        fingerprint.append("activeOnly:" + activeOnly);
+        return new DashboardFingerprint(dashboardId, Utils.md5Hex(fingerprint.toString()), submissionCount);
+    }
+
+    /**
+     * Save the fingerprint. Should only be called once the dashboard has been calculated and uploaded successfully
+     */
+    public void store() throws SQLException {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("INSERT INTO ");
+        commandText.append(DatabaseHelpers.DASHBOARD_FINGERPRINT_TABLE);
+        commandText.append(" (dashboard_id, fingerprint, submission_count, updated) VALUES (");
+        commandText.append(this.dashboardId + ", ");
+        commandText.append("'" + this.fingerprint + "', ");
+        commandText.append(this.submissionCount + ", ");
+        commandText.append("NOW()) ");
+        commandText.append("ON DUPLICATE KEY UPDATE ");
+        commandText.append("fingerprint = VALUES(fingerprint), ");
+        commandText.append("submission_count = VALUES(submission_count), ");
+        commandText.append("updated = VALUES(updated)");
+        DatabaseHelpers.executeUpdateQuery(commandText.toString());
+    }
+
+    /**
+     * Add every column of every row in a result set to the fingerprint
+     */
+    private static void appendRows(StringBuilder fingerprint, ResultSet resultSet) throws SQLException {
+
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        while (resultSet.next()) {
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                fingerprint.append(resultSet.getString(i));
+                fingerprint.append("|");
+            }
+            fingerprint.append(";");
+        }
+        resultSet.close();
+    }
+
+    private static HashMap<Integer, DashboardFingerprint> loadStoredFingerprints() throws SQLException {
+
+        HashMap<Integer, DashboardFingerprint> fingerprints = new HashMap<Integer, DashboardFingerprint>();
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("dashboard_id, ");
+        commandText.append("fingerprint, ");
+        commandText.append("submission_count ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.DASHBOARD_FINGERPRINT_TABLE);
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(commandText.toString());
+        while (resultSet.next()) {
+            fingerprints.put(resultSet.getInt("dashboard_id"), new DashboardFingerprint(
+                    resultSet.getInt("dashboard_id"),
+                    resultSet.getString("fingerprint"),
+                    resultSet.getLong("submission_count")
+            ));
+        }
+        resultSet.close();
+        return fingerprints;
+    }
+
+    private static void createTable() throws SQLException {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("CREATE TABLE IF NOT EXISTS ");
+        commandText.append(DatabaseHelpers.DASHBOARD_FINGERPRINT_TABLE);
+        commandText.append(" (");
+        commandText.append("dashboard_id INT NOT NULL PRIMARY KEY, ");
+        commandText.append("fingerprint CHAR(32) NOT NULL, ");
+        commandText.append("submission_count BIGINT NOT NULL, ");
+        commandText.append("updated DATETIME NOT NULL");
+        commandText.append(")");
+        DatabaseHelpers.executeUpdateQuery(commandText.toString());
+    }
+
+    /**
+     * Build the query that gets the latest submission for each survey used by the dashboard this quarter
+     *
+     * @param dashboardId - The id of the dashboard
+     *
+     * @return - The query string
+     */
+    private static String getSurveyHighWaterMarkQuery(int dashboardId) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("ds.survey_id AS surveyId, ");
+        commandText.append("MAX(s.id) AS maxId, ");
+        commandText.append("MAX(s.handset_submit_time) AS maxTime, ");
+        commandText.append("COUNT(s.id) AS total ");
+        commandText.append("FROM (");
+        commandText.append("SELECT survey_id FROM " + DatabaseHelpers.DASHBOARD_SURVEY_TABLE + " WHERE dashboard_id = " + dashboardId);
+        commandText.append(" UNION ");
+        commandText.append("SELECT survey_id FROM " + DatabaseHelpers.METRIC_PARAMETER_TABLE + " WHERE dashboard_id = " + dashboardId);
+        commandText.append(") ds ");
+        commandText.append("LEFT JOIN ");
+        commandText.append(DatabaseHelpers.SUBMISSION_TABLE + " s ");
+        commandText.append("ON s.survey_id = ds.survey_id ");
+        commandText.append(DatabaseHelpers.getQuarterStartEndParameter());
+        commandText.append("GROUP BY ds.survey_id ");
+        commandText.append("ORDER BY ds.survey_id");
+        return commandText.toString();
+    }
+
+    private static String getDashboardSetupQuery(int dashboardId) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("* ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.DASHBOARD_TABLE);
+        commandText.append(" WHERE ");
+        commandText.append("id = " + dashboardId);
+        return commandText.toString();
+    }
+
+    private static String getParameterSetupQuery(int dashboardId) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("* ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.METRIC_PARAMETER_TABLE);
+        commandText.append(" WHERE ");
+        commandText.append("dashboard_id = " + dashboardId);
+        commandText.append(" ORDER BY id");
+        return commandText.toString();
+    }
+}
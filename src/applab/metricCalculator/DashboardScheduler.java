@@ -0,0 +1,192 @@
+package applab.metricCalculator;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map.Entry;
+
+/**
+ * Decides the order that the dashboards in a multi dashboard run are calculated in so that one partner with lots of
+ * heavy dashboards cannot hold everyone else up until the end of the run.
+ *
+ * Uses weighted fair queuing across partners. Each partner has a virtual clock that moves on by the cost of each of its
+ * dashboards divided by the weight of the partner. The next dashboard is always taken from the partner whose clock would
+ * be lowest after running it. The cost of a dashboard is the number of submissions it covers this quarter.
+ * Within a partner the dashboards keep the order they were given in. Dashboards given as first go ahead of every other
+ * partner's dashboards, e.g. the ones that ran out of time in the last run.
+ *
+ * A partner can also be capped to a number of dashboards in the run at the same time. A dashboard counts against the
+ * cap from when it is handed out until it has been uploaded or dropped by the MetricPipeline, so a partner cannot fill
+ * the pipeline and hold all the DB and Salesforce capacity.
+ *
+ * Config items used:
+ *     partnerWeight.<partnerId>  - The weight for a partner. Default 1
+ *     partnerMaxConcurrent       - Max dashboards per partner being calculated, diffed or uploaded at once. Default 4
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class DashboardScheduler {
+
+    // The dashboards waiting to be calculated for each partner. Key is partner id
+    private LinkedHashMap<Integer, LinkedList<DashboardFingerprint>> partnerQueues;
+
+    // Virtual clock for each partner. Key is partner id
+    private HashMap<Integer, Double> partnerClocks;
+
+    // How many dashboards are in the run for each partner. Key is partner id
+    private HashMap<Integer, Integer> partnerRunning;
+
+    // Dashboards that go ahead of the fair queuing
+    private HashSet<Integer> firstDashboards;
+
+    // The dashboards that have been handed out and not finished yet
+    private HashSet<Integer> runningDashboards;
+
+    // Which partner each dashboard belongs to. Key is dashboard id
+    private HashMap<Integer, Integer> dashboardPartners;
+
+    private int maxConcurrent;
+
+    // Set when the run has been given up on so nothing else is handed out
+    private Boolean stopped;
+
+    /**
+     * Constructor
+     *
+     * @param dashboards      - The dashboards to calculate in the order they would be run without fair queuing
+     * @param firstDashboards - The ids of the dashboards to hand out before any others. Can be empty
+     */
+    public DashboardScheduler(ArrayList<DashboardFingerprint> dashboards, ArrayList<Integer> firstDashboards) throws SQLException {
+
+        this.partnerQueues = new LinkedHashMap<Integer, LinkedList<DashboardFingerprint>>();
+        this.partnerClocks = new HashMap<Integer, Double>();
+        this.partnerRunning = new HashMap<Integer, Integer>();
+        this.runningDashboards = new HashSet<Integer>();
+        this.firstDashboards = new HashSet<Integer>(firstDashboards);
+        this.dashboardPartners = new HashMap<Integer, Integer>();
+        this.maxConcurrent = Math.max(1, Integer.valueOf(Configuration.getConfiguration("partnerMaxConcurrent", "4")));
+        this.stopped = false;
+        add(dashboards);
+    }
+
+    /**
+     * Add more dashboards to the end of their partners' queues e.g. dashboards that ran out of time and are being tried again
+     *
+     * @param dashboards - The dashboards to add
+     */
+    public void add(ArrayList<DashboardFingerprint> dashboards) throws SQLException {
+
+        ArrayList<Integer> dashboardIds = new ArrayList<Integer>();
+        for (DashboardFingerprint dashboard : dashboards) {
+            dashboardIds.add(dashboard.getDashboardId());
+        }
+        HashMap<Integer, Integer> partners = DatabaseHelpers.getDashboardPartnerIds(dashboardIds);
+        synchronized (this) {
+            this.dashboardPartners.putAll(partners);
+            for (DashboardFingerprint dashboard : dashboards) {
+                Integer partnerId = getPartnerId(dashboard.getDashboardId());
+                if (!this.partnerQueues.containsKey(partnerId)) {
+                    this.partnerQueues.put(partnerId, new LinkedList<DashboardFingerprint>());
+                    this.partnerClocks.put(partnerId, 0.0);
+                    this.partnerRunning.put(partnerId, 0);
+                }
+                this.partnerQueues.get(partnerId).add(dashboard);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Get the next dashboard to calculate. Waits if the only dashboards left belong to partners that are at their cap.
+     * The dashboard counts against its partner's cap until finished() is called for it.
+     *
+     * @return - The next dashboard or null if there are none left or the scheduler has been stopped
+     */
+    public synchronized DashboardFingerprint next() throws InterruptedException {
+
+        while (!this.stopped) {
+            Integer bestPartner = null;
+            Double bestFinish = null;
+            Boolean bestFirst = false;
+            Boolean anyWaiting = false;
+            for (Entry<Integer, LinkedList<DashboardFingerprint>> entry : this.partnerQueues.entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    continue;
+                }
+                anyWaiting = true;
+                if (this.partnerRunning.get(entry.getKey()) >= this.maxConcurrent) {
+                    continue;
+                }
+                Double finish = this.partnerClocks.get(entry.getKey()) + getCost(entry.getValue().getFirst()) / getWeight(entry.getKey());
+                Boolean first = this.firstDashboards.contains(entry.getValue().getFirst().getDashboardId());
+                if (bestFinish == null || (first && !bestFirst) || (first.equals(bestFirst) && finish < bestFinish)) {
+                    bestFinish = finish;
+                    bestPartner = entry.getKey();
+                    bestFirst = first;
+                }
+            }
+            if (!anyWaiting) {
+                return null;
+            }
+            if (bestPartner != null) {
+                DashboardFingerprint dashboard = this.partnerQueues.get(bestPartner).removeFirst();
+                this.partnerClocks.put(bestPartner, bestFinish);
+                this.partnerRunning.put(bestPartner, this.partnerRunning.get(bestPartner) + 1);
+                this.runningDashboards.add(dashboard.getDashboardId());
+                return dashboard;
+            }
+            wait();
+        }
+        return null;
+    }
+
+    /**
+     * Tell the scheduler a dashboard is out of the run, either uploaded, dropped or found to have nothing to upload, so
+     * its partner can have another go. Dashboards that were not handed out by next() are ignored.
+     *
+     * @param dashboardId - The id of the dashboard
+     */
+    public synchronized void finished(int dashboardId) {
+
+        if (!this.runningDashboards.remove(dashboardId)) {
+            return;
+        }
+        Integer partnerId = getPartnerId(dashboardId);
+        this.partnerRunning.put(partnerId, this.partnerRunning.get(partnerId) - 1);
+        notifyAll();
+    }
+
+    /**
+     * Stop handing out dashboards. Anything waiting in next() gets null
+     */
+    public synchronized void stop() {
+
+        this.stopped = true;
+        notifyAll();
+    }
+
+    private Integer getPartnerId(int dashboardId) {
+
+        Integer partnerId = this.dashboardPartners.get(dashboardId);
+        if (partnerId == null) {
+            return -1;
+        }
+        return partnerId;
+    }
+
+    private Double getCost(DashboardFingerprint dashboard) {
+        return 1.0 + dashboard.getSubmissionCount();
+    }
+
+    private Double getWeight(Integer partnerId) {
+
+        Double weight = Double.valueOf(Configuration.getConfiguration("partnerWeight." + partnerId, "1"));
+        if (weight <= 0.0) {
+            return 1.0;
+        }
+        return weight;
+    }
+}
@@ -0,0 +1,94 @@
+package applab.metricCalculator;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import com.sforce.soap.enterprise.sobject.M_E_Metric_Data__c;
+
+/**
+ * The metric datas for one dashboard that are waiting to be uploaded.
+ * Only holds what the upload needs so the rest of the dashboard can be thrown away once its datas have been worked out.
+ * Each data can be labelled with its metric name and district as datas that already exist in Salesforce only carry ids.
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class DashboardUpload {
+
+    private int dashboardId;
+
+    // Stored once all the datas have been uploaded. Can be null
+    private DashboardFingerprint fingerprint;
+
+    private ArrayList<M_E_Metric_Data__c> datas;
+
+    // Keyed by the data object itself as the datas do not implement equals
+    private IdentityHashMap<M_E_Metric_Data__c, String> metricNames;
+    private IdentityHashMap<M_E_Metric_Data__c, String> districts;
+
+    public DashboardUpload(int dashboardId, DashboardFingerprint fingerprint, ArrayList<M_E_Metric_Data__c> datas) {
+        this.dashboardId = dashboardId;
+        this.fingerprint = fingerprint;
+        this.datas = datas;
+        this.metricNames = new IdentityHashMap<M_E_Metric_Data__c, String>();
+        this.districts = new IdentityHashMap<M_E_Metric_Data__c, String>();
+    }
+
+    public int getDashboardId() {
+        return this.dashboardId;
+    }
+
+    public DashboardFingerprint getFingerprint() {
+        return this.fingerprint;
+    }
+
+    public ArrayList<M_E_Metric_Data__c> getDatas() {
+        return this.datas;
+    }
+
+    /**
+     * Add a data along with what it is for
+     *
+     * @param data       - The data
+     * @param metricName - The name of the metric including any lickert suffix
+     * @param district   - The name of the district. Null for a total
+     */
+    public void addData(M_E_Metric_Data__c data, String metricName, String district) {
+
+        this.datas.add(data);
+        this.metricNames.put(data, metricName);
+        if (district != null) {
+            this.districts.put(data, district);
+        }
+    }
+
+    /**
+     * Get the name of the metric a data is for
+     *
+     * @param data - The data
+     *
+     * @return - The metric name. Null if the data was not added with addData
+     */
+    public String getMetricName(M_E_Metric_Data__c data) {
+        return this.metricNames.get(data);
+    }
+
+    /**
+     * Get the name of the district a data is for
+     *
+     * @param data - The data
+     *
+     * @return - The district name. Null for a total
+     */
+    public String getDistrict(M_E_Metric_Data__c data) {
+        return this.districts.get(data);
+    }
+
+    /**
+     * Let go of the datas once they have been uploaded
+     */
+    public void release() {
+        this.datas = null;
+        this.metricNames = null;
+        this.districts = null;
+    }
+}
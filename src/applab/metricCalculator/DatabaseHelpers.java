@@ -5,8 +5,10 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Class to deal with database interactions
@@ -24,11 +26,37 @@ public class DatabaseHelpers {
     final static String SURVEY_TABLE = "zebrasurvey";
     final static String SUBMISSION_TABLE = "zebrasurveysubmissions";
     final static String DASHBOARD_SURVEY_TABLE = "dashboardsurvey";
-    private static Connection connection;
+    final static String DASHBOARD_FINGERPRINT_TABLE = "dashboardfingerprint";
+    final static String INTERVIEWER_DIM_TABLE = "interviewer_dim";
+    final static String INTERVIEWER_DIM_SYNC_TABLE = "interviewer_dim_sync";
+    final static String ANSWER_ROLLUP_TABLE = "answer_rollup_daily";
+    final static String ANSWER_ROLLUP_STATE_TABLE = "answer_rollup_state";
+    final static String ANSWER_OPTION_TABLE = "answer_option";
+    final static String ANSWER_OPTION_STATE_TABLE = "answer_option_state";
+    final static String PARAMETER_COST_TABLE = "metric_parameter_cost";
+    final static String LOCAL_METRIC_DATA_TABLE = "metric_data_local";
+    // Each thread is given its own connection so that queries running side by side do not queue up behind each other.
+    // The threads come from fixed size pools so the number of connections is bounded by the number of threads
+    private static ThreadLocal<Connection> threadConnection = new ThreadLocal<Connection>();
+
+    // Every connection that has been opened so they can all be checked and closed
+    private static ArrayList<Connection> connections = new ArrayList<Connection>();
+
+    // Kept so that connections can be opened for new threads and re-opened by a long running process
+    private static String url;
+    private static String username;
+    private static String password;
+
+    // The time that the current piece of work has to finish by. Per thread so work running side by side can have its own budget
+    private static ThreadLocal<Long> deadline = new ThreadLocal<Long>();
+
+    // The highest submission id when the run started. Every submission query in the run stops here so queries on
+    // different connections all see the same submissions even though the phones are still uploading
+    private static volatile Long snapshotSubmissionId;
 
     /**
      * Constructor will create a connection to the DB.
-     * This will need to be improved to use connection pooling and non-persistent connections
+     * Other threads are given their own connection the first time they run a query
      *
      * @param databaseName - The name of the database being used
      * @param username     - The username for the database
@@ -42,24 +70,99 @@ public class DatabaseHelpers {
 
         // Make sure the JDBC driver is loaded into memory
         Class.forName(JDBC_DRIVER);
+        DatabaseHelpers.url = url;
+        DatabaseHelpers.username = username;
+        DatabaseHelpers.password = password;
         try {
-            connection = DriverManager.getConnection(url, username, password);
+            getConnection();
         }
         catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Get the connection for the current thread. Opens one if the thread does not have one yet
+     *
+     * @return - The connection
+     */
+    private static Connection getConnection() throws SQLException {
+
+        Connection connection = threadConnection.get();
+        if (connection == null || connection.isClosed()) {
+            connection = DriverManager.getConnection(url, username, password);
+            threadConnection.set(connection);
+            synchronized (connections) {
+                connections.add(connection);
+            }
+        }
+        return connection;
+    }
+
     public static void closeConnection() throws SQLException {
-        connection.close();
+
+        synchronized (connections) {
+            for (Connection connection : connections) {
+                connection.close();
+            }
+            connections.clear();
+        }
+    }
+
+    /**
+     * Close the connection for the current thread. Must be called by threads that are not going to be reused
+     */
+    public static void releaseConnection() {
+
+        Connection connection = threadConnection.get();
+        threadConnection.remove();
+        if (connection == null) {
+            return;
+        }
+        synchronized (connections) {
+            connections.remove(connection);
+        }
+        try {
+            connection.close();
+        }
+        catch (SQLException e) {
+            e.printStackTrace();
+        }
     }
 
     public static Boolean checkConnection() throws SQLException {
-        return connection.isClosed();
+        return getConnection().isClosed();
+    }
+
+    /**
+     * Make sure the connections are still usable. MySQL drops idle connections so a process that sits between runs needs to
+     * re-open them. Dead connections are closed so the thread that owns them opens a new one next time it needs it.
+     */
+    public static void ensureConnection() throws ClassNotFoundException, SQLException {
+
+        synchronized (connections) {
+            ArrayList<Connection> deadConnections = new ArrayList<Connection>();
+            for (Connection connection : connections) {
+                if (connection.isClosed() || !connection.isValid(10)) {
+                    deadConnections.add(connection);
+                }
+            }
+            for (Connection connection : deadConnections) {
+                Log.warn("reconnect", "Database connection has been lost. Reconnecting");
+                try {
+                    connection.close();
+                }
+                catch (SQLException e) {
+                    // Already gone
+                }
+                connections.remove(connection);
+            }
+        }
+        getConnection();
     }
 
     public static PreparedStatement getPreparedStatement(String query) throws SQLException {
-        return connection.prepareStatement(query);
+        return getConnection().prepareStatement(query);
     }
 
     /**
@@ -70,8 +173,19 @@ public class DatabaseHelpers {
      * @return - The result set
      */
     public static ResultSet executeSelectQuery(PreparedStatement statement) throws SQLException {
-        statement.executeQuery();
-        return statement.getResultSet();
+
+        statement.setQueryTimeout(getQueryTimeout());
+        long startTime = System.currentTimeMillis();
+        QueryLog.started();
+        try {
+            statement.executeQuery();
+        }
+        catch (SQLException e) {
+            QueryLog.recordFailure(statement.toString(), System.currentTimeMillis() - startTime, e);
+            throw translateTimeout(e, statement.toString());
+        }
+        QueryLog.executed(statement.toString(), System.currentTimeMillis() - startTime);
+        return TimedResultSet.wrap(statement.getResultSet(), null, statement.toString(), startTime);
     }
 
     /**
@@ -82,9 +196,217 @@ public class DatabaseHelpers {
      * @throws SQLException
      */
     public static ResultSet executeSelectQuery(String query) throws SQLException {
-        Statement selectStatement = connection.createStatement();
-        selectStatement.executeQuery(query);
-        return selectStatement.getResultSet();
+
+        // Worked out first as it throws if the deadline has passed and the statement would be left open
+        int timeout = getQueryTimeout();
+        Statement selectStatement = getConnection().createStatement();
+        selectStatement.setQueryTimeout(timeout);
+        long startTime = System.currentTimeMillis();
+        QueryLog.started();
+        try {
+            selectStatement.executeQuery(query);
+        }
+        catch (SQLException e) {
+            QueryLog.recordFailure(query, System.currentTimeMillis() - startTime, e);
+            selectStatement.close();
+            throw translateTimeout(e, query);
+        }
+        QueryLog.executed(query, System.currentTimeMillis() - startTime);
+
+        // The statement is closed when the result set is
+        return TimedResultSet.wrap(selectStatement.getResultSet(), selectStatement, query, startTime);
+    }
+
+    /**
+     * Get the plan for a query. Not timed so that explaining a slow query does not end up in the timings
+     *
+     * @param query - The query to explain
+     *
+     * @return - The EXPLAIN output. Closing it closes the statement
+     */
+    public static ResultSet explain(String query) throws SQLException {
+
+        Statement statement = getConnection().createStatement();
+        ResultSet resultSet;
+        try {
+            resultSet = statement.executeQuery("EXPLAIN " + query);
+        }
+        catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+        return TimedResultSet.wrap(resultSet, statement, null, 0);
+    }
+
+    /**
+     * Take the snapshot of the submissions that the run will work from. Should be called once at the start of each run
+     * before anything is read.
+     */
+    public static void startSnapshot() throws SQLException {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("MAX(id) AS maxId ");
+        commandText.append("FROM ");
+        commandText.append(SUBMISSION_TABLE);
+        snapshotSubmissionId = null;
+        ResultSet resultSet = executeSelectQuery(commandText.toString());
+        if (resultSet.next()) {
+            snapshotSubmissionId = resultSet.getLong("maxId");
+        }
+        resultSet.close();
+        Log.info("snapshot", "Working from submissions up to id: " + snapshotSubmissionId);
+    }
+
+    /**
+     * Get the highest submission id that the run can see
+     *
+     * @return - The id or null if no snapshot has been taken
+     */
+    public static Long getSnapshotSubmissionId() {
+        return snapshotSubmissionId;
+    }
+
+    /**
+     * Give the work on this thread a time budget. Any query that would run past the budget is cancelled
+     *
+     * @param budgetSeconds - How long the work has. 0 or less means no budget
+     */
+    public static void startDeadline(long budgetSeconds) {
+
+        if (budgetSeconds <= 0) {
+            deadline.remove();
+            return;
+        }
+        deadline.set(System.currentTimeMillis() + budgetSeconds * 1000);
+    }
+
+    public static void clearDeadline() {
+        deadline.remove();
+    }
+
+    /**
+     * Get the deadline for this thread so that it can be handed on to work done on other threads
+     *
+     * @return - The deadline in millis or null if there is no deadline
+     */
+    public static Long getDeadline() {
+        return deadline.get();
+    }
+
+    public static void setDeadline(Long end) {
+
+        if (end == null) {
+            deadline.remove();
+            return;
+        }
+        deadline.set(end);
+    }
+
+    /**
+     * Check that the work on this thread still has time left
+     */
+    public static void checkDeadline() throws DeadlineExceededException {
+
+        Long end = deadline.get();
+        if (end != null && System.currentTimeMillis() >= end) {
+            throw new DeadlineExceededException("Time budget has been used up");
+        }
+    }
+
+    /**
+     * Work out the timeout for the next query. This is the queryTimeoutSeconds config value, cut down if the budget
+     * for the current piece of work has less time left than that
+     *
+     * @return - The timeout in seconds. 0 means no timeout
+     */
+    private static int getQueryTimeout() throws DeadlineExceededException {
+
+        int timeout = Integer.valueOf(Configuration.getConfiguration("queryTimeoutSeconds", "1800"));
+        Long end = deadline.get();
+        if (end != null) {
+            long remaining = (end - System.currentTimeMillis() + 999) / 1000;
+            if (remaining <= 0) {
+                throw new DeadlineExceededException("Time budget has been used up");
+            }
+            if (timeout <= 0 || remaining < timeout) {
+                timeout = (int)remaining;
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * The driver cancels a statement that runs past its timeout. Turn that into a DeadlineExceededException so callers
+     * can tell it apart from a real failure
+     */
+    private static SQLException translateTimeout(SQLException e, String query) {
+
+        if (e instanceof SQLTimeoutException || "70100".equals(e.getSQLState())) {
+            return new DeadlineExceededException("Query cancelled as it ran out of time: " + query, e);
+        }
+        return e;
+    }
+
+    /**
+     * Executes an insert, update or DDL statement
+     *
+     * @param query - The query string
+     *
+     * @return - The number of rows affected
+     */
+    public static int executeUpdateQuery(String query) throws SQLException {
+
+        Statement statement = getConnection().createStatement();
+        int rows = statement.executeUpdate(query);
+        statement.close();
+        return rows;
+    }
+
+    /**
+     * Executes a set of insert or update statements so that either all of them or none of them take effect
+     *
+     * @param queries - The query strings in the order to run them
+     */
+    public static void executeUpdatesInTransaction(ArrayList<String> queries) throws SQLException {
+
+        Connection connection = getConnection();
+        connection.setAutoCommit(false);
+        Statement statement = connection.createStatement();
+        String query = null;
+        try {
+            for (int i = 0; i < queries.size(); i++) {
+                query = queries.get(i);
+                statement.setQueryTimeout(getQueryTimeout());
+                statement.executeUpdate(query);
+            }
+            connection.commit();
+        }
+        catch (SQLException e) {
+            connection.rollback();
+            throw translateTimeout(e, query);
+        }
+        finally {
+            statement.close();
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Get the String for the days in this quarter. Used for tables that are already grouped by day
+     *
+     * @param column - The column that holds the day
+     *
+     * @return - The string
+     */
+    public static String getQuarterDayParameter(String column) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append(" AND " + column + " >= '");
+        commandText.append(Utils.getQuarterDate(InterviewerMap.getTime(), true, false, true) + "' ");
+        commandText.append("AND " + column + " <= '");
+        commandText.append(Utils.getQuarterDate(InterviewerMap.getTime(), false, false, true) + "' ");
+        return commandText.toString();
     }
 
     /**
@@ -123,18 +445,26 @@ public class DatabaseHelpers {
      */
     public static int getDashboardIdFromName(String dashboardName, Boolean activeOnly) throws SQLException {
 
-        PreparedStatement statement = connection.prepareStatement(getDashboardIdQueryString(activeOnly));
-        statement.setString(1, dashboardName);
-        ResultSet rs = executeSelectQuery(statement);
-
-        // Check that we have the expected number of rows
-        int rowCount = getNumberOfRows(rs);
-        if (rowCount != 1) {
-            return -1;
+        PreparedStatement statement = getConnection().prepareStatement(getDashboardIdQueryString(activeOnly));
+        try {
+            statement.setString(1, dashboardName);
+            ResultSet rs = executeSelectQuery(statement);
+            try {
+
+                // Check that we have the expected number of rows
+                int rowCount = getNumberOfRows(rs);
+                if (rowCount != 1) {
+                    return -1;
+                }
+                return rs.getInt("id");
+            }
+            finally {
+                rs.close();
+            }
+        }
+        finally {
+            statement.close();
         }
-        int id = rs.getInt("id");
-        statement.close();
-        return id;
     }
 
     /**
@@ -147,18 +477,26 @@ public class DatabaseHelpers {
      */
     public static int getPartnerId(String partnerName, Boolean activeOnly) throws SQLException {
 
-        PreparedStatement statement = connection.prepareStatement(getPartnerIdQueryString(activeOnly));
-        statement.setString(1, partnerName);
-        ResultSet rs = executeSelectQuery(statement);
-
-        // Check that we have the expected number of rows
-        int rowCount = getNumberOfRows(rs);
-        if (rowCount != 1) {
-            // TODO - Handle this
+        PreparedStatement statement = getConnection().prepareStatement(getPartnerIdQueryString(activeOnly));
+        try {
+            statement.setString(1, partnerName);
+            ResultSet rs = executeSelectQuery(statement);
+            try {
+
+                // Check that we have the expected number of rows
+                int rowCount = getNumberOfRows(rs);
+                if (rowCount != 1) {
+                    // TODO - Handle this
+                }
+                return rs.getInt("id");
+            }
+            finally {
+                rs.close();
+            }
+        }
+        finally {
+            statement.close();
         }
-        int id = rs.getInt("id");
-        statement.close();
-        return id;
     }
 
     /**
@@ -269,17 +607,60 @@ public class DatabaseHelpers {
         if (activeOnly) {
             commandText.append(" AND active = 'Y'");
         }
-        Statement statement = connection.createStatement();
-        ResultSet rs = statement.executeQuery(commandText.toString());
+        ResultSet rs = executeSelectQuery(commandText.toString());
+        try {
 
-        // Loop through the record set to generate the array
-        while (rs.next()) {
-            ids.add(rs.getInt("id"));
+            // Loop through the record set to generate the array
+            while (rs.next()) {
+                ids.add(rs.getInt("id"));
+            }
+        }
+        finally {
+            rs.close();
         }
-        statement.close();
         return ids;
     }
 
+    /**
+     * Get the partner for each of a set of dashboards
+     *
+     * @param dashboardIds - The ids of the dashboards
+     *
+     * @return - Map of partner ids. Key is the dashboard id
+     */
+    public static HashMap<Integer, Integer> getDashboardPartnerIds(ArrayList<Integer> dashboardIds) throws SQLException {
+
+        HashMap<Integer, Integer> partnerIds = new HashMap<Integer, Integer>();
+        if (dashboardIds.isEmpty()) {
+            return partnerIds;
+        }
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("id, ");
+        commandText.append("partner_id ");
+        commandText.append("FROM ");
+        commandText.append(DASHBOARD_TABLE);
+        commandText.append(" WHERE ");
+        commandText.append("id IN (");
+        for (int i = 0; i < dashboardIds.size(); i++) {
+            if (i > 0) {
+                commandText.append(",");
+            }
+            commandText.append(dashboardIds.get(i));
+        }
+        commandText.append(")");
+        ResultSet rs = executeSelectQuery(commandText.toString());
+        try {
+            while (rs.next()) {
+                partnerIds.put(rs.getInt("id"), rs.getInt("partner_id"));
+            }
+        }
+        finally {
+            rs.close();
+        }
+        return partnerIds;
+    }
+
     /**
      * Generate the query string to get the metric parameters for a given dashboard
      *
@@ -325,7 +706,8 @@ public class DatabaseHelpers {
     }
 
     /**
-     * Get String to get the dates to only get this quarters data
+     * Get String to get the dates to only get this quarters data. Also limits the submissions to the snapshot for the run
+     * so that totals and counts worked out by different queries always match
      *
      * @return - The string
      */
@@ -336,6 +718,10 @@ public class DatabaseHelpers {
         commandText.append(Utils.getQuarterDate(InterviewerMap.getTime(), true, false, false) + "' ");
         commandText.append("AND s.handset_submit_time <= '");
         commandText.append(Utils.getQuarterDate(InterviewerMap.getTime(), false, false, false) + "' ");
+        Long snapshot = snapshotSubmissionId;
+        if (snapshot != null) {
+            commandText.append("AND s.id <= " + snapshot + " ");
+        }
         return commandText.toString();
     }
 }
\ No newline at end of file
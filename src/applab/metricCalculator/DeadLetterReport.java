@@ -0,0 +1,73 @@
+package applab.metricCalculator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * A CSV file of the metric datas that Salesforce would not take, so they can be looked at and fixed by hand rather than
+ * being sent again and again. Rows are added to the end of the file so it builds up across runs e.g.
+ *     2012-05-02 06:10:11,12,"P1_Avg_Farm_Size","Gulu","FIELD_CUSTOM_VALIDATION_EXCEPTION","Value must be positive",
+ * Totals have no district. The id is only set for datas that already exist in Salesforce.
+ *
+ * Config items used:
+ *     deadLetterFile - The file to add to. Default metric-dead-letters.csv
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class DeadLetterReport {
+
+    /**
+     * Add the failures from a batch to the report
+     *
+     * @param batch    - The batch the datas were sent in. Gives the dashboard, metric names and districts
+     * @param failures - The failures to add
+     * @param note     - Added to the end of each error. Can be null
+     */
+    public static synchronized void add(MetricOutbox.Batch batch, ArrayList<UpsertFailure> failures, String note) throws IOException {
+
+        if (failures.isEmpty()) {
+            return;
+        }
+        String fileName = Configuration.getConfiguration("deadLetterFile", "metric-dead-letters.csv");
+        Boolean newFile = !new File(fileName).exists();
+        String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+        BufferedWriter writer = new BufferedWriter(new FileWriter(fileName, true));
+        try {
+            if (newFile) {
+                writer.write("time,dashboard_id,metric_name,district,status_code,error,id\n");
+            }
+            for (UpsertFailure failure : failures) {
+                int index = batch.indexOf(failure.getData());
+                String error = note == null ? failure.getMessage() : failure.getMessage() + " " + note;
+                StringBuilder line = new StringBuilder();
+                line.append(time);
+                line.append("," + batch.getDashboardId());
+                line.append("," + csvString(index < 0 ? null : batch.getMetricName(index)));
+                line.append("," + csvString(index < 0 ? null : batch.getDistrict(index)));
+                line.append("," + csvString(failure.getStatusCode()));
+                line.append("," + csvString(error));
+                line.append("," + (failure.getData().getId() == null ? "" : failure.getData().getId()));
+                line.append("\n");
+                writer.write(line.toString());
+            }
+        }
+        finally {
+            writer.close();
+        }
+        RunSummary.addDeadLettered(failures.size());
+        Log.warn("deadLetter", failures.size() + " metric datas for dashboard " + batch.getDashboardId() + " added to " + fileName);
+    }
+
+    private static String csvString(String value) {
+
+        if (value == null) {
+            return "";
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,22 @@
+package applab.metricCalculator;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown when a query or a dashboard has run out of the time it was given.
+ * The query will have been cancelled by the time this is thrown.
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class DeadlineExceededException extends SQLException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExceededException(String reason) {
+        super(reason);
+    }
+
+    public DeadlineExceededException(String reason, Throwable cause) {
+        super(reason, cause);
+    }
+}
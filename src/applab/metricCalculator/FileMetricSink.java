@@ -0,0 +1,101 @@
+package applab.metricCalculator;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+import com.sforce.soap.enterprise.sobject.M_E_Metric_Data__c;
+
+/**
+ * Writes the metric datas to a CSV or JSON lines file rather than Salesforce. The file is written from scratch for
+ * each run and is buffered so writing it costs next to nothing next to the calculation.
+ *
+ * Each line has the dashboard id, metric name, district, quarter start, actual value and Salesforce id e.g.
+ *     12,"P1_Avg_Farm_Size","Gulu",2012-04-01,3.5,
+ *     {"dashboardId":12,"metricName":"P1_Avg_Farm_Size","district":"Gulu","quarterStart":"2012-04-01","actualValue":3.5,"id":null}
+ * Totals have no district. The id is only set for datas that already exist in Salesforce.
+ *
+ * Config items used:
+ *     metricSinkFile - The file to write to. Default metric-datas.csv or metric-datas.jsonl
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class FileMetricSink implements MetricSink {
+
+    private Boolean jsonLines;
+    private String fileName;
+    private BufferedWriter writer;
+    private SimpleDateFormat dateFormat;
+
+    /**
+     * @param jsonLines - Write JSON lines rather than CSV
+     */
+    public FileMetricSink(Boolean jsonLines) {
+        this.jsonLines = jsonLines;
+        this.fileName = Configuration.getConfiguration("metricSinkFile", jsonLines ? "metric-datas.jsonl" : "metric-datas.csv");
+        this.dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    }
+
+    public void open() {
+    }
+
+    public ArrayList<M_E_Metric_Data__c> write(DashboardUpload upload) throws IOException {
+
+        if (this.writer == null) {
+            this.writer = new BufferedWriter(new FileWriter(this.fileName), 1 << 16);
+            if (!this.jsonLines) {
+                this.writer.write("dashboard_id,metric_name,district,quarter_start,actual_value,id\n");
+            }
+        }
+        for (M_E_Metric_Data__c data : upload.getDatas()) {
+            Date quarterStart = data.getDate__c() == null ? Utils.getQuarterStartDate() : data.getDate__c();
+            if (this.jsonLines) {
+                StringBuilder line = new StringBuilder();
+                line.append("{\"dashboardId\":" + upload.getDashboardId());
+                line.append(",\"metricName\":" + Utils.jsonString(upload.getMetricName(data)));
+                line.append(",\"district\":" + Utils.jsonString(upload.getDistrict(data)));
+                line.append(",\"quarterStart\":" + Utils.jsonString(this.dateFormat.format(quarterStart)));
+                line.append(",\"actualValue\":" + data.getActual_Value__c());
+                line.append(",\"id\":" + Utils.jsonString(data.getId()));
+                line.append("}\n");
+                this.writer.write(line.toString());
+            }
+            else {
+                StringBuilder line = new StringBuilder();
+                line.append(upload.getDashboardId());
+                line.append("," + csvString(upload.getMetricName(data)));
+                line.append("," + csvString(upload.getDistrict(data)));
+                line.append("," + this.dateFormat.format(quarterStart));
+                line.append("," + (data.getActual_Value__c() == null ? "" : data.getActual_Value__c().toString()));
+                line.append("," + (data.getId() == null ? "" : data.getId()));
+                line.append("\n");
+                this.writer.write(line.toString());
+            }
+        }
+        return new ArrayList<M_E_Metric_Data__c>();
+    }
+
+    public ArrayList<M_E_Metric_Data__c> getPending(DashboardUpload upload) {
+        return new ArrayList<M_E_Metric_Data__c>();
+    }
+
+    public void close() throws IOException {
+
+        if (this.writer != null) {
+            this.writer.close();
+            this.writer = null;
+            Log.info("metricSinkFile", "Metric datas written to " + this.fileName);
+        }
+    }
+
+    private static String csvString(String value) {
+
+        if (value == null) {
+            return "";
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,475 @@
+package applab.metricCalculator;
+
+import java.rmi.RemoteException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.TimeZone;
+
+import javax.xml.rpc.ServiceException;
+
+import com.sforce.soap.enterprise.QueryResult;
+import com.sforce.soap.enterprise.sobject.CKW__c;
+import com.sforce.soap.enterprise.sobject.District__c;
+import com.sforce.soap.enterprise.sobject.Person__c;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+/**
+ * Keeps a copy of the interviewer details from Salesforce in the interviewer_dim table so that submissions can be joined
+ * to districts in the DB. Metrics can then be grouped by district in MySQL and only the totals for each district have to
+ * come back to the calculator.
+ *
+ * There is one row per interviewer id as it appears in the submissions. CKW ids are stored against the person they belong
+ * to so the CKW to person switcheroo is done once here rather than for every answer. Interviewers that cannot be found in
+ * Salesforce are stored with no district so they are not looked up again.
+ *
+ * The table is kept up to date incrementally. Each sync:
+ *     Updates the rows for any Person__c, CKW__c or District__c that has changed in Salesforce since the last sync
+ *     Looks up any interviewer ids in the submissions since the last sync that are not in the table yet
+ * The interviewer_dim_sync table remembers when the last sync was and the last submission id it looked at, so only the
+ * new submissions are read.
+ *
+ * Config items used:
+ *     useInterviewerDim        - Y to sync the table and use it to group metrics by district in the DB. Default N
+ *     salesforceQueryBatchSize - How many interviewer ids to look up in each Salesforce query. Default 200
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class InterviewerDimension {
+
+    // How far back before the last sync to look for changes in case the clocks here and in Salesforce do not agree
+    private static final long CLOCK_SKEW_MILLIS = 10 * 60 * 1000;
+
+    private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+    // Set once the table has been synced in this process
+    private static volatile Boolean synced = false;
+
+    /**
+     * Is the calculator set up to use the interviewer_dim table
+     *
+     * @return - True if metrics should be grouped by district in the DB
+     */
+    public static Boolean isEnabled() {
+        return Configuration.getConfiguration("useInterviewerDim", "N").equals("Y");
+    }
+
+    /**
+     * Can the table be used for this run. Only true once the table has been synced so a failed sync falls back to
+     * working the districts out in the calculator.
+     *
+     * @return - True if the table can be joined to
+     */
+    public static Boolean isReady() {
+        return isEnabled() && synced;
+    }
+
+    /**
+     * Bring the table up to date with Salesforce. Should be called at the start of a run after the snapshot has been taken
+     */
+    public static void sync() throws SQLException, RemoteException, ServiceException {
+
+        synced = false;
+        createTables();
+        Date syncStart = new Date(System.currentTimeMillis() - CLOCK_SKEW_MILLIS);
+        String lastSync = null;
+        long lastSubmissionId = 0;
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getLastSyncQuery());
+        try {
+            if (resultSet.next()) {
+                lastSync = resultSet.getString("last_sync");
+                lastSubmissionId = resultSet.getLong("last_submission_id");
+            }
+        }
+        finally {
+            resultSet.close();
+        }
+        if (lastSync != null) {
+            updateChangedDistricts(lastSync);
+            updateChangedPeople(lastSync);
+            updateChangedCkws(lastSync);
+        }
+
+        // Without a snapshot there is no safe place to stop so everything after the last sync is read and the state
+        // stays where it was
+        Long snapshot = DatabaseHelpers.getSnapshotSubmissionId();
+        addNewInterviewers(lastSubmissionId, snapshot);
+        setLastSync(syncStart, snapshot == null ? lastSubmissionId : Math.max(lastSubmissionId, snapshot));
+        synced = true;
+    }
+
+    /**
+     * Look up the interviewer ids that are in the new submissions but not in the table yet
+     *
+     * @param fromId - Only submissions after this id are read
+     * @param toId   - The last submission id to read. Null to read to the end
+     */
+    private static void addNewInterviewers(long fromId, Long toId) throws SQLException, RemoteException, ServiceException {
+
+        ArrayList<String> personIds = new ArrayList<String>();
+        ArrayList<String> ckwIds = new ArrayList<String>();
+        ArrayList<String> otherIds = new ArrayList<String>();
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getNewInterviewerQuery(fromId, toId));
+        while (resultSet.next()) {
+            String interviewerId = resultSet.getString("interviewer_id").toUpperCase();
+            if (interviewerId.startsWith("CKW")) {
+                ckwIds.add(interviewerId);
+            }
+            else if (interviewerId.startsWith("PERSON")) {
+                personIds.add(interviewerId);
+            }
+            else {
+                otherIds.add(interviewerId);
+            }
+        }
+        resultSet.close();
+        Log.info("interviewerDimension", "Adding " + (personIds.size() + ckwIds.size() + otherIds.size()) + " new interviewers to " + DatabaseHelpers.INTERVIEWER_DIM_TABLE);
+
+        int batchSize = Integer.valueOf(Configuration.getConfiguration("salesforceQueryBatchSize", "200"));
+        PreparedStatement statement = DatabaseHelpers.getPreparedStatement(getUpsertRowQuery());
+        try {
+            for (int i = 0; i < personIds.size(); i += batchSize) {
+                ArrayList<String> batch = new ArrayList<String>(personIds.subList(i, Math.min(i + batchSize, personIds.size())));
+                QueryResult result = SalesforceProxy.getSalesforceObjects(getPersonQuery("Name IN (" + Utils.generateCommaSeparatedString(batch, true) + ")"));
+                for (SObject record : getAllRecords(result)) {
+                    Person__c person = (Person__c)record;
+                    String personId = person.getName().toUpperCase();
+                    addPersonRow(statement, personId, personId, person);
+                    batch.remove(personId);
+                }
+
+                // Anyone left was not found. Keep them so they are not looked up every run. They are filled in if they turn up later
+                for (String personId : batch) {
+                    addRow(statement, personId, personId, null, null, null);
+                }
+                statement.executeBatch();
+            }
+            for (int i = 0; i < ckwIds.size(); i += batchSize) {
+                ArrayList<String> batch = new ArrayList<String>(ckwIds.subList(i, Math.min(i + batchSize, ckwIds.size())));
+                QueryResult result = SalesforceProxy.getSalesforceObjects(getCkwQuery("Name IN (" + Utils.generateCommaSeparatedString(batch, true) + ")"));
+                for (SObject record : getAllRecords(result)) {
+                    CKW__c ckw = (CKW__c)record;
+                    String personId = ckw.getPerson__r() == null ? null : ckw.getPerson__r().getName().toUpperCase();
+                    addPersonRow(statement, ckw.getName().toUpperCase(), personId, ckw.getPerson__r());
+                    batch.remove(ckw.getName().toUpperCase());
+                }
+                for (String ckwId : batch) {
+                    addRow(statement, ckwId, null, null, null, null);
+                }
+                statement.executeBatch();
+            }
+            for (String otherId : otherIds) {
+                addRow(statement, otherId, null, null, null, null);
+            }
+            statement.executeBatch();
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Update the details for everyone who has changed in Salesforce since the last sync
+     */
+    private static void updateChangedPeople(String lastSync) throws SQLException, RemoteException, ServiceException {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("UPDATE ");
+        commandText.append(DatabaseHelpers.INTERVIEWER_DIM_TABLE);
+        commandText.append(" SET ");
+        commandText.append("district = ?, ");
+        commandText.append("district_id = ?, ");
+        commandText.append("gender = ?, ");
+        commandText.append("updated = NOW() ");
+        commandText.append("WHERE ");
+        commandText.append("person_id = ?");
+        PreparedStatement statement = DatabaseHelpers.getPreparedStatement(commandText.toString());
+        try {
+            QueryResult result = SalesforceProxy.getSalesforceObjects(getPersonQuery("LastModifiedDate >= " + toSoqlDate(lastSync)));
+            for (SObject record : getAllRecords(result)) {
+                Person__c person = (Person__c)record;
+                setPersonDetails(statement, 1, person);
+                statement.setString(4, person.getName().toUpperCase());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Update the CKWs that have changed since the last sync. Picks up CKWs that have been moved to another person
+     */
+    private static void updateChangedCkws(String lastSync) throws SQLException, RemoteException, ServiceException {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("UPDATE ");
+        commandText.append(DatabaseHelpers.INTERVIEWER_DIM_TABLE);
+        commandText.append(" SET ");
+        commandText.append("district = ?, ");
+        commandText.append("district_id = ?, ");
+        commandText.append("gender = ?, ");
+        commandText.append("person_id = ?, ");
+        commandText.append("updated = NOW() ");
+        commandText.append("WHERE ");
+        commandText.append("interviewer_id = ?");
+        PreparedStatement statement = DatabaseHelpers.getPreparedStatement(commandText.toString());
+        try {
+            QueryResult result = SalesforceProxy.getSalesforceObjects(getCkwQuery("LastModifiedDate >= " + toSoqlDate(lastSync)));
+            for (SObject record : getAllRecords(result)) {
+                CKW__c ckw = (CKW__c)record;
+                setPersonDetails(statement, 1, ckw.getPerson__r());
+                statement.setString(4, ckw.getPerson__r() == null ? null : ckw.getPerson__r().getName().toUpperCase());
+                statement.setString(5, ckw.getName().toUpperCase());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Pick up districts that have been renamed since the last sync
+     */
+    private static void updateChangedDistricts(String lastSync) throws SQLException, RemoteException, ServiceException {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("UPDATE ");
+        commandText.append(DatabaseHelpers.INTERVIEWER_DIM_TABLE);
+        commandText.append(" SET ");
+        commandText.append("district = ?, ");
+        commandText.append("updated = NOW() ");
+        commandText.append("WHERE ");
+        commandText.append("district_id = ?");
+        PreparedStatement statement = DatabaseHelpers.getPreparedStatement(commandText.toString());
+        try {
+            QueryResult result = SalesforceProxy.getSalesforceObjects("SELECT Id, Name FROM District__c WHERE LastModifiedDate >= " + toSoqlDate(lastSync));
+            for (SObject record : getAllRecords(result)) {
+                District__c district = (District__c)record;
+                statement.setString(1, district.getName());
+                statement.setString(2, district.getId());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Add a row for an interviewer that has been found in Salesforce to the batch
+     */
+    private static void addPersonRow(PreparedStatement statement, String interviewerId, String personId, Person__c person) throws SQLException {
+
+        statement.setString(1, interviewerId);
+        statement.setString(2, personId);
+        setPersonDetails(statement, 3, person);
+        statement.addBatch();
+    }
+
+    private static void addRow(PreparedStatement statement, String interviewerId, String personId, String district, String districtId, String gender) throws SQLException {
+
+        statement.setString(1, interviewerId);
+        statement.setString(2, personId);
+        statement.setString(3, district);
+        statement.setString(4, districtId);
+        statement.setString(5, gender);
+        statement.addBatch();
+    }
+
+    /**
+     * Set the district, district id and gender for a person starting at the given parameter index. People without a
+     * district are stored with no district so they are left out of the metrics in the same way as the InterviewerMap does
+     */
+    private static void setPersonDetails(PreparedStatement statement, int index, Person__c person) throws SQLException {
+
+        if (person == null || person.getDistrict__c() == null || person.getDistrict__r() == null) {
+            statement.setNull(index, Types.VARCHAR);
+            statement.setNull(index + 1, Types.VARCHAR);
+        }
+        else {
+            statement.setString(index, person.getDistrict__r().getName());
+            statement.setString(index + 1, person.getDistrict__r().getId());
+        }
+        if (person == null || person.getGender__c() == null) {
+            statement.setNull(index + 2, Types.VARCHAR);
+        }
+        else {
+            statement.setString(index + 2, person.getGender__c());
+        }
+    }
+
+    /**
+     * Read every page of a Salesforce query result
+     */
+    private static ArrayList<SObject> getAllRecords(QueryResult result) throws RemoteException, ServiceException {
+
+        ArrayList<SObject> records = new ArrayList<SObject>();
+        if (result.getSize() == 0) {
+            return records;
+        }
+        while (true) {
+            SObject[] page = result.getRecords();
+            for (int i = 0; i < page.length; i++) {
+                records.add(page[i]);
+            }
+            if (result.isDone()) {
+                break;
+            }
+            result = SalesforceProxy.getSalesforceObjectsMore(result.getQueryLocator());
+        }
+        return records;
+    }
+
+    private static String getLastSyncQuery() {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("last_sync, ");
+        commandText.append("last_submission_id ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.INTERVIEWER_DIM_SYNC_TABLE);
+        commandText.append(" WHERE ");
+        commandText.append("id = 1");
+        return commandText.toString();
+    }
+
+    private static void setLastSync(Date syncStart, long lastSubmissionId) throws SQLException {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("INSERT INTO ");
+        commandText.append(DatabaseHelpers.INTERVIEWER_DIM_SYNC_TABLE);
+        commandText.append(" (id, last_sync, last_submission_id) VALUES (1, '");
+        commandText.append(getUtcFormat().format(syncStart));
+        commandText.append("', ");
+        commandText.append(lastSubmissionId);
+        commandText.append(") ");
+        commandText.append("ON DUPLICATE KEY UPDATE ");
+        commandText.append("last_sync = VALUES(last_sync), ");
+        commandText.append("last_submission_id = VALUES(last_submission_id)");
+        DatabaseHelpers.executeUpdateQuery(commandText.toString());
+    }
+
+    /**
+     * Turn a stored sync time into a SOQL date time literal
+     */
+    private static String toSoqlDate(String lastSync) {
+        return lastSync.substring(0, 10) + "T" + lastSync.substring(11, 19) + "Z";
+    }
+
+    private static SimpleDateFormat getUtcFormat() {
+
+        SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    private static void createTables() throws SQLException {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("CREATE TABLE IF NOT EXISTS ");
+        commandText.append(DatabaseHelpers.INTERVIEWER_DIM_TABLE);
+        commandText.append(" (");
+        commandText.append("interviewer_id VARCHAR(255) NOT NULL PRIMARY KEY, ");
+        commandText.append("person_id VARCHAR(255) NULL, ");
+        commandText.append("district VARCHAR(255) NULL, ");
+        commandText.append("district_id VARCHAR(18) NULL, ");
+        commandText.append("gender VARCHAR(40) NULL, ");
+        commandText.append("updated DATETIME NOT NULL, ");
+        commandText.append("KEY person_id (person_id), ");
+        commandText.append("KEY district_id (district_id)");
+        commandText.append(")");
+        DatabaseHelpers.executeUpdateQuery(commandText.toString());
+
+        commandText = new StringBuilder();
+        commandText.append("CREATE TABLE IF NOT EXISTS ");
+        commandText.append(DatabaseHelpers.INTERVIEWER_DIM_SYNC_TABLE);
+        commandText.append(" (");
+        commandText.append("id INT NOT NULL PRIMARY KEY, ");
+        commandText.append("last_sync DATETIME NOT NULL, ");
+        commandText.append("last_submission_id BIGINT NOT NULL DEFAULT 0");
+        commandText.append(")");
+        DatabaseHelpers.executeUpdateQuery(commandText.toString());
+    }
+
+    private static String getNewInterviewerQuery(long fromId, Long toId) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT DISTINCT ");
+        commandText.append("s.interviewer_id ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.SUBMISSION_TABLE + " s ");
+        commandText.append("LEFT JOIN ");
+        commandText.append(DatabaseHelpers.INTERVIEWER_DIM_TABLE + " d ");
+        commandText.append("ON d.interviewer_id = s.interviewer_id ");
+        commandText.append("WHERE ");
+        commandText.append("s.id > ");
+        commandText.append(fromId);
+        if (toId != null) {
+            commandText.append(" AND s.id <= ");
+            commandText.append(toId);
+        }
+        commandText.append(" AND d.interviewer_id IS NULL ");
+        commandText.append("AND s.interviewer_id IS NOT NULL");
+        return commandText.toString();
+    }
+
+    private static String getUpsertRowQuery() {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("INSERT INTO ");
+        commandText.append(DatabaseHelpers.INTERVIEWER_DIM_TABLE);
+        commandText.append(" (interviewer_id, person_id, district, district_id, gender, updated) VALUES (?, ?, ?, ?, ?, NOW()) ");
+        commandText.append("ON DUPLICATE KEY UPDATE ");
+        commandText.append("person_id = VALUES(person_id), ");
+        commandText.append("district = VALUES(district), ");
+        commandText.append("district_id = VALUES(district_id), ");
+        commandText.append("gender = VALUES(gender), ");
+        commandText.append("updated = VALUES(updated)");
+        return commandText.toString();
+    }
+
+    private static String getPersonQuery(String whereClause) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("Name, ");
+        commandText.append("Id, ");
+        commandText.append("District__c, ");
+        commandText.append("District__r.Name, ");
+        commandText.append("District__r.Id, ");
+        commandText.append("Gender__c ");
+        commandText.append("FROM ");
+        commandText.append("Person__c ");
+        commandText.append("WHERE ");
+        commandText.append(whereClause);
+        return commandText.toString();
+    }
+
+    private static String getCkwQuery(String whereClause) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("Person__r.Name, ");
+        commandText.append("Id, ");
+        commandText.append("Name, ");
+        commandText.append("Person__r.District__r.Name, ");
+        commandText.append("Person__r.District__c, ");
+        commandText.append("Person__r.District__r.Id, ");
+        commandText.append("Person__r.Gender__c ");
+        commandText.append("FROM ");
+        commandText.append("CKW__c ");
+        commandText.append("WHERE ");
+        commandText.append(whereClause);
+        return commandText.toString();
+    }
+}
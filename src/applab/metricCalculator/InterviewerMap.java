@@ -5,8 +5,15 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.xml.rpc.ServiceException;
 
@@ -19,45 +26,161 @@ import com.sforce.soap.enterprise.sobject.SObject;
  * Class that deals with storing details about the interviewers that requires to be used by all the dashboards being generated.
  * Works as a cache.
  *
+ * The cache is shared by every thread in the run. Lookups read concurrent maps without taking a lock. When several threads
+ * need the same survey total or the same interviewers at once only the first one goes to the DB or Salesforce and the rest
+ * wait for its answer.
+ *
  * Copyright (C) 2012 Grameen Foundation
  */
 public class InterviewerMap {
 
-    private static InterviewerMap singletonValue;
+    private static volatile InterviewerMap singletonValue;
+
+    // Hit rates for the caches. Shown on the status page
+    private static final CacheStats interviewerCache = CacheStats.register("interviewers");
+    private static final CacheStats rosterCache = CacheStats.register("surveyInterviewers");
+    private static final CacheStats submissionTotalsCache = CacheStats.register("submissionTotals");
+    private static final CacheStats submissionRangeCache = CacheStats.register("submissionRanges");
 
-    private HashMap<String, Person> personMap;
+    private ConcurrentHashMap<String, Person> personMap;
 
     // Due to an old design hangover some of the submissions use CKW id some use person. Person is correct so this is
     // a little switcheroo to all the CWK__c.Name fields to be xlated to Person__c.Name
-    private HashMap<String, String> ckwSwitcherooMap;
+    private ConcurrentHashMap<String, String> ckwSwitcherooMap;
 
     // Districts so they can be added to any metric datas that are needed
-    private HashMap<String, String> districtMap;
+    private ConcurrentHashMap<String, String> districtMap;
+
+    // The Salesforce lookup that has fetched, or is fetching, each interviewer id. Makes sure each id is only looked up once
+    private ConcurrentHashMap<String, FutureTask<Object>> interviewerLookups;
+
+    // A map of maps that contains the total number of submissions for each survey and for each question asked. This is
+    // filled lazily. The inner maps are never changed once the fetch has finished
+    private ConcurrentHashMap<String, FutureTask<Map<String, Double>>> submissionCount;
 
-    // A map of maps that contains the total number of submissions for each survey and for each question asked. This is filled lazily
-    private HashMap<String, HashMap<String, Double>> submissionCount;
+    // The number of submissions this quarter along with the lowest and highest submission id for each survey. Used to
+    // decide whether to scan a metric in ranges. Key is survey id. Filled lazily
+    private ConcurrentHashMap<Integer, FutureTask<long[]>> submissionRanges;
+
+    // The distinct upper case interviewer ids that submitted each survey this quarter. Key is survey id. Filled for every
+    // survey in a run by prefetchRoster and lazily for anything else
+    private ConcurrentHashMap<Integer, ArrayList<String>> surveyInterviewers;
 
     // Set the date that will be used throughout update process
     private Calendar time;
+
+    // When the interviewer details were last fetched from scratch. Used to refresh the cache in long running processes
+    private long rosterLoadedTime;
     public InterviewerMap() {
     }
 
-    public static void init() {
+    public static synchronized void init() {
 
         InterviewerMap map = new InterviewerMap();
-        map.personMap = new HashMap<String, Person>();
-        map.ckwSwitcherooMap = new HashMap<String, String>();
-        map.districtMap = new HashMap<String, String>();
-        map.submissionCount = new HashMap<String, HashMap<String, Double>>();
-        map.time = Calendar.getInstance();
+        map.personMap = new ConcurrentHashMap<String, Person>();
+        map.ckwSwitcherooMap = new ConcurrentHashMap<String, String>();
+        map.districtMap = new ConcurrentHashMap<String, String>();
+        map.interviewerLookups = new ConcurrentHashMap<String, FutureTask<Object>>();
+        map.submissionCount = new ConcurrentHashMap<String, FutureTask<Map<String, Double>>>();
+        map.submissionRanges = new ConcurrentHashMap<Integer, FutureTask<long[]>>();
+        map.surveyInterviewers = new ConcurrentHashMap<Integer, ArrayList<String>>();
+        map.time = createRunTime();
+        map.rosterLoadedTime = System.currentTimeMillis();
+        InterviewerMap.singletonValue = map;
+    }
+
+    /**
+     * Start a new run without throwing away the interviewer details. Resets the run date and the submission totals as they
+     * change between runs. The interviewer details are only dropped once they are older than rosterRefreshHours.
+     * Must not be called while a run is in progress.
+     */
+    public static synchronized void startRun() {
+
+        if (singletonValue == null) {
+            init();
+            return;
+        }
+        singletonValue.time = createRunTime();
+        singletonValue.submissionCount.clear();
+        singletonValue.submissionRanges.clear();
+        singletonValue.surveyInterviewers.clear();
+        long maxAge = Long.valueOf(Configuration.getConfiguration("rosterRefreshHours", "24")) * 60 * 60 * 1000;
+        if (System.currentTimeMillis() - singletonValue.rosterLoadedTime > maxAge) {
+            singletonValue.interviewerLookups.clear();
+            singletonValue.personMap.clear();
+            singletonValue.ckwSwitcherooMap.clear();
+            singletonValue.districtMap.clear();
+            singletonValue.rosterLoadedTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Get the version of the interviewer details. Changes to people in Salesforce cannot be seen without fetching them
+     * so the details are treated as changed every rosterRefreshHours.
+     *
+     * @return - The version number
+     */
+    public static synchronized long getRosterVersion() {
+
+        long refreshPeriod = Long.valueOf(Configuration.getConfiguration("rosterRefreshHours", "24")) * 60 * 60 * 1000;
+        return getTime().getTimeInMillis() / refreshPeriod;
+    }
+
+    private static Calendar createRunTime() {
+
+        Calendar time = Calendar.getInstance();
 
         // Go back to previous day.
-        map.time.roll(Calendar.DAY_OF_YEAR, false);
-        InterviewerMap.singletonValue = map;
+        time.roll(Calendar.DAY_OF_YEAR, false);
+        return time;
+    }
+
+    /**
+     * Load the roster for every dashboard in a run in one go. Finds everyone who submitted any of the surveys for the
+     * dashboards this quarter with a single query and looks them all up in Salesforce together, so each dashboard
+     * then only has to read the cache.
+     *
+     * @param dashboardIds - The ids of the dashboards in the run
+     */
+    public static void prefetchRoster(ArrayList<Integer> dashboardIds) throws SQLException, RemoteException, ServiceException {
+
+        if (dashboardIds.isEmpty()) {
+            return;
+        }
+        long start = RunMetrics.startTimer();
+        HashMap<Integer, ArrayList<String>> interviewersBySurvey = new HashMap<Integer, ArrayList<String>>();
+        LinkedHashSet<String> interviewerIds = new LinkedHashSet<String>();
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getRunInterviewerQuery(dashboardIds));
+        while (resultSet.next()) {
+            Integer surveyId = resultSet.getInt("survey_id");
+            String interviewerId = resultSet.getString("interviewer_id").toUpperCase();
+            if (!interviewersBySurvey.containsKey(surveyId)) {
+                interviewersBySurvey.put(surveyId, new ArrayList<String>());
+            }
+            interviewersBySurvey.get(surveyId).add(interviewerId);
+            interviewerIds.add(interviewerId);
+        }
+        resultSet.close();
+
+        // Surveys with no submissions this quarter still need an entry so they are not queried again
+        resultSet = DatabaseHelpers.executeSelectQuery(getRunSurveyIdsQuery(dashboardIds));
+        while (resultSet.next()) {
+            Integer surveyId = resultSet.getInt("survey_id");
+            ArrayList<String> interviewers = interviewersBySurvey.get(surveyId);
+            if (interviewers == null) {
+                interviewers = new ArrayList<String>();
+            }
+            singletonValue.surveyInterviewers.put(surveyId, interviewers);
+        }
+        resultSet.close();
+        Log.info("rosterPrefetch", "Prefetching " + interviewerIds.size() + " interviewers for " + dashboardIds.size() + " dashboards");
+        lookUpInterviewers(new ArrayList<String>(interviewerIds));
+        RunMetrics.stopTimer("roster", null, start);
     }
 
     /**
-     * Get all the interviewer details from Salesforce for anyone who has submitted
+     * Get all the interviewer details from Salesforce for anyone who has submitted this quarter. Uses the roster that
+     * has already been loaded by prefetchRoster where it can.
      *
      * @param dashboardId - The id of the dashboard
      *
@@ -66,45 +189,173 @@ public class InterviewerMap {
     public static ArrayList<String> populateMapForDashboard(Integer dashboardId) throws SQLException, RemoteException, ServiceException {
 
         ArrayList<String> peopleList = new ArrayList<String>();
-
-        String surveyIdString = getSurveyIds(dashboardId);
-        if (surveyIdString.equals("")) {
+        LinkedHashSet<String> interviewerIds = new LinkedHashSet<String>();
+        long start = RunMetrics.startTimer();
+        for (Integer surveyId : getSurveyIdList(dashboardId)) {
+            interviewerIds.addAll(getSurveyInterviewers(surveyId));
+        }
+        if (interviewerIds.isEmpty()) {
+            RunMetrics.stopTimer("roster", dashboardId, start);
             return peopleList;
         }
-        ArrayList<String> personIds = new ArrayList<String>();
-        ArrayList<String> ckwIds = new ArrayList<String>();
-        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getDistinctInterviewerNameQuery(surveyIdString));
-        while(resultSet.next()) {
-            String id = resultSet.getString("interviewer_id");
-            id = id.toUpperCase();
+        lookUpInterviewers(new ArrayList<String>(interviewerIds));
+        RunMetrics.stopTimer("roster", dashboardId, start);
 
-            // If we have already fetched the persons details then ignore them but add the person id to the list of interviewers.
+        // Everyone we can is now in the cache
+        for (String id : interviewerIds) {
             if (singletonValue.personMap.containsKey(id)) {
                 peopleList.add(id);
-                continue;
             }
-            if (singletonValue.ckwSwitcherooMap.containsKey(id)) {
+            else if (singletonValue.ckwSwitcherooMap.containsKey(id)) {
                 peopleList.add(singletonValue.ckwSwitcherooMap.get(id));
+            }
+        }
+        return peopleList;
+    }
+
+    /**
+     * Get the interviewers who submitted a survey this quarter
+     *
+     * @param surveyId - The id of the survey
+     *
+     * @return - The distinct upper case interviewer ids
+     */
+    private static ArrayList<String> getSurveyInterviewers(Integer surveyId) throws SQLException {
+
+        ArrayList<String> interviewers = singletonValue.surveyInterviewers.get(surveyId);
+        if (interviewers != null) {
+            rosterCache.hit();
+            return interviewers;
+        }
+        rosterCache.miss();
+        LinkedHashSet<String> interviewerIds = new LinkedHashSet<String>();
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getDistinctInterviewerNameQuery(String.valueOf(surveyId)));
+        while(resultSet.next()) {
+            interviewerIds.add(resultSet.getString("interviewer_id").toUpperCase());
+        }
+        resultSet.close();
+        interviewers = new ArrayList<String>(interviewerIds);
+        singletonValue.surveyInterviewers.putIfAbsent(surveyId, interviewers);
+        return interviewers;
+    }
+
+    /**
+     * Make sure the details for a set of interviewers have been fetched from Salesforce. Ids that another thread is
+     * already fetching are waited for rather than fetched again.
+     *
+     * @param interviewerIds - The upper case interviewer ids as they are in the DB
+     */
+    private static void lookUpInterviewers(ArrayList<String> interviewerIds) throws SQLException, RemoteException, ServiceException {
+
+        final ArrayList<String> personIds = new ArrayList<String>();
+        final ArrayList<String> ckwIds = new ArrayList<String>();
+        FutureTask<Object> lookup = new FutureTask<Object>(new Callable<Object>() {
+            public Object call() throws Exception {
+
+                // Salesforce limits how long a query can be so the ids are looked up in batches
+                int batchSize = Integer.valueOf(Configuration.getConfiguration("salesforceQueryBatchSize", "200"));
+
+                // Offline runs use the copy of the interviewers that the last sync left in the DB
+                if (MetricSinks.isOffline()) {
+                    ArrayList<String> ids = new ArrayList<String>(personIds);
+                    ids.addAll(ckwIds);
+                    for (int i = 0; i < ids.size(); i += batchSize) {
+                        addDimensionRowsToMap(new ArrayList<String>(ids.subList(i, Math.min(i + batchSize, ids.size()))));
+                    }
+                    return null;
+                }
+
+                // Get all the interviewers who are people from Salesforce
+                for (int i = 0; i < personIds.size(); i += batchSize) {
+                    addPeopleToMap(new ArrayList<String>(personIds.subList(i, Math.min(i + batchSize, personIds.size()))));
+                }
+
+                // Add all the CKWs to the map
+                for (int i = 0; i < ckwIds.size(); i += batchSize) {
+                    addCkwsToMap(new ArrayList<String>(ckwIds.subList(i, Math.min(i + batchSize, ckwIds.size()))));
+                }
+                return null;
+            }
+        });
+        ArrayList<FutureTask<Object>> otherLookups = new ArrayList<FutureTask<Object>>();
+        for (String id : interviewerIds) {
+            if (!id.startsWith("CKW") && !id.startsWith("PERSON")) {
                 continue;
             }
-            if (id.startsWith("CKW")) {
+            FutureTask<Object> existing = singletonValue.interviewerLookups.putIfAbsent(id, lookup);
+            if (existing != null) {
+                if (!otherLookups.contains(existing)) {
+                    otherLookups.add(existing);
+                }
+                interviewerCache.hit();
+            }
+            else if (id.startsWith("CKW")) {
                 ckwIds.add(id);
             }
-            else if (id.startsWith("PERSON")) {
+            else {
                 personIds.add(id);
             }
         }
+        interviewerCache.misses(personIds.size() + ckwIds.size());
+        try {
+            lookup.run();
+            waitForLookup(lookup);
+        }
+        catch (SQLException e) {
+            forgetLookup(lookup, personIds, ckwIds);
+            throw e;
+        }
+        catch (RemoteException e) {
+            forgetLookup(lookup, personIds, ckwIds);
+            throw e;
+        }
+        catch (ServiceException e) {
+            forgetLookup(lookup, personIds, ckwIds);
+            throw e;
+        }
+        for (FutureTask<Object> otherLookup : otherLookups) {
+            waitForLookup(otherLookup);
+        }
+    }
 
-        // Get all the interviewers who are people from Salesforce
-        if (personIds.size() > 0) {
-            peopleList.addAll(addPeopleToMap(personIds));
+    /**
+     * Take the ids for a lookup that failed out of the cache so they are tried again next time they are needed
+     */
+    private static void forgetLookup(FutureTask<Object> lookup, ArrayList<String> personIds, ArrayList<String> ckwIds) {
+
+        for (String id : personIds) {
+            singletonValue.interviewerLookups.remove(id, lookup);
+        }
+        for (String id : ckwIds) {
+            singletonValue.interviewerLookups.remove(id, lookup);
         }
+    }
 
-        // Add all the CKWs to the map
-        if (ckwIds.size() > 0) {
-            peopleList.addAll(addCkwsToMap(ckwIds));
+    /**
+     * Wait for a fetch to finish and pass on anything it threw
+     */
+    private static <T> T waitForLookup(FutureTask<T> lookup) throws SQLException, RemoteException, ServiceException {
+
+        try {
+            return lookup.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeadlineExceededException("Interrupted while waiting for interviewer details", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException)cause;
+            }
+            if (cause instanceof RemoteException) {
+                throw (RemoteException)cause;
+            }
+            if (cause instanceof ServiceException) {
+                throw (ServiceException)cause;
+            }
+            throw new RuntimeException(cause);
         }
-        return peopleList;
     }
 
     /**
@@ -139,14 +390,14 @@ public class InterviewerMap {
                             addToMap = false;
                         }
                         if (addToMap) {
-                            singletonValue.personMap.put(person.getName().toUpperCase(), singletonValue.new Person(person.getGender__c(), person.getDistrict__r().getName()));
+                            singletonValue.personMap.putIfAbsent(person.getName().toUpperCase(), singletonValue.new Person(person.getGender__c(), person.getDistrict__r().getName()));
                         }
                         else {
-                            System.out.println("PERSON " + person.getName().toUpperCase() + error);
+                            Log.warn("invalidPerson", "PERSON " + person.getName().toUpperCase() + error);
                         }
                     }
-                    if (addToMap && !singletonValue.districtMap.containsKey(person.getDistrict__r().getName().toUpperCase())) {
-                        singletonValue.districtMap.put(person.getDistrict__r().getName(), person.getDistrict__r().getId());
+                    if (addToMap) {
+                        singletonValue.districtMap.putIfAbsent(person.getDistrict__r().getName(), person.getDistrict__r().getId());
                     }
                 }
                 if (result.isDone()) {
@@ -194,14 +445,14 @@ public class InterviewerMap {
                             addToMap = false;
                         }
                         if (addToMap) {
-                            singletonValue.personMap.put(ckw.getPerson__r().getName().toUpperCase(), singletonValue.new Person(ckw.getPerson__r().getGender__c(), ckw.getPerson__r().getDistrict__r().getName()));
+                            singletonValue.personMap.putIfAbsent(ckw.getPerson__r().getName().toUpperCase(), singletonValue.new Person(ckw.getPerson__r().getGender__c(), ckw.getPerson__r().getDistrict__r().getName()));
                         }
                         else {
-                            System.out.println("CKW " + ckw.getName() + error);
+                            Log.warn("invalidCkw", "CKW " + ckw.getName() + error);
                         }
                     }
-                    if (addToMap && !singletonValue.districtMap.containsKey(ckw.getPerson__r().getDistrict__r().getName())) {
-                        singletonValue.districtMap.put(ckw.getPerson__r().getDistrict__r().getName(), ckw.getPerson__r().getDistrict__r().getId());
+                    if (addToMap) {
+                        singletonValue.districtMap.putIfAbsent(ckw.getPerson__r().getDistrict__r().getName(), ckw.getPerson__r().getDistrict__r().getId());
                     }
                 }
                 if (result.isDone()) {
@@ -215,29 +466,63 @@ public class InterviewerMap {
         return peopleList;
     }
 
+    /**
+     * Add interviewers to the PersonMap from the interviewer_dim table rather than Salesforce. Used by offline runs.
+     * Interviewers without a district or gender are left out in the same way as when they come from Salesforce
+     *
+     * @param interviewerIds - The upper case interviewer ids as they are in the DB
+     */
+    private static void addDimensionRowsToMap(ArrayList<String> interviewerIds) throws SQLException {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("interviewer_id, ");
+        commandText.append("person_id, ");
+        commandText.append("district, ");
+        commandText.append("district_id, ");
+        commandText.append("gender ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.INTERVIEWER_DIM_TABLE);
+        commandText.append(" WHERE ");
+        commandText.append("interviewer_id IN (");
+        commandText.append(Utils.generateCommaSeparatedString(interviewerIds, true));
+        commandText.append(")");
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(commandText.toString());
+        while (resultSet.next()) {
+            String interviewerId = resultSet.getString("interviewer_id").toUpperCase();
+            String personId = resultSet.getString("person_id");
+            String district = resultSet.getString("district");
+            String districtId = resultSet.getString("district_id");
+            String gender = resultSet.getString("gender");
+            if (personId == null || district == null || districtId == null || gender == null) {
+                continue;
+            }
+            personId = personId.toUpperCase();
+            if (!interviewerId.equals(personId)) {
+                singletonValue.ckwSwitcherooMap.put(interviewerId, personId);
+            }
+            singletonValue.personMap.putIfAbsent(personId, singletonValue.new Person(gender, district));
+            singletonValue.districtMap.putIfAbsent(district, districtId);
+        }
+        resultSet.close();
+    }
+
     /**
      * Get all the survey ids for a given dashboard
      *
      * @param dashboardId
      * 
-     * @return - A string that can be added to SQL IN clause to get all the submissions
+     * @return - The survey ids
      */
-    private static String getSurveyIds(Integer dashboardId) throws SQLException {
+    private static ArrayList<Integer> getSurveyIdList(Integer dashboardId) throws SQLException {
 
-        String surveyIdString = "";
         ArrayList<Integer> surveyIds = new ArrayList<Integer>();
         ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getSurveyIdsQuery(dashboardId));
         while(resultSet.next()) {
             surveyIds.add(resultSet.getInt("survey_id"));
         }
-        Integer size = surveyIds.size();
-        for(Integer i = 0; i < size; i++) {
-            surveyIdString += surveyIds.get(i).toString();
-            if (i < size - 1) {
-                surveyIdString += ",";
-            }
-        }
-        return surveyIdString;
+        resultSet.close();
+        return surveyIds;
     }
 
     /**
@@ -247,46 +532,167 @@ public class InterviewerMap {
      */
     public static Set<String> getSubmissionKeySet(String key) {
 
-        if (singletonValue.submissionCount.containsKey(key)) {
-             return singletonValue.submissionCount.get(key).keySet();
+        FutureTask<Map<String, Double>> totals = singletonValue.submissionCount.get(key);
+        if (totals == null || !totals.isDone()) {
+            return null;
+        }
+        try {
+            return totals.get().keySet();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e) {
+            return null;
         }
-        return null;
     }
 
     /**
      * Get the total submissions for a given survey. Will split by district
      * TODO - Allow to split by other field.
-     * Will populate the submission map lazily if this survey has not been fetched already
+     * Will populate the submission map lazily if this survey has not been fetched already. If another thread is already
+     * fetching the totals for the survey then this waits for that fetch instead of running the query again
      *
      * @param surveyId - The survey that the total is required for 
      * @param key      - The splitter field
      *
      * @return
      */
-    public static Double getTotalSubmissions(Integer surveyId, String key) throws SQLException {
+    public static Double getTotalSubmissions(final Integer surveyId, String key) throws SQLException {
 
         if (surveyId == null) {
             return -1.0;
         }
         String surveyIdString = String.valueOf(surveyId);
-        if (singletonValue.submissionCount.containsKey(surveyIdString)) {
-            if (singletonValue.submissionCount.get(surveyIdString).containsKey(key)) {
-                return singletonValue.submissionCount.get(surveyIdString).get(key);
-            }
-            else {
-                return -1.0;
+        FutureTask<Map<String, Double>> totals = singletonValue.submissionCount.get(surveyIdString);
+        if (totals != null) {
+            submissionTotalsCache.hit();
+        }
+        else {
+            submissionTotalsCache.miss();
+            FutureTask<Map<String, Double>> fetch = new FutureTask<Map<String, Double>>(new Callable<Map<String, Double>>() {
+                public Map<String, Double> call() throws Exception {
+                    long start = RunMetrics.startTimer();
+                    Trace.Span span = Trace.begin("InterviewerMap.getTotalSubmissions");
+                    try {
+                        return fetchTotalSubmissions(surveyId);
+                    }
+                    finally {
+                        Trace.end(span);
+                        RunMetrics.stopTimer("submissionTotals", null, start);
+                    }
+                }
+            });
+            totals = singletonValue.submissionCount.putIfAbsent(surveyIdString, fetch);
+            if (totals == null) {
+                totals = fetch;
+                fetch.run();
             }
         }
+        Map<String, Double> map;
+        try {
+            map = waitForLookup(totals);
+        }
+        catch (SQLException e) {
+
+            // Do not leave the failed fetch in the cache so a cancelled query does not stop the total being fetched later
+            singletonValue.submissionCount.remove(surveyIdString, totals);
+            throw e;
+        }
+        catch (RemoteException e) {
+            throw new RuntimeException(e);
+        }
+        catch (ServiceException e) {
+            throw new RuntimeException(e);
+        }
+
+        // No submissions from that district this quarter
+        if (!map.containsKey(key)) {
+            return -1.0;
+        }
+        return map.get(key);
+    }
+
+    /**
+     * Get the number of submissions this quarter and the range of submission ids for the survey a metric is on. Only
+     * fetched once for each survey in a run however many metrics use it
+     *
+     * @param parameter - The metric parameter
+     *
+     * @return - The total followed by the lowest and highest submission id
+     */
+    public static long[] getSubmissionRange(final MetricParameter parameter) throws SQLException {
+
+        Integer surveyId = parameter.getSurveyId();
+        FutureTask<long[]> range = singletonValue.submissionRanges.get(surveyId);
+        if (range != null) {
+            submissionRangeCache.hit();
+        }
         else {
-            singletonValue.submissionCount.put(surveyIdString, new HashMap<String, Double>());
+            submissionRangeCache.miss();
+            FutureTask<long[]> fetch = new FutureTask<long[]>(new Callable<long[]>() {
+                public long[] call() throws Exception {
+                    ResultSet resultSet = DatabaseHelpers.executeSelectQuery(parameter.getSubmissionRangeQuery());
+                    try {
+                        if (!resultSet.next()) {
+                            return new long[] { 0, 0, 0 };
+                        }
+                        return new long[] { resultSet.getLong("total"), resultSet.getLong("minId"), resultSet.getLong("maxId") };
+                    }
+                    finally {
+                        resultSet.close();
+                    }
+                }
+            });
+            range = singletonValue.submissionRanges.putIfAbsent(surveyId, fetch);
+            if (range == null) {
+                range = fetch;
+                fetch.run();
+            }
+        }
+        try {
+            return waitForLookup(range);
         }
+        catch (SQLException e) {
 
-        // The total has not been fetched so go and get it
-        HashMap<String, Double> map = singletonValue.submissionCount.get(surveyIdString);
-        if (map == null) {
-            map = new HashMap<String, Double>();
+            // Do not leave the failed fetch in the cache so a cancelled query does not stop the range being fetched later
+            singletonValue.submissionRanges.remove(surveyId, range);
+            throw e;
         }
+        catch (RemoteException e) {
+            throw new RuntimeException(e);
+        }
+        catch (ServiceException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Count the submissions for a survey by subdivider
+     *
+     * @param surveyId - The survey that the totals are required for
+     *
+     * @return - The totals keyed by subdivider along with the grand total keyed by "total"
+     */
+    private static Map<String, Double> fetchTotalSubmissions(Integer surveyId) throws SQLException {
+
+        HashMap<String, Double> map = new HashMap<String, Double>();
 
+        // Let the DB count by district if the interviewer details are in the DB
+        if (InterviewerDimension.isReady()) {
+            Double total = 0.0;
+            ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getDistrictSubmissionCountQuery(surveyId));
+            while (resultSet.next()) {
+                map.put(resultSet.getString("sub_divider"), resultSet.getDouble("total"));
+                total += resultSet.getDouble("total");
+            }
+            resultSet.close();
+            if (total > 0.0) {
+                map.put("total", total);
+            }
+            return Collections.unmodifiableMap(map);
+        }
         ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getSubmissionCountQuery(surveyId));
         while (resultSet.next()) {
             String subDivider = getSubDivider(resultSet.getString("interviewer_id").toUpperCase());
@@ -306,12 +712,11 @@ public class InterviewerMap {
                 map.put("total", 1.0);
             }
         }
-        singletonValue.submissionCount.put(surveyIdString, map);
         resultSet.close();
-        return map.get(key);
+        return Collections.unmodifiableMap(map);
     }
 
-    private static String getSubmissionCountQuery(Integer surveyId) {
+    static String getSubmissionCountQuery(Integer surveyId) {
 
         StringBuilder commandText = new StringBuilder();
         commandText.append("SELECT ");
@@ -324,6 +729,25 @@ public class InterviewerMap {
         return commandText.toString();
     }
 
+    private static String getDistrictSubmissionCountQuery(Integer surveyId) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("d.district AS sub_divider, ");
+        commandText.append("COUNT(*) AS total ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.SUBMISSION_TABLE + " s, ");
+        commandText.append(DatabaseHelpers.INTERVIEWER_DIM_TABLE + " d ");
+        commandText.append("WHERE ");
+        commandText.append("s.survey_id = " + String.valueOf(surveyId) + " ");
+        commandText.append(DatabaseHelpers.getQuarterStartEndParameter());
+        commandText.append("AND d.interviewer_id = s.interviewer_id ");
+        commandText.append("AND d.district IS NOT NULL ");
+        commandText.append("AND d.gender IS NOT NULL ");
+        commandText.append("GROUP BY d.district");
+        return commandText.toString();
+    }
+
     private static String getSalesforcePersonQuery(ArrayList<String> personNames) {
 
         StringBuilder commandText = new StringBuilder();
@@ -363,17 +787,53 @@ public class InterviewerMap {
         return commandText.toString();
     }
 
-    private static String getDistinctInterviewerNameQuery(String surveyIds) {
+    static String getDistinctInterviewerNameQuery(String surveyIds) {
 
         StringBuilder commandText = new StringBuilder();
         commandText.append("SELECT DISTINCT ");
         commandText.append("interviewer_id ");
         commandText.append("FROM ");
-        commandText.append(DatabaseHelpers.SUBMISSION_TABLE);
-        commandText.append(" WHERE ");
-        commandText.append("survey_id IN (");
+        commandText.append(DatabaseHelpers.SUBMISSION_TABLE + " s ");
+        commandText.append("WHERE ");
+        commandText.append("s.survey_id IN (");
         commandText.append(surveyIds);
         commandText.append(")");
+        commandText.append(DatabaseHelpers.getQuarterStartEndParameter());
+        return commandText.toString();
+    }
+
+    private static String getRunInterviewerQuery(ArrayList<Integer> dashboardIds) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT DISTINCT ");
+        commandText.append("s.survey_id, ");
+        commandText.append("s.interviewer_id ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.SUBMISSION_TABLE + " s ");
+        commandText.append("WHERE ");
+        commandText.append("s.survey_id IN (");
+        commandText.append(getRunSurveyIdsQuery(dashboardIds));
+        commandText.append(")");
+        commandText.append(DatabaseHelpers.getQuarterStartEndParameter());
+        return commandText.toString();
+    }
+
+    private static String getRunSurveyIdsQuery(ArrayList<Integer> dashboardIds) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT DISTINCT ");
+        commandText.append("survey_id ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.DASHBOARD_SURVEY_TABLE);
+        commandText.append(" WHERE ");
+        commandText.append("dashboard_id IN (");
+        for (int i = 0; i < dashboardIds.size(); i++) {
+            commandText.append(dashboardIds.get(i));
+            if (i < dashboardIds.size() - 1) {
+                commandText.append(",");
+            }
+        }
+        commandText.append(")");
         return commandText.toString();
     }
 
@@ -392,12 +852,33 @@ public class InterviewerMap {
 
     private static String CkwNameSwitcheroo(String personId) {
 
-        if (personId.startsWith("CKW") && singletonValue.ckwSwitcherooMap.containsKey(personId)) {
-            return singletonValue.ckwSwitcherooMap.get(personId);
+        if (personId.startsWith("CKW")) {
+            String switched = singletonValue.ckwSwitcherooMap.get(personId);
+            if (switched != null) {
+                return switched;
+            }
         }
         return personId;
     }
 
+    /**
+     * Add an interviewer straight to the cache without looking them up in Salesforce. Used by the benchmarks
+     *
+     * @param interviewerId - The upper case interviewer id
+     * @param gender        - The gender of the interviewer
+     * @param district      - The name of the district the interviewer works in
+     */
+    static void addInterviewer(String interviewerId, String gender, String district) {
+        singletonValue.personMap.put(interviewerId, singletonValue.new Person(gender, district));
+    }
+
+    /**
+     * Add the person name to use for a CKW name straight to the cache. Used by the benchmarks
+     */
+    static void addCkwName(String ckwName, String personName) {
+        singletonValue.ckwSwitcherooMap.put(ckwName, personName);
+    }
+
     /**
      * Get the subdivider for a given person.
      * TODO - Allow for more than the district to be used as the subdivider
@@ -410,11 +891,11 @@ public class InterviewerMap {
 
         // Due to having the CKW__c.Name in the DB instead of the Person__c.Name for some of the interviewers we may need to do
         // a cheeky switcheroo
-        personId = CkwNameSwitcheroo(personId);
-        if (!singletonValue.personMap.containsKey(personId)) {
+        Person person = singletonValue.personMap.get(CkwNameSwitcheroo(personId));
+        if (person == null) {
             return null;
         }
-        return singletonValue.personMap.get(personId).getDistrict();
+        return person.getDistrict();
     }
 
     /**
@@ -426,11 +907,11 @@ public class InterviewerMap {
      */
     public static String getGender(String personId) {
 
-        personId = CkwNameSwitcheroo(personId);
-        if (!singletonValue.personMap.containsKey(personId)) {
+        Person person = singletonValue.personMap.get(CkwNameSwitcheroo(personId));
+        if (person == null) {
             return null;
         }
-        return singletonValue.personMap.get(personId).getGender();
+        return person.getGender();
     }
 
     /**
@@ -443,10 +924,7 @@ public class InterviewerMap {
         if (districtName == null) {
             return null;
         }
-        if (singletonValue.districtMap.containsKey(districtName)) {
-            return singletonValue.districtMap.get(districtName);
-        }
-        return null;
+        return singletonValue.districtMap.get(districtName);
     }
 
     /**
@@ -454,7 +932,7 @@ public class InterviewerMap {
      * 
      * @return
      */
-    public static Calendar getTime() {
+    public static synchronized Calendar getTime() {
 
         if (singletonValue == null) {
             init();
@@ -465,7 +943,7 @@ public class InterviewerMap {
     /**
      * Set the quarter modifier
      */
-    public static void setQuarterModifier(Integer quarterModifier) {
+    public static synchronized void setQuarterModifier(Integer quarterModifier) {
         if (singletonValue == null) {
             init();
         }
@@ -0,0 +1,105 @@
+package applab.metricCalculator;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+
+import com.sforce.soap.enterprise.sobject.M_E_Metric_Data__c;
+
+/**
+ * Writes the metric datas to the metric_data_local table rather than Salesforce. There is one row for each metric,
+ * district and quarter; a later run for the same quarter overwrites the value. Totals are stored with an empty district.
+ *
+ * Config items used:
+ *     metricSinkBatchSize - How many rows to send to the DB at once. Default 500
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class JdbcMetricSink implements MetricSink {
+
+    private int batchSize;
+    private Boolean tableCreated;
+
+    public JdbcMetricSink() {
+        this.batchSize = Integer.valueOf(Configuration.getConfiguration("metricSinkBatchSize", "500"));
+        this.tableCreated = false;
+    }
+
+    public void open() {
+    }
+
+    public ArrayList<M_E_Metric_Data__c> write(DashboardUpload upload) throws SQLException {
+
+        if (!this.tableCreated) {
+            createTable();
+            this.tableCreated = true;
+        }
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        PreparedStatement statement = DatabaseHelpers.getPreparedStatement(getInsertQuery());
+        try {
+            int pending = 0;
+            for (M_E_Metric_Data__c data : upload.getDatas()) {
+                String district = upload.getDistrict(data);
+                java.util.Date quarterStart = data.getDate__c() == null ? Utils.getQuarterStartDate() : data.getDate__c();
+                statement.setString(1, upload.getMetricName(data));
+                statement.setString(2, district == null ? "" : district);
+                statement.setDate(3, new java.sql.Date(quarterStart.getTime()));
+                statement.setInt(4, upload.getDashboardId());
+                statement.setDouble(5, data.getActual_Value__c() == null ? 0.0 : data.getActual_Value__c());
+                statement.setTimestamp(6, now);
+                statement.addBatch();
+                pending++;
+                if (pending >= this.batchSize) {
+                    statement.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                statement.executeBatch();
+            }
+        }
+        finally {
+            statement.close();
+        }
+        return new ArrayList<M_E_Metric_Data__c>();
+    }
+
+    public ArrayList<M_E_Metric_Data__c> getPending(DashboardUpload upload) {
+        return new ArrayList<M_E_Metric_Data__c>();
+    }
+
+    public void close() {
+    }
+
+    private static void createTable() throws SQLException {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("CREATE TABLE IF NOT EXISTS ");
+        commandText.append(DatabaseHelpers.LOCAL_METRIC_DATA_TABLE);
+        commandText.append(" (");
+        commandText.append("metric_name VARCHAR(255) NOT NULL, ");
+        commandText.append("district VARCHAR(255) NOT NULL, ");
+        commandText.append("quarter_start DATE NOT NULL, ");
+        commandText.append("dashboard_id INT NOT NULL, ");
+        commandText.append("actual_value DOUBLE NOT NULL, ");
+        commandText.append("updated DATETIME NOT NULL, ");
+        commandText.append("PRIMARY KEY (metric_name, district, quarter_start), ");
+        commandText.append("KEY dashboard_id (dashboard_id)");
+        commandText.append(") ENGINE=InnoDB");
+        DatabaseHelpers.executeUpdateQuery(commandText.toString());
+    }
+
+    private static String getInsertQuery() {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("INSERT INTO ");
+        commandText.append(DatabaseHelpers.LOCAL_METRIC_DATA_TABLE);
+        commandText.append(" (metric_name, district, quarter_start, dashboard_id, actual_value, updated) VALUES (?, ?, ?, ?, ?, ?)");
+        commandText.append(" ON DUPLICATE KEY UPDATE ");
+        commandText.append("dashboard_id = VALUES(dashboard_id), ");
+        commandText.append("actual_value = VALUES(actual_value), ");
+        commandText.append("updated = VALUES(updated)");
+        return commandText.toString();
+    }
+}
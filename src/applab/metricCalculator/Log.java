@@ -0,0 +1,297 @@
+package applab.metricCalculator;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logging for the calculator. The calling thread only formats the line and puts it on a queue; a background thread
+ * writes it to the console so bad data cannot slow a run down with console I/O.
+ *
+ * Each line carries the level, the thread, a message type and the dashboard and metric parameter from the QueryContext
+ * of the thread that logged it e.g.
+ *     2012-06-01 02:13:45.120 WARN [metric-2] type=invalidNumber dashboard=12 metric=Avg_Farm_Size Answer abc is not a valid number
+ *
+ * Each message type may log logRateLimit lines in each logRateWindowSeconds. Lines over the limit are counted rather
+ * than written and the count is logged as one line when the window ends, so a bad answer repeated in a million
+ * submissions costs a few lines and a count. Errors are never rate limited.
+ * If the queue is full the line is dropped and counted rather than making the calculator wait.
+ *
+ * Config items used:
+ *     logLevel             - DEBUG, INFO, WARN or ERROR. Lines below this level are not logged. Default INFO
+ *     logRateLimit         - How many lines of each message type to log in each window. Default 20
+ *     logRateWindowSeconds - How long each rate limit window is. Default 60
+ *     logQueueSize         - How many lines can wait to be written before lines are dropped. Default 10000
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class Log {
+
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    private static volatile Level level = Level.INFO;
+    private static volatile int rateLimit = 20;
+    private static volatile long rateWindowMillis = 60000;
+    private static volatile LinkedBlockingQueue<LogLine> queue = new LinkedBlockingQueue<LogLine>(10000);
+    private static ConcurrentHashMap<String, RateLimit> rateLimits = new ConcurrentHashMap<String, RateLimit>();
+    private static AtomicLong dropped = new AtomicLong();
+    private static volatile Thread writer;
+
+    /**
+     * Read the settings from the config. Should be called once the config has been parsed
+     */
+    public static synchronized void configure() {
+
+        try {
+            level = Level.valueOf(Configuration.getConfiguration("logLevel", "INFO").toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            level = Level.INFO;
+        }
+        rateLimit = Integer.valueOf(Configuration.getConfiguration("logRateLimit", "20"));
+        rateWindowMillis = Long.valueOf(Configuration.getConfiguration("logRateWindowSeconds", "60")) * 1000;
+        int queueSize = Integer.valueOf(Configuration.getConfiguration("logQueueSize", "10000"));
+        if (queueSize != queue.remainingCapacity() + queue.size()) {
+            LinkedBlockingQueue<LogLine> oldQueue = queue;
+            queue = new LinkedBlockingQueue<LogLine>(queueSize);
+            oldQueue.drainTo(queue);
+        }
+    }
+
+    public static Boolean isEnabled(Level lineLevel) {
+        return lineLevel.compareTo(level) >= 0;
+    }
+
+    public static void debug(String type, String message) {
+        log(Level.DEBUG, type, message, null);
+    }
+
+    public static void info(String type, String message) {
+        log(Level.INFO, type, message, null);
+    }
+
+    public static void warn(String type, String message) {
+        log(Level.WARN, type, message, null);
+    }
+
+    public static void error(String type, String message) {
+        log(Level.ERROR, type, message, null);
+    }
+
+    public static void error(String type, String message, Throwable throwable) {
+        log(Level.ERROR, type, message, throwable);
+    }
+
+    /**
+     * Log a line
+     *
+     * @param lineLevel - The level of the line
+     * @param type      - The message type. Used for the rate limit so should not change with the details of the message
+     * @param message   - The message
+     * @param throwable - An exception to add the stack trace of. Can be null
+     */
+    public static void log(Level lineLevel, String type, String message, Throwable throwable) {
+
+        if (!isEnabled(lineLevel)) {
+            return;
+        }
+        if (lineLevel != Level.ERROR && !getRateLimit(type).allow()) {
+            return;
+        }
+        StringBuilder line = new StringBuilder();
+        line.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date()));
+        line.append(" " + lineLevel);
+        line.append(" [" + Thread.currentThread().getName() + "]");
+        line.append(" type=" + type);
+        QueryContext context = QueryContext.get();
+        if (context != null) {
+            if (context.getDashboardId() != null) {
+                line.append(" dashboard=" + context.getDashboardId());
+            }
+            if (context.getParameterName() != null) {
+                line.append(" metric=" + context.getParameterName());
+            }
+        }
+        line.append(" " + message);
+        if (throwable != null) {
+            StringWriter stackTrace = new StringWriter();
+            throwable.printStackTrace(new PrintWriter(stackTrace));
+            line.append("\n" + stackTrace.toString());
+        }
+        enqueue(new LogLine(line.toString(), null));
+    }
+
+    /**
+     * Write out the counts of anything that has been rate limited and wait for everything logged so far to be written.
+     * Should be called before printing anything straight to the console and before the process exits
+     */
+    public static void flush() {
+
+        for (RateLimit limit : rateLimits.values()) {
+            limit.writeSuppressed(true);
+        }
+        long droppedLines = dropped.getAndSet(0);
+        if (droppedLines > 0) {
+            enqueue(new LogLine(formatSummary("logQueueFull", droppedLines + " lines were dropped as the log queue was full"), null));
+        }
+        CountDownLatch written = new CountDownLatch(1);
+        try {
+            queue.put(new LogLine(null, written));
+            startWriter();
+            written.await(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void enqueue(LogLine line) {
+
+        if (writer == null) {
+            startWriter();
+        }
+        if (!queue.offer(line)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static RateLimit getRateLimit(String type) {
+
+        RateLimit limit = rateLimits.get(type);
+        if (limit == null) {
+            limit = new RateLimit(type);
+            RateLimit existing = rateLimits.putIfAbsent(type, limit);
+            if (existing != null) {
+                limit = existing;
+            }
+        }
+        return limit;
+    }
+
+    private static String formatSummary(String type, String message) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date()) + " WARN [log] type=" + type + " " + message;
+    }
+
+    private static synchronized void startWriter() {
+
+        if (writer != null) {
+            return;
+        }
+        writer = new Thread("log") {
+            public void run() {
+                writeLines();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Write lines until the process exits. Also writes out the counts for any rate limit window that has ended
+     */
+    private static void writeLines() {
+
+        while (true) {
+            LogLine line;
+            try {
+                line = queue.poll(1, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            if (line != null) {
+                if (line.text != null) {
+                    System.out.println(line.text);
+                }
+                if (line.written != null) {
+                    System.out.flush();
+                    line.written.countDown();
+                }
+            }
+            for (RateLimit limit : rateLimits.values()) {
+                limit.writeSuppressed(false);
+            }
+        }
+    }
+
+    private static class LogLine {
+
+        private String text;
+
+        // Counted down once the line has been written. Used by flush
+        private CountDownLatch written;
+
+        public LogLine(String text, CountDownLatch written) {
+            this.text = text;
+            this.written = written;
+        }
+    }
+
+    /**
+     * Counts the lines of one message type in the current window
+     */
+    private static class RateLimit {
+
+        private String type;
+        private long windowStart;
+        private int count;
+        private long suppressed;
+
+        public RateLimit(String type) {
+            this.type = type;
+            this.windowStart = System.currentTimeMillis();
+            this.count = 0;
+            this.suppressed = 0;
+        }
+
+        /**
+         * Can another line of this type be logged
+         */
+        public synchronized Boolean allow() {
+
+            long now = System.currentTimeMillis();
+            if (now - this.windowStart >= rateWindowMillis) {
+                writeSuppressed(true);
+            }
+            if (this.count < rateLimit) {
+                this.count++;
+                return true;
+            }
+            this.suppressed++;
+            return false;
+        }
+
+        /**
+         * Log how many lines were suppressed and start a new window
+         *
+         * @param force - Do it even if the window has not ended yet
+         */
+        public synchronized void writeSuppressed(Boolean force) {
+
+            long now = System.currentTimeMillis();
+            if (!force && now - this.windowStart < rateWindowMillis) {
+                return;
+            }
+            if (this.suppressed > 0) {
+                String message = "suppressed=" + this.suppressed + " more lines of type " + this.type + " in the last " + ((now - this.windowStart) / 1000) + " seconds";
+                if (!queue.offer(new LogLine(formatSummary(this.type, message), null))) {
+                    dropped.incrementAndGet();
+                }
+            }
+            this.windowStart = now;
+            this.count = 0;
+            this.suppressed = 0;
+        }
+    }
+}
@@ -65,6 +65,18 @@ public class MetricCalculation {
         return metricName;
     }
 
+    /**
+     * Add the counters from another calculation for the same metric into this one
+     *
+     * @param other - The calculation to add in
+     */
+    public void merge(MetricCalculation other) {
+        this.value1 += other.value1;
+        this.value2 += other.value2;
+        this.totalMetricCalculations += other.totalMetricCalculations;
+        this.needsUpdate = this.needsUpdate || other.needsUpdate;
+    }
+
 	public void addMetricData(M_E_Metric_Data__c metricData) {
         this.data = metricData;
     }
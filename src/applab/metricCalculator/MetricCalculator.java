@@ -1,13 +1,14 @@
 package applab.metricCalculator;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.rpc.ServiceException;
 
-import com.sforce.soap.enterprise.sobject.M_E_Metric_Data__c;
 
 /**
  * Main class for the metric calculator
@@ -22,15 +23,42 @@ public class MetricCalculator {
     private String partnerName;
     private int dashboardId = -1;
     private String dashboardName;
-    private int saveAttempts;
     private String filePath;
 
     private Boolean calculateAll = false;
     private Boolean activeOnly = true;
 
-    private ArrayList<Dashboard> dashboards;
+    // Calculate dashboards in a multi dashboard run even if nothing has changed since they were last calculated
+    private Boolean force = false;
+
+    // Keep running and recalculate on a schedule rather than calculating once and exiting
+    private Boolean daemonMode = false;
+
+    // Print the most expensive metric parameters rather than calculating anything
+    private Boolean costReport = false;
+
+    // Send the metric datas waiting in the outbox rather than calculating anything
+    private Boolean replay = false;
+
+    // Set when a daemon is shutting down so a run in progress stops picking up new dashboards
+    private volatile Boolean stopRequested = false;
+
+    // Takes the calculated dashboards through to Salesforce
+    private volatile MetricPipeline pipeline;
+
+    // How many dashboards in this run had metrics to upload
+    private int dashboardsCalculated;
+
+    // What the run is doing and how far it has got. Read by the status page from its own thread
+    private volatile String phase = "idle";
+    private volatile Integer currentDashboardId;
+    private volatile int dashboardsRequested;
+    private AtomicInteger dashboardsDone = new AtomicInteger();
     private Integer quarterModifier;
 
+    // Dashboards that ran out of time in the last run. These go to the front of the queue in the next run
+    private ArrayList<Integer> deferredDashboardIds = new ArrayList<Integer>();
+
     /**
      * Main method
      *
@@ -38,13 +66,47 @@ public class MetricCalculator {
      */
     public static void main(String[] args) {
         try {
-            new MetricCalculator(args).calculate();
+            MetricCalculator calculator = new MetricCalculator(args);
+            if (calculator.costReport) {
+                ParameterCost.printReport();
+                return;
+            }
+            if (calculator.replay) {
+                try {
+                    SalesforceMetricSink sink = new SalesforceMetricSink();
+                    try {
+                        sink.open();
+                    }
+                    finally {
+                        sink.close();
+                    }
+                }
+                finally {
+                    Log.flush();
+                }
+                return;
+            }
+            StatusServer.start(calculator);
+            if (calculator.daemonMode) {
+                new MetricCalculatorDaemon(calculator).start();
+            }
+            else {
+                try {
+                    calculator.calculate();
+                }
+                finally {
+                    StatusServer.stop();
+                    Log.flush();
+                }
+            }
         } catch (RemoteException e) {
             e.printStackTrace();
         } catch (SQLException e) {
             e.printStackTrace();
         } catch (ServiceException e) {
             e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -54,7 +116,7 @@ public class MetricCalculator {
      */
     public MetricCalculator(String[] args) {
 
-        for (int i = 0; args.length > 0; i++) {
+        for (int i = 0; i < args.length; i++) {
             if (args[i].equalsIgnoreCase("help")) {
                 printUsage();
                 System.exit(1);
@@ -65,6 +127,18 @@ public class MetricCalculator {
             else if (args[i].equalsIgnoreCase("allowInactive")) {
                 this.activeOnly = false;
             }
+            else if (args[i].equalsIgnoreCase("daemon")) {
+                this.daemonMode = true;
+            }
+            else if (args[i].equalsIgnoreCase("force")) {
+                this.force = true;
+            }
+            else if (args[i].equalsIgnoreCase("costReport")) {
+                this.costReport = true;
+            }
+            else if (args[i].equalsIgnoreCase("replay")) {
+                this.replay = true;
+            }
             else {
                 System.out.println("The argument " + args[i] + " is invalid. See usage below");
                 printUsage();
@@ -81,6 +155,7 @@ public class MetricCalculator {
         }
         try {
             Configuration.parseConfig();
+            Log.configure();
         } catch (Exception e) {
             System.out.println("Failed to parse configuration");
             e.printStackTrace();
@@ -103,15 +178,178 @@ public class MetricCalculator {
         if (this.quarterModifier != 0) {
             InterviewerMap.setQuarterModifier(this.quarterModifier);
         }
-        this.dashboards = new ArrayList<Dashboard>();
-        this.saveAttempts = 0;
     }
 
     /**
-     * The workhorse method for this app. Calculates the metrics for the parameters given
+     * Get ready for another run in the same JVM. The roster cache, DB connection and Salesforce session are kept
+     * but the run date, submission totals and anything collected by the last run are thrown away.
      */
-    public void calculate() throws RemoteException, SQLException, ServiceException {
+    public void prepareNextRun() throws SQLException, ClassNotFoundException {
+
+        DatabaseHelpers.ensureConnection();
+        InterviewerMap.startRun();
+        if (this.quarterModifier != 0) {
+            InterviewerMap.setQuarterModifier(this.quarterModifier);
+        }
+    }
 
+    public String getPhase() {
+        return this.phase;
+    }
+
+    public Integer getCurrentDashboardId() {
+        return this.currentDashboardId;
+    }
+
+    public int getDashboardsRequested() {
+        return this.dashboardsRequested;
+    }
+
+    public int getDashboardsDone() {
+        return this.dashboardsDone.get();
+    }
+
+    /**
+     * Get the pipeline for the current or last run
+     *
+     * @return - The pipeline. Null if there has not been a run
+     */
+    public MetricPipeline getPipeline() {
+        return this.pipeline;
+    }
+
+    /**
+     * Ask a run that is in progress to stop calculating any more dashboards.
+     * Dashboards that have already been calculated will still be uploaded.
+     */
+    public void requestStop() {
+        this.stopRequested = true;
+    }
+
+    /**
+     * The workhorse method for this app. Calculates the metrics for the parameters given.
+     * Each dashboard is passed on to be uploaded as soon as it has been calculated.
+     */
+    public void calculate() throws RemoteException, SQLException, ServiceException, IOException {
+
+        RunSummary.init();
+        RunMetrics.init();
+        ParameterCost.startRun();
+        Trace.startRun();
+        this.dashboardsRequested = 0;
+        this.dashboardsDone.set(0);
+
+        // Pin the submissions for the run before reading anything so all the queries agree with each other
+        this.phase = "snapshot";
+        DatabaseHelpers.startSnapshot();
+        if (InterviewerDimension.isEnabled() && !MetricSinks.isOffline()) {
+            this.phase = "interviewerDimension";
+            syncInterviewerDimension();
+        }
+        if (AnswerRollup.isEnabled()) {
+            this.phase = "answerRollup";
+            updateAnswerRollup();
+        }
+        if (AnswerOptionIndex.isEnabled()) {
+            this.phase = "answerOptionIndex";
+            updateAnswerOptionIndex();
+        }
+        this.phase = "queryPlanCheck";
+        QueryPlanCheck.runOnce();
+        this.phase = "calculating";
+        this.dashboardsCalculated = 0;
+        this.pipeline = new MetricPipeline();
+        this.pipeline.start();
+        Boolean calculated = false;
+        try {
+            calculateRequestedDashboards();
+            calculated = true;
+        }
+        finally {
+            if (!calculated) {
+                this.pipeline.abort();
+                this.phase = "idle";
+            }
+        }
+
+        // Wait for the last of the uploads
+        this.phase = "uploading";
+        this.pipeline.finish();
+        this.phase = "idle";
+        if (this.dashboardsCalculated == 0) {
+
+            // No metrics require updating
+            Log.info("noMetrics", "No metrics require updating from the parameters you entered");
+            finishRun();
+
+            // Dashboards that were skipped as unchanged or ran out of time were found, so the parameters were fine
+            if (this.daemonMode || this.calculateAll || RunSummary.getSkippedCount() > 0 || RunSummary.getDeferredCount() > 0) {
+                return;
+            }
+            printUsage();
+            System.exit(-1);
+        }
+        finishRun();
+    }
+
+    /**
+     * Write out the summary, metrics, parameter costs and trace for the run
+     */
+    private void finishRun() {
+
+        Log.flush();
+        RunSummary.print();
+        RunMetrics.write();
+        ParameterCost.saveRun();
+        Trace.write();
+        Log.flush();
+    }
+
+    /**
+     * Bring the interviewer_dim table up to date. If it cannot be synced the run carries on working the districts out
+     * in the calculator
+     */
+    private void syncInterviewerDimension() {
+
+        try {
+            InterviewerDimension.sync();
+        }
+        catch (Exception e) {
+            Log.warn("interviewerDimension", "Failed to sync " + DatabaseHelpers.INTERVIEWER_DIM_TABLE + " so districts will be worked out here. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Add the new submissions to the answer rollup. If it cannot be brought up to date the run reads the answers instead
+     */
+    private void updateAnswerRollup() {
+
+        try {
+            AnswerRollup.update();
+        }
+        catch (Exception e) {
+            Log.warn("answerRollup", "Failed to update " + DatabaseHelpers.ANSWER_ROLLUP_TABLE + " so answers will be read in full. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Add the new multi select answers to the answer_option table. If it cannot be brought up to date the run matches
+     * the options with LIKE instead
+     */
+    private void updateAnswerOptionIndex() {
+
+        try {
+            AnswerOptionIndex.update();
+        }
+        catch (Exception e) {
+            Log.warn("answerOptionIndex", "Failed to update " + DatabaseHelpers.ANSWER_OPTION_TABLE + " so multi select answers will be matched with LIKE. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Calculate the dashboards asked for on the command line
+     */
+    private void calculateRequestedDashboards() throws RemoteException, SQLException, ServiceException {
 
         // If we are calculating all the dashboards then ignore the system properties
         if (calculateAll) {
@@ -121,12 +359,12 @@ public class MetricCalculator {
 
             // Call the calculate methods in order of priority
             if (this.dashboardId > -1) {
-                calculateDashboard(this.dashboardId);
+                calculateSingleDashboard(this.dashboardId);
             }
             else if (this.dashboardName != null) {
                 this.dashboardId = DatabaseHelpers.getDashboardIdFromName(this.dashboardName, this.activeOnly);
                 if (this.dashboardId != -1) {
-                    calculateDashboard(this.dashboardId);
+                    calculateSingleDashboard(this.dashboardId);
                 }
             }
             else if (this.partnerId > -1) {
@@ -146,40 +384,126 @@ public class MetricCalculator {
                 System.exit(-1);
             }
         }
-        if (this.dashboards.isEmpty()) {
+    }
 
-            // No metrics require updating
-            System.out.println("No metrics require updating from the parameters you entered");
-            printUsage();
-            System.exit(-1);
+    /**
+     * Calculate all the possible dashboards
+     */
+    private void calculateAllDashboards() throws SQLException, RemoteException, ServiceException {
+
+        ArrayList<Integer> dashboardIds = new ArrayList<Integer>();
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getAllDashboardsQueryString());
+        while (resultSet.next()) {
+            dashboardIds.add(resultSet.getInt("id"));
+        }
+        resultSet.close();
+        calculateDashboards(dashboardIds);
+    }
+
+    /**
+     * Calculate a set of dashboards. Dashboards that have not changed since they were last calculated are skipped and
+     * the rest are shared out fairly between the partners, with each partner's dashboards that have the most new
+     * submissions done first.
+     *
+     * @param dashboardIds - The ids of the dashboards to calculate
+     */
+    private void calculateDashboards(ArrayList<Integer> dashboardIds) throws SQLException, RemoteException, ServiceException {
+
+        this.dashboardsRequested = dashboardIds.size();
+        this.phase = "fingerprints";
+        ArrayList<DashboardFingerprint> changed = DashboardFingerprint.findChangedDashboards(dashboardIds, this.force, this.activeOnly);
+
+        // Load everyone who submitted for these dashboards this quarter up front so the dashboards share one roster
+        ArrayList<Integer> changedIds = new ArrayList<Integer>();
+        for (DashboardFingerprint fingerprint : changed) {
+            changedIds.add(fingerprint.getDashboardId());
+        }
+        this.phase = "roster";
+        InterviewerMap.prefetchRoster(changedIds);
+        this.phase = "calculating";
+
+        // Anything that ran out of time last run goes first. The scheduler hands these out ahead of every partner's other
+        // dashboards rather than only ahead of the rest of their own partner's
+        ArrayList<DashboardFingerprint> ordered = new ArrayList<DashboardFingerprint>();
+        for (DashboardFingerprint fingerprint : changed) {
+            if (this.deferredDashboardIds.contains(fingerprint.getDashboardId())) {
+                ordered.add(fingerprint);
+            }
+        }
+        for (DashboardFingerprint fingerprint : changed) {
+            if (!this.deferredDashboardIds.contains(fingerprint.getDashboardId())) {
+                ordered.add(fingerprint);
+            }
         }
 
-        // Dig out all the metric datas from the dashboards
-        ArrayList<M_E_Metric_Data__c> datas = new ArrayList<M_E_Metric_Data__c>();
-        for (Dashboard dashboard : this.dashboards) {
-            datas.addAll(dashboard.getDatas());
+        // Give any dashboards that ran out of time one more go once everything else is done.
+        DashboardScheduler scheduler = new DashboardScheduler(ordered, this.deferredDashboardIds);
+        this.pipeline.setScheduler(scheduler);
+        ArrayList<DashboardFingerprint> deferred = calculateScheduledDashboards(scheduler);
+        if (!deferred.isEmpty() && !this.stopRequested) {
+            Log.info("retryDeferred", "Retrying " + deferred.size() + " dashboards that ran out of time");
+            scheduler.add(deferred);
+            deferred = calculateScheduledDashboards(scheduler);
         }
 
-        // Upload the metrics to Salesforce
-        uploadMetricDatas(datas);
+        // Anything still deferred will be picked up in the next run as its fingerprint has not been stored
+        this.deferredDashboardIds = new ArrayList<Integer>();
+        for (DashboardFingerprint fingerprint : deferred) {
+            this.deferredDashboardIds.add(fingerprint.getDashboardId());
+        }
     }
 
     /**
-     * Calculate all the possible dashboards
+     * Calculate the dashboards in the order given by the fair share scheduler until it has none left
+     *
+     * @param scheduler - The scheduler holding the dashboards to calculate
+     *
+     * @return - The dashboards that ran out of time
      */
-    private void calculateAllDashboards() throws SQLException, RemoteException, ServiceException {
+    private ArrayList<DashboardFingerprint> calculateScheduledDashboards(DashboardScheduler scheduler) throws SQLException, RemoteException, ServiceException {
 
-        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getAllDashboardsQueryString());
-        while (resultSet.next()) {
-            calculateDashboard(resultSet.getInt("id"));
+        ArrayList<DashboardFingerprint> deferred = new ArrayList<DashboardFingerprint>();
+        while (!this.stopRequested) {
+            DashboardFingerprint fingerprint;
+            try {
+                fingerprint = scheduler.next();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (fingerprint == null) {
+                break;
+            }
+            Dashboard dashboard;
+            try {
+                dashboard = calculateDashboard(fingerprint.getDashboardId());
+            }
+            catch (DeadlineExceededException e) {
+                scheduler.finished(fingerprint.getDashboardId());
+                deferDashboard(fingerprint.getDashboardId(), e);
+                deferred.add(fingerprint);
+                continue;
+            }
+            if (dashboard == null) {
+
+                // Nothing to upload so the dashboard is up to date and out of the run
+                scheduler.finished(fingerprint.getDashboardId());
+                fingerprint.store();
+            }
+            else {
+                dashboard.setFingerprint(fingerprint);
+                this.pipeline.submit(dashboard);
+            }
         }
+        return deferred;
     }
 
     private String getAllDashboardsQueryString() {
 
         StringBuilder commandText = new StringBuilder();
         commandText.append("SELECT ");
-        commandText.append("id");
+        commandText.append("id ");
         commandText.append("FROM ");
         commandText.append(DatabaseHelpers.DASHBOARD_TABLE);
         if (this.activeOnly) {
@@ -189,35 +513,76 @@ public class MetricCalculator {
         return commandText.toString();
     }
 
-    private void calculateDashboard(Integer dashboardId) throws SQLException, RemoteException, ServiceException {
+    /**
+     * Calculate a single dashboard
+     *
+     * @param dashboardId - The id of the dashboard
+     *
+     * @return - The dashboard if it has metrics to upload. Null otherwise
+     */
+    private Dashboard calculateDashboard(Integer dashboardId) throws SQLException, RemoteException, ServiceException {
 
-        Dashboard dashboard = new Dashboard(dashboardId, this.activeOnly);
-        if (dashboard.loadParameters()){
-            if (dashboard.calculateDashboard()) {
-                this.dashboards.add(dashboard);
+        // Give the dashboard its time budget. Any query still running when it runs out is cancelled
+        DatabaseHelpers.startDeadline(Long.valueOf(Configuration.getConfiguration("dashboardBudgetSeconds", "3600")));
+        QueryContext.setDashboard(dashboardId);
+        this.currentDashboardId = dashboardId;
+        try {
+            Dashboard dashboard = new Dashboard(dashboardId, this.activeOnly);
+            long start = RunMetrics.startTimer();
+            Trace.Span span = Trace.begin("Dashboard.loadParameters");
+            Boolean loaded;
+            try {
+                loaded = dashboard.loadParameters();
             }
+            finally {
+                Trace.end(span);
+            }
+            RunMetrics.stopTimer("parameterLoad", dashboardId, start);
+            if (loaded) {
+                if (dashboard.calculateDashboard()) {
+                    this.dashboardsCalculated++;
+                    RunSummary.removeDeferred(dashboardId);
+                    RunSummary.addCalculated(dashboardId);
+                    this.dashboardsDone.incrementAndGet();
+                    return dashboard;
+                }
+            }
+            RunSummary.removeDeferred(dashboardId);
+            this.dashboardsDone.incrementAndGet();
+            return null;
+        }
+        finally {
+            DatabaseHelpers.clearDeadline();
+            QueryContext.clear();
+            this.currentDashboardId = null;
         }
     }
 
-    private void calculatePartnerDashboards(Integer partnerId) throws SQLException, RemoteException, ServiceException {
+    /**
+     * Calculate a dashboard that has been asked for by id or name
+     */
+    private void calculateSingleDashboard(Integer dashboardId) throws SQLException, RemoteException, ServiceException {
 
-        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getAllPartnerDashboardsQueryString());
-        while (resultSet.next()) {
-            calculateDashboard(resultSet.getInt("dashboardId"));
+        this.dashboardsRequested = 1;
+        try {
+            Dashboard dashboard = calculateDashboard(dashboardId);
+            if (dashboard != null) {
+                this.pipeline.submit(dashboard);
+            }
+        }
+        catch (DeadlineExceededException e) {
+            deferDashboard(dashboardId, e);
         }
     }
 
-    private String getAllPartnerDashboardsQueryString() {
+    private void deferDashboard(Integer dashboardId, DeadlineExceededException e) {
 
-        StringBuilder commandText = new StringBuilder();
-        commandText.append("SELECT ");
-        commandText.append("d.id as dashboardId ");
-        commandText.append("FROM ");
-        commandText.append(DatabaseHelpers.DASHBOARD_TABLE + " d, ");
-        commandText.append(DatabaseHelpers.PARTNER_TABLE + " p ");
-        commandText.append("WHERE ");
-        commandText.append("p.id = " + this.partnerId);
-        return commandText.toString();
+        Log.warn("dashboardDeferred", "Dashboard with id: " + dashboardId + " ran out of time and has been deferred. " + e.getMessage());
+        RunSummary.addDeferred(dashboardId);
+    }
+
+    private void calculatePartnerDashboards(Integer partnerId) throws SQLException, RemoteException, ServiceException {
+        calculateDashboards(DatabaseHelpers.getDashboardIds(partnerId, this.activeOnly));
     }
 
     private void parseParameters() {
@@ -267,8 +632,8 @@ public class MetricCalculator {
         this.dashboardName = System.getProperty("dashboardName");
         this.filePath = System.getProperty("configFile");
 
-        // Check that any of the required properties have been passed in 
-        if (!(this.partnerId > -1)  && this.partnerName == null && !(this.dashboardId > -1) && this.dashboardName == null) {
+        // Check that any of the required properties have been passed in. Not needed if calculating everything
+        if (!this.calculateAll && !this.costReport && !this.replay && !(this.partnerId > -1)  && this.partnerName == null && !(this.dashboardId > -1) && this.dashboardName == null) {
             System.out.println("You have not entered any of the required properties.");
             printUsage();
             System.exit(-1);
@@ -280,8 +645,8 @@ public class MetricCalculator {
      */
     public void printUsage() {
 
-        System.out.println("Format is java <-DpartnerId=1> <-DpartnerName=partName> <-DdashboardId=5> <-DdashboardName=dashName> <-quarterModifier=n> MetricCalculator <help> <all> <allowInactive>");
-        System.out.println("You must include atleast one of the properties.");
+        System.out.println("Format is java <-DpartnerId=1> <-DpartnerName=partName> <-DdashboardId=5> <-DdashboardName=dashName> <-quarterModifier=n> MetricCalculator <help> <all> <allowInactive> <daemon> <costReport> <replay>");
+        System.out.println("You must include atleast one of the properties unless using all, costReport or replay.");
         System.out.println("Dashboard name or Id will override partner name or Id");
         System.out.println("Id will override name");
         System.out.println("quarterModifier - How many quarters back the figures need to be calculated for");
@@ -289,28 +654,10 @@ public class MetricCalculator {
         System.out.println("help          - Prints usage");
         System.out.println("all           - Calculates all the dashboards");
         System.out.println("allowInactive - Calculate dashboards and parameters that have been set to inactive");
-    }
-
-    public void uploadMetricDatas(ArrayList<M_E_Metric_Data__c> datas) throws RemoteException {
-
-        if (datas.size() == 0 || this.saveAttempts > 4) { 
-            return;
-        }
-        ArrayList<M_E_Metric_Data__c> batch = new ArrayList<M_E_Metric_Data__c>();
-        ArrayList<M_E_Metric_Data__c> failedDatas = new ArrayList<M_E_Metric_Data__c>();
-
-        // Salesforce only allows objects to be pushed up in batches of 200
-        for (int i = 0; i < datas.size(); i++) {
-            batch.add(datas.get(i));
-            if ((i % 200) == 0) {
-                failedDatas.addAll(SalesforceProxy.saveDatasToSalesforce(batch));
-                batch.clear();
-            }
-        }
-        failedDatas.addAll(SalesforceProxy.saveDatasToSalesforce(batch));
-        batch.clear();
-        this.saveAttempts++;
-        uploadMetricDatas(failedDatas);
+        System.out.println("daemon        - Keep running and recalculate every daemonIntervalMinutes (see config)");
+        System.out.println("force         - Recalculate partner or all dashboards even if nothing has changed since the last run");
+        System.out.println("costReport    - Print the metric parameters that have cost the most to calculate (see costReportDays in config)");
+        System.out.println("replay        - Send the metric datas left in the outbox by earlier runs to Salesforce without calculating anything");
     }
 
 }
\ No newline at end of file
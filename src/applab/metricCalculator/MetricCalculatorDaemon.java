@@ -0,0 +1,98 @@
+package applab.metricCalculator;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the metric calculator over and over in the same JVM so the DB connection, Salesforce session and interviewer
+ * details stay warm between runs.
+ * Runs are scheduled with a fixed delay from the end of the previous run so two runs can never overlap.
+ *
+ * Config items used:
+ *     daemonIntervalMinutes     - Minutes to wait between the end of one run and the start of the next. Default 15
+ *     daemonShutdownWaitMinutes - How long shutdown waits for a run in progress to finish. Default 30
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class MetricCalculatorDaemon {
+
+    private MetricCalculator calculator;
+    private ScheduledExecutorService scheduler;
+
+    // Has the first run happened yet. The constructor of the calculator has already set up the first run
+    private Boolean firstRun;
+
+    public MetricCalculatorDaemon(MetricCalculator calculator) {
+        this.calculator = calculator;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.firstRun = true;
+    }
+
+    /**
+     * Start the schedule and register the shutdown hook. The scheduler thread keeps the JVM alive until shutdown.
+     */
+    public void start() {
+
+        long interval = Long.valueOf(Configuration.getConfiguration("daemonIntervalMinutes", "15"));
+        Log.info("daemon", "Starting metric calculator daemon. Runs every " + interval + " minutes");
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                shutdown();
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                runOnce();
+            }
+        }, 0, interval, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Do a single run. Must never let an exception escape as that would cancel all future runs
+     */
+    private void runOnce() {
+
+        long start = System.currentTimeMillis();
+        try {
+            if (!this.firstRun) {
+                this.calculator.prepareNextRun();
+            }
+            this.firstRun = false;
+            this.calculator.calculate();
+        }
+        catch (RemoteException e) {
+
+            // The session may have expired so log in again next time
+            SalesforceProxy.resetBinding();
+            Log.error("runFailed", "Run failed talking to Salesforce", e);
+        }
+        catch (Throwable e) {
+            Log.error("runFailed", "Run failed", e);
+        }
+        Log.info("daemon", "Run finished in " + ((System.currentTimeMillis() - start) / 1000) + " seconds");
+        Log.flush();
+    }
+
+    /**
+     * Stop scheduling runs and give the run in progress a chance to finish and upload what it has calculated
+     */
+    private void shutdown() {
+
+        Log.info("daemon", "Shutting down metric calculator daemon");
+        this.calculator.requestStop();
+        this.scheduler.shutdown();
+        try {
+            long wait = Long.valueOf(Configuration.getConfiguration("daemonShutdownWaitMinutes", "30"));
+            if (!this.scheduler.awaitTermination(wait, TimeUnit.MINUTES)) {
+                Log.warn("daemon", "Run in progress did not finish in time. Stopping anyway");
+            }
+            DatabaseHelpers.closeConnection();
+        }
+        catch (Exception e) {
+            Log.error("daemon", "Failed to shut down cleanly", e);
+        }
+        Log.flush();
+    }
+}
@@ -0,0 +1,477 @@
+package applab.metricCalculator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import com.sforce.soap.enterprise.sobject.M_E_Metric_Data__c;
+
+/**
+ * An append only journal of the metric datas waiting to go up to Salesforce so that calculated values are not lost if
+ * the upload fails or the process dies part way through a run.
+ *
+ * The datas are written to the journal in batches before they are uploaded and each batch is acknowledged once
+ * Salesforce has taken it. Opening the journal picks up the batches that were never acknowledged so they can be sent
+ * without calculating them again. The file is synced to disk after every write so a batch that has been added survives
+ * a crash.
+ *
+ * Each line is tab separated:
+ *     B  batchId  dashboardId  attempts
+ *     D  batchId  id  metricId  districtId  actualValue  date  metricName  districtName
+ *     E  batchId
+ *     A  batchId
+ * A batch is only picked up if its E line was written. Null values are written as \N.
+ *
+ * When new datas are added for a dashboard any older datas for the same metric, district and quarter that are still
+ * waiting are dropped. Otherwise a data that was not in Salesforce when the dashboard was diffed again would be sent
+ * as a new data twice.
+ *
+ * Config items used:
+ *     outboxFile - The journal file. Default metric-outbox.journal
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class MetricOutbox {
+
+    private static final String NULL_VALUE = "\\N";
+
+    private String fileName;
+    private FileOutputStream stream;
+    private BufferedWriter writer;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private SimpleDateFormat dateFormat;
+
+    // The batches that have not been acknowledged yet in the order they were added
+    private LinkedHashMap<Long, Batch> pending;
+    private long nextBatchId;
+
+    public MetricOutbox() {
+        this.fileName = Configuration.getConfiguration("outboxFile", "metric-outbox.journal");
+        this.dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        this.pending = new LinkedHashMap<Long, Batch>();
+        this.nextBatchId = 1;
+    }
+
+    /**
+     * A set of metric datas that are uploaded together
+     */
+    public static class Batch {
+
+        private long id;
+        private int dashboardId;
+        private int attempts;
+
+        // The upload the datas came from. Null if the batch was picked up from an earlier run
+        private DashboardUpload upload;
+        private ArrayList<M_E_Metric_Data__c> datas;
+        private ArrayList<String> metricNames;
+        private ArrayList<String> districts;
+
+        private Batch(long id, int dashboardId, int attempts, DashboardUpload upload) {
+            this.id = id;
+            this.dashboardId = dashboardId;
+            this.attempts = attempts;
+            this.upload = upload;
+            this.datas = new ArrayList<M_E_Metric_Data__c>();
+            this.metricNames = new ArrayList<String>();
+            this.districts = new ArrayList<String>();
+        }
+
+        private void add(M_E_Metric_Data__c data, String metricName, String district) {
+            this.datas.add(data);
+            this.metricNames.add(metricName);
+            this.districts.add(district);
+        }
+
+        public long getId() {
+            return this.id;
+        }
+
+        public int getDashboardId() {
+            return this.dashboardId;
+        }
+
+        /**
+         * @return - How many times the batch has been sent and come back with failures
+         */
+        public int getAttempts() {
+            return this.attempts;
+        }
+
+        public DashboardUpload getUpload() {
+            return this.upload;
+        }
+
+        public ArrayList<M_E_Metric_Data__c> getDatas() {
+            return this.datas;
+        }
+
+        public String getMetricName(int index) {
+            return this.metricNames.get(index);
+        }
+
+        public String getDistrict(int index) {
+            return this.districts.get(index);
+        }
+
+        /**
+         * Find a data in the batch
+         *
+         * @param data - The data object
+         *
+         * @return - Its index. -1 if it is not in the batch
+         */
+        public int indexOf(M_E_Metric_Data__c data) {
+
+            for (int i = 0; i < this.datas.size(); i++) {
+                if (this.datas.get(i) == data) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Read the journal, keep the batches that were not acknowledged and open it for writing.
+     * The journal is rewritten with just those batches so it does not keep growing from run to run.
+     *
+     * @throws IOException - If the journal cannot be read or written or is in use by another process
+     */
+    public synchronized void open() throws IOException {
+
+        this.lockChannel = new FileOutputStream(this.fileName + ".lock").getChannel();
+        try {
+            this.lock = this.lockChannel.tryLock();
+        }
+        catch (OverlappingFileLockException e) {
+
+            // Already open in this process
+            this.lock = null;
+        }
+        if (this.lock == null) {
+            this.lockChannel.close();
+            throw new IOException("The outbox " + this.fileName + " is in use by another run");
+        }
+
+        File file = new File(this.fileName);
+        if (file.exists()) {
+            read(file);
+        }
+
+        // Write the pending batches to a new file and swap it in
+        File compacted = new File(this.fileName + ".tmp");
+        this.stream = new FileOutputStream(compacted);
+        this.writer = new BufferedWriter(new OutputStreamWriter(this.stream, "UTF-8"));
+        for (Batch batch : this.pending.values()) {
+            writeBatch(batch);
+        }
+        sync();
+        this.writer.close();
+        if (!compacted.renameTo(file)) {
+            if (!file.delete() || !compacted.renameTo(file)) {
+                throw new IOException("Failed to replace the outbox " + this.fileName);
+            }
+        }
+        this.stream = new FileOutputStream(file, true);
+        this.writer = new BufferedWriter(new OutputStreamWriter(this.stream, "UTF-8"));
+
+        if (this.pending.size() > 0) {
+            Log.info("outbox", "Picked up " + getPendingDataCount() + " metric datas in " + this.pending.size() + " batches from " + this.fileName);
+        }
+    }
+
+    /**
+     * Add the datas for a dashboard to the journal
+     *
+     * @param upload    - The datas
+     * @param batchSize - The most datas to put in one batch
+     *
+     * @return - The batches that were added
+     */
+    public synchronized ArrayList<Batch> add(DashboardUpload upload, int batchSize) throws IOException {
+
+        supersede(upload);
+        ArrayList<Batch> batches = new ArrayList<Batch>();
+        Batch batch = null;
+        for (M_E_Metric_Data__c data : upload.getDatas()) {
+            if (batch == null || batch.getDatas().size() >= batchSize) {
+                batch = new Batch(this.nextBatchId++, upload.getDashboardId(), 0, upload);
+                batches.add(batch);
+            }
+            batch.add(data, upload.getMetricName(data), upload.getDistrict(data));
+        }
+        for (Batch added : batches) {
+            writeBatch(added);
+            this.pending.put(added.getId(), added);
+        }
+        sync();
+        return batches;
+    }
+
+    /**
+     * Mark a batch as done with
+     *
+     * @param batch - The batch
+     */
+    public synchronized void ack(Batch batch) throws IOException {
+
+        this.writer.write("A\t" + batch.getId() + "\n");
+        sync();
+        this.pending.remove(batch.getId());
+    }
+
+    /**
+     * Replace a batch with a new one holding just the datas that failed so they are sent again
+     *
+     * @param batch       - The batch that was sent
+     * @param failedDatas - The datas from the batch that failed
+     *
+     * @return - The new batch
+     */
+    public synchronized Batch requeue(Batch batch, ArrayList<M_E_Metric_Data__c> failedDatas) throws IOException {
+
+        // Matched on the object itself as the datas compare equal by value
+        Set<M_E_Metric_Data__c> failed = Collections.newSetFromMap(new IdentityHashMap<M_E_Metric_Data__c, Boolean>());
+        failed.addAll(failedDatas);
+        Batch retry = new Batch(this.nextBatchId++, batch.getDashboardId(), batch.getAttempts() + 1, batch.getUpload());
+        for (int i = 0; i < batch.getDatas().size(); i++) {
+            M_E_Metric_Data__c data = batch.getDatas().get(i);
+            if (failed.contains(data)) {
+                retry.add(data, batch.getMetricName(i), batch.getDistrict(i));
+            }
+        }
+        writeBatch(retry);
+        this.writer.write("A\t" + batch.getId() + "\n");
+        sync();
+        this.pending.remove(batch.getId());
+        this.pending.put(retry.getId(), retry);
+        return retry;
+    }
+
+    /**
+     * @return - A copy of the batches that have not been acknowledged, oldest first
+     */
+    public synchronized ArrayList<Batch> getPending() {
+        return new ArrayList<Batch>(this.pending.values());
+    }
+
+    public synchronized int getPendingDataCount() {
+
+        int count = 0;
+        for (Batch batch : this.pending.values()) {
+            count += batch.getDatas().size();
+        }
+        return count;
+    }
+
+    public synchronized void close() throws IOException {
+
+        try {
+            if (this.writer != null) {
+                this.writer.close();
+                this.writer = null;
+            }
+        }
+        finally {
+            if (this.lock != null) {
+                this.lock.release();
+                this.lockChannel.close();
+                this.lock = null;
+            }
+        }
+    }
+
+    /**
+     * Drop the datas in older batches for the dashboard that the upload has newer values for
+     *
+     * @param upload - The new datas
+     */
+    private void supersede(DashboardUpload upload) throws IOException {
+
+        HashSet<String> newKeys = new HashSet<String>();
+        for (M_E_Metric_Data__c data : upload.getDatas()) {
+            if (data.getId() != null) {
+                newKeys.add(data.getId());
+            }
+            Date date = data.getDate__c() == null ? Utils.getQuarterStartDate() : data.getDate__c();
+            newKeys.add(getLabelKey(upload.getMetricName(data), upload.getDistrict(data), date));
+        }
+        for (Batch batch : new ArrayList<Batch>(this.pending.values())) {
+            if (batch.getDashboardId() != upload.getDashboardId() || batch.getUpload() == upload) {
+                continue;
+            }
+
+            // Datas that are already in Salesforce can only be matched on their id as they may not have a date
+            Batch kept = new Batch(this.nextBatchId, batch.getDashboardId(), batch.getAttempts(), batch.getUpload());
+            for (int i = 0; i < batch.getDatas().size(); i++) {
+                M_E_Metric_Data__c data = batch.getDatas().get(i);
+                String key = data.getId() != null ? data.getId() : getLabelKey(batch.getMetricName(i), batch.getDistrict(i), data.getDate__c());
+                if (!newKeys.contains(key)) {
+                    kept.add(data, batch.getMetricName(i), batch.getDistrict(i));
+                }
+            }
+            int dropped = batch.getDatas().size() - kept.getDatas().size();
+            if (dropped == 0) {
+                continue;
+            }
+            if (kept.getDatas().size() > 0) {
+                this.nextBatchId++;
+                writeBatch(kept);
+                this.pending.put(kept.getId(), kept);
+            }
+            this.writer.write("A\t" + batch.getId() + "\n");
+            this.pending.remove(batch.getId());
+            Log.info("outbox", "Dropped " + dropped + " waiting metric datas for dashboard " + batch.getDashboardId() + " as newer values have been calculated");
+        }
+    }
+
+    private String getLabelKey(String metricName, String district, Date date) {
+        return metricName + "\t" + district + "\t" + (date == null ? "" : this.dateFormat.format(date));
+    }
+
+    private void read(File file) throws IOException {
+
+        LinkedHashMap<Long, Batch> started = new LinkedHashMap<Long, Batch>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                try {
+                    long batchId = Long.valueOf(fields[1]);
+                    this.nextBatchId = Math.max(this.nextBatchId, batchId + 1);
+                    if (fields[0].equals("B") && fields.length == 4) {
+                        started.put(batchId, new Batch(batchId, Integer.valueOf(fields[2]), Integer.valueOf(fields[3]), null));
+                    }
+                    else if (fields[0].equals("D") && fields.length == 9 && started.containsKey(batchId)) {
+                        started.get(batchId).add(parseData(fields), unescape(fields[7]), unescape(fields[8]));
+                    }
+                    else if (fields[0].equals("E") && started.containsKey(batchId)) {
+                        this.pending.put(batchId, started.remove(batchId));
+                    }
+                    else if (fields[0].equals("A")) {
+                        this.pending.remove(batchId);
+                    }
+                }
+                catch (RuntimeException e) {
+
+                    // Most likely the last line was only half written when the process died
+                    Log.warn("outbox", "Skipping a bad line in " + this.fileName + ": " + line);
+                }
+                catch (ParseException e) {
+                    Log.warn("outbox", "Skipping a bad line in " + this.fileName + ": " + line);
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    private M_E_Metric_Data__c parseData(String[] fields) throws ParseException {
+
+        M_E_Metric_Data__c data = new M_E_Metric_Data__c();
+        if (unescape(fields[2]) != null) {
+            data.setId(unescape(fields[2]));
+        }
+        if (unescape(fields[3]) != null) {
+            data.setM_E_Metric__c(unescape(fields[3]));
+        }
+        if (unescape(fields[4]) != null) {
+            data.setDistrict__c(unescape(fields[4]));
+        }
+        if (unescape(fields[5]) != null) {
+            data.setActual_Value__c(Double.valueOf(fields[5]));
+        }
+        if (unescape(fields[6]) != null) {
+            data.setDate__c(this.dateFormat.parse(fields[6]));
+        }
+        return data;
+    }
+
+    private void writeBatch(Batch batch) throws IOException {
+
+        this.writer.write("B\t" + batch.getId() + "\t" + batch.getDashboardId() + "\t" + batch.getAttempts() + "\n");
+        for (int i = 0; i < batch.getDatas().size(); i++) {
+            M_E_Metric_Data__c data = batch.getDatas().get(i);
+            StringBuilder line = new StringBuilder();
+            line.append("D\t" + batch.getId());
+            line.append("\t" + escape(data.getId()));
+            line.append("\t" + escape(data.getM_E_Metric__c()));
+            line.append("\t" + escape(data.getDistrict__c()));
+            line.append("\t" + (data.getActual_Value__c() == null ? NULL_VALUE : data.getActual_Value__c().toString()));
+            line.append("\t" + (data.getDate__c() == null ? NULL_VALUE : this.dateFormat.format(data.getDate__c())));
+            line.append("\t" + escape(batch.getMetricName(i)));
+            line.append("\t" + escape(batch.getDistrict(i)));
+            line.append("\n");
+            this.writer.write(line.toString());
+        }
+        this.writer.write("E\t" + batch.getId() + "\n");
+    }
+
+    /**
+     * Push what has been written out to the disk
+     */
+    private void sync() throws IOException {
+        this.writer.flush();
+        this.stream.getFD().sync();
+    }
+
+    private static String escape(String value) {
+
+        if (value == null) {
+            return NULL_VALUE;
+        }
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+
+        if (value.equals(NULL_VALUE)) {
+            return null;
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                i++;
+                char next = value.charAt(i);
+                if (next == 't') {
+                    text.append('\t');
+                }
+                else if (next == 'n') {
+                    text.append('\n');
+                }
+                else if (next == 'r') {
+                    text.append('\r');
+                }
+                else {
+                    text.append(next);
+                }
+            }
+            else {
+                text.append(c);
+            }
+        }
+        return text.toString();
+    }
+}
@@ -47,6 +47,9 @@ public class MetricParameter {
     private Double overRideTotal;
     private Double overRideTotal2;
 
+    // The id of the metricparameter row. Null for the parameters the calculator makes up itself
+    private Integer parameterId;
+
     public MetricParameter(
             String metricName,
             Integer surveyId,
@@ -79,6 +82,14 @@ public class MetricParameter {
         return metricName;
     }
 
+    public Integer getParameterId() {
+        return parameterId;
+    }
+
+    public void setParameterId(Integer parameterId) {
+        this.parameterId = parameterId;
+    }
+
     public Integer getSurveyId() {
         return surveyId;
     }
@@ -137,6 +148,18 @@ public class MetricParameter {
      * @return - The query string
      */
     public String getQueryString() {
+        return getQueryString(null, null);
+    }
+
+    /**
+     * Builds the query string that gets the submissions for this metric in a range of submission ids
+     *
+     * @param fromId - The first submission id to include. Null for no lower limit
+     * @param toId   - The last submission id to include. Null for no upper limit
+     *
+     * @return - The query string
+     */
+    public String getQueryString(Long fromId, Long toId) {
 
         StringBuilder commandText = new StringBuilder();
         commandText.append("SELECT ");
@@ -150,6 +173,10 @@ public class MetricParameter {
         }
         commandText.append("s.interviewer_id as interviewer_id ");
         commandText.append("FROM ");
+        Boolean useOptionIndex = usesOptionIndex(AnswerOptionIndex.isReady());
+        if (useOptionIndex) {
+            commandText.append("(" + getOptionIndexQuery(fromId, toId) + ") o, ");
+        }
         commandText.append(DatabaseHelpers.SUBMISSION_ANSWERS_TABLE + " a, ");
         commandText.append(DatabaseHelpers.SUBMISSION_TABLE + " s ");
         commandText.append("WHERE ");
@@ -159,8 +186,14 @@ public class MetricParameter {
         commandText.append(" AND a.question_name = '");
         commandText.append(this.binding);
         commandText.append("' ");
-        commandText.append(getSelectOptionClause());
+        commandText.append(getSelectOptionClause(useOptionIndex));
         commandText.append(DatabaseHelpers.getQuarterStartEndParameter());
+        if (fromId != null) {
+            commandText.append(" AND s.id >= " + fromId);
+        }
+        if (toId != null) {
+            commandText.append(" AND s.id <= " + toId);
+        }
         if (this.getIsRepeat().equals("Y")) {
             commandText.append(" GROUP BY s.id");
         }
@@ -168,12 +201,216 @@ public class MetricParameter {
         return commandText.toString();
     }
 
+    /**
+     * Builds the query string that adds up the answers for this metric for each district in the DB. Joins to the
+     * interviewer_dim table so only one row per district, or per district and lickert option, comes back.
+     * Gives the same results as folding every row from getQueryString() through updateCalculation(). Not used for
+     * repeat questions.
+     *
+     * @return - The query string
+     */
+    public String getDistrictQueryString() {
+
+        // The rollup has already counted the answers so add up the counts rather than counting rows
+        Boolean useRollup = AnswerRollup.isReady();
+        Boolean useOptionIndex = !useRollup && usesOptionIndex(AnswerOptionIndex.isReady());
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("d.district AS sub_divider, ");
+        if (this.lickert > 0) {
+            commandText.append("a.answer AS answer, ");
+        }
+        if (useRollup) {
+            commandText.append("SUM(a.answer_count) AS answer_count, ");
+            commandText.append("SUM((" + getAnswerValueExpression() + ") * a.answer_count) AS answer_value ");
+        }
+        else {
+            commandText.append("COUNT(*) AS answer_count, ");
+            commandText.append("SUM(" + getAnswerValueExpression() + ") AS answer_value ");
+        }
+        commandText.append("FROM ");
+        if (useRollup) {
+            commandText.append(DatabaseHelpers.ANSWER_ROLLUP_TABLE + " a, ");
+        }
+        else {
+            if (useOptionIndex) {
+                commandText.append("(" + getOptionIndexQuery(null, null) + ") o, ");
+            }
+            commandText.append(DatabaseHelpers.SUBMISSION_ANSWERS_TABLE + " a, ");
+            commandText.append(DatabaseHelpers.SUBMISSION_TABLE + " s, ");
+        }
+        commandText.append(DatabaseHelpers.INTERVIEWER_DIM_TABLE + " d ");
+        commandText.append("WHERE ");
+        if (useRollup) {
+            commandText.append("a.survey_id = ");
+            commandText.append(this.surveyId);
+        }
+        else {
+            commandText.append("s.survey_id = ");
+            commandText.append(this.surveyId);
+            commandText.append(" AND s.id = a.submission_id ");
+        }
+        commandText.append(" AND a.question_name = '");
+        commandText.append(this.binding);
+        commandText.append("' ");
+        commandText.append(getSelectOptionClause(useOptionIndex));
+        if (useRollup) {
+            commandText.append(DatabaseHelpers.getQuarterDayParameter("a.day"));
+            commandText.append(" AND d.interviewer_id = a.interviewer_id ");
+        }
+        else {
+            commandText.append(DatabaseHelpers.getQuarterStartEndParameter());
+            commandText.append(" AND d.interviewer_id = s.interviewer_id ");
+        }
+        commandText.append(" AND d.district IS NOT NULL ");
+        commandText.append(" AND d.gender IS NOT NULL ");
+        commandText.append("GROUP BY d.district");
+        if (this.lickert > 0) {
+            commandText.append(", a.answer");
+        }
+        return commandText.toString();
+    }
+
+    /**
+     * Builds the query string that gets the answers for this metric from the daily rollup. Each row is one answer given
+     * by one interviewer along with how many times they gave it this quarter. Not used for repeat questions.
+     *
+     * @return - The query string
+     */
+    public String getRollupQueryString() {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("a.answer AS answer, ");
+        commandText.append("a.interviewer_id AS interviewer_id, ");
+        commandText.append("SUM(a.answer_count) AS answer_count ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.ANSWER_ROLLUP_TABLE + " a ");
+        commandText.append("WHERE ");
+        commandText.append("a.survey_id = ");
+        commandText.append(this.surveyId);
+        commandText.append(" AND a.question_name = '");
+        commandText.append(this.binding);
+        commandText.append("' ");
+        commandText.append(getSelectOptionClause(false));
+        commandText.append(DatabaseHelpers.getQuarterDayParameter("a.day"));
+        commandText.append("GROUP BY a.interviewer_id, a.answer_hash, a.answer");
+        return commandText.toString();
+    }
+
+    /**
+     * Build the SQL that works out what an answer adds to the metric. Matches updateCalculation()
+     *
+     * @return - The SQL expression
+     */
+    private String getAnswerValueExpression() {
+
+        switch (this.questionType) {
+            case number :
+
+                // Same numbers as Double.valueOf e.g. " 12 ", "1." and ".5". The dot is in a bracket because a
+                // backslash is eaten by the MySQL string literal before the regex sees it
+                return "CASE WHEN a.answer REGEXP '^[[:space:]]*[-+]?([0-9]+[.]?[0-9]*|[.][0-9]+)([eE][-+]?[0-9]+)?[[:space:]]*$' THEN a.answer + 0 ELSE 0 END";
+            case bool :
+                return "CASE WHEN a.answer = '1' OR LOWER(a.answer) IN ('true', 'yes') THEN 1 ELSE 0 END";
+            case singleSelect :
+            case multiSelect :
+                return "CASE WHEN a.answer IS NULL THEN 0 ELSE 1 END";
+            default :
+                return "0";
+        }
+    }
+
+    /**
+     * Build the query that gets how many submissions this metric covers and the range of their ids. Used to decide if
+     * the answers should be scanned in ranges
+     *
+     * @return - The query string
+     */
+    public String getSubmissionRangeQuery() {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("COUNT(s.id) AS total, ");
+        commandText.append("MIN(s.id) AS minId, ");
+        commandText.append("MAX(s.id) AS maxId ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.SUBMISSION_TABLE + " s ");
+        commandText.append("WHERE ");
+        commandText.append("s.survey_id = ");
+        commandText.append(this.surveyId);
+        commandText.append(DatabaseHelpers.getQuarterStartEndParameter());
+        return commandText.toString();
+    }
+
+    /**
+     * Should the answers be found through the answer_option table
+     *
+     * @param optionIndexReady - Is the answer_option table up to date for this run
+     *
+     * @return - True for a multi select metric that is not lickert if the table can be used
+     */
+    private Boolean usesOptionIndex(Boolean optionIndexReady) {
+
+        return optionIndexReady
+                && this.lickert == 0
+                && this.questionType == QuestionType.multiSelect
+                && this.selectOptions.split(" ").length > 0;
+    }
+
+    /**
+     * Builds the query that finds the answers to this question this quarter that have any of the select options. Starts
+     * from the (question_name, answer_option) key on answer_option so only the matching answers are read. Each answer
+     * only comes back once even if it has more than one of the options so joining to it does not count an answer twice.
+     * MySQL 5.1 and 5.5 run an IN (SELECT ...) on the answers as a dependent subquery for every answer to the question,
+     * which is why the lookup is joined to instead.
+     *
+     * @param fromId - The first submission id to include. Null for no lower limit
+     * @param toId   - The last submission id to include. Null for no upper limit
+     *
+     * @return - The query string
+     */
+    public String getOptionIndexQuery(Long fromId, Long toId) {
+
+        String[] optionList = this.selectOptions.split(" ");
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT DISTINCT ");
+        commandText.append("o.submission_id, ");
+        commandText.append("o.position ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.ANSWER_OPTION_TABLE + " o, ");
+        commandText.append(DatabaseHelpers.SUBMISSION_TABLE + " s ");
+        commandText.append("WHERE ");
+        commandText.append("o.question_name = '" + this.binding + "' ");
+        commandText.append("AND o.answer_option IN (");
+        for (int i = 0; i < optionList.length; i++) {
+            commandText.append("'" + optionList[i] + "'");
+            if (i < optionList.length - 1) {
+                commandText.append(", ");
+            }
+        }
+        commandText.append(") ");
+        commandText.append("AND s.id = o.submission_id ");
+        commandText.append("AND s.survey_id = " + this.surveyId);
+        commandText.append(DatabaseHelpers.getQuarterStartEndParameter());
+        if (fromId != null) {
+            commandText.append(" AND o.submission_id >= " + fromId);
+        }
+        if (toId != null) {
+            commandText.append(" AND o.submission_id <= " + toId);
+        }
+        return commandText.toString();
+    }
+
     /**
      * Builds the part of the query string that deals with single or multiple select questions
      *
+     * @param useOptionIndex - Join to the answer_option lookup rather than matching multi select answers with LIKE. The
+     *                         query must have the lookup from getOptionIndexQuery() in its FROM clause as o
+     *
      * @return - Part of the where clause for the select options
      */
-    private String getSelectOptionClause() {
+    private String getSelectOptionClause(Boolean useOptionIndex) {
 
         StringBuilder selectOptionClause = new StringBuilder();
 
@@ -190,7 +427,11 @@ public class MetricParameter {
                 break;
             case multiSelect:
                 String[] optionList = this.selectOptions.split(" ");
-                if (optionList.length > 0) {
+                if (optionList.length > 0 && useOptionIndex) {
+                    selectOptionClause.append("a.submission_id = o.submission_id ");
+                    selectOptionClause.append("AND a.position = o.position ");
+                }
+                else if (optionList.length > 0) {
                     selectOptionClause.append("(");
                     Integer counter = 0;
                     for (String option : optionList) {
@@ -224,6 +465,19 @@ public class MetricParameter {
      * @return - The metric calculation object
      */
     public MetricCalculation updateCalculation(MetricCalculation metricCalculation, String answer) {
+        return updateCalculation(metricCalculation, answer, 1.0);
+    }
+
+    /**
+     * Updates a metric calculation object for an answer that was given a number of times
+     *
+     * @param metricCalculation - The object that contains the counters for this metric param
+     * @param answer            - The answer to this question
+     * @param times             - How many times the answer was given
+     *
+     * @return - The metric calculation object
+     */
+    public MetricCalculation updateCalculation(MetricCalculation metricCalculation, String answer, Double times) {
 
         if (answer == null) {
             return metricCalculation;
@@ -231,10 +485,10 @@ public class MetricParameter {
         if (this.questionType.toString().equals("number")) {
             try {
                 Double answerInt = Double.valueOf(answer);
-                metricCalculation.addToValue1(answerInt);
+                metricCalculation.addToValue1(answerInt * times);
             }
             catch (NumberFormatException e) {
-                System.out.println("Answer " + answer + " is not a valid number so cannot add to total");
+                Log.warn("invalidNumber", "Answer " + answer + " is not a valid number so cannot add to total");
                 return metricCalculation;
             }
         }
@@ -242,12 +496,12 @@ public class MetricParameter {
             switch (this.questionType) {
                 case bool :
                     if (answer.equals("1") || answer.toLowerCase().equals("true") || answer.toLowerCase().equals("yes")) {
-                        metricCalculation.addToValue1(1.0);
+                        metricCalculation.addToValue1(times);
                     }
                     break;
                 case singleSelect :	
                 case multiSelect :
-                    metricCalculation.addToValue1(1.0);
+                    metricCalculation.addToValue1(times);
                     break;
             }
         }
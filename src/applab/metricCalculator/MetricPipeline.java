@@ -0,0 +1,374 @@
+package applab.metricCalculator;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.rpc.ServiceException;
+
+import com.sforce.soap.enterprise.sobject.M_E_Metric_Data__c;
+
+/**
+ * Moves calculated dashboards through the rest of the run so that nothing has to wait for every dashboard to be calculated.
+ *
+ * There are three stages joined by bounded queues:
+ *     calculate - done by the caller, which hands each calculated dashboard to submit()
+ *     diff      - gets the existing metric datas from Salesforce and works out what needs updating
+ *     upload    - writes the datas for each dashboard to the MetricSink for the run, normally Salesforce, and then lets go of them
+ * The bounded queues stop the calculate stage from getting too far ahead so memory use stays flat through the run.
+ * If the diff stage fails, the dashboards it had already diffed are still uploaded. Anything that is dropped is logged.
+ * If the run has a DashboardScheduler it is told as each dashboard leaves the pipeline so it can hand out another one
+ * for the same partner.
+ *
+ * Config items used:
+ *     pipelineQueueSize - How many dashboards can be waiting between each stage. Default 4
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class MetricPipeline {
+
+    // Markers put on the queues to tell the next stage that there is nothing else coming
+    private static final Dashboard END_OF_DASHBOARDS = new Dashboard(-1, true);
+    private static final DashboardUpload END_OF_UPLOADS = new DashboardUpload(-1, null, null);
+
+    private MetricSink sink;
+    private ArrayBlockingQueue<Dashboard> calculatedQueue;
+    private ArrayBlockingQueue<DashboardUpload> uploadQueue;
+    private ExecutorService stages;
+    private Future<Object> diffStage;
+    private Future<Object> uploadStage;
+
+    // Told when each dashboard is done with. Null if the run is not scheduled
+    private volatile DashboardScheduler scheduler;
+
+    // Set if any stage has failed or the run has been abandoned so the other stages stop
+    private volatile Boolean aborted;
+
+    // Set if the run has been abandoned so the upload stage does not try to finish what is in its queue
+    private volatile Boolean cancelled;
+
+    public MetricPipeline() {
+
+        int queueSize = Integer.valueOf(Configuration.getConfiguration("pipelineQueueSize", "4"));
+        this.sink = MetricSinks.create();
+        this.calculatedQueue = new ArrayBlockingQueue<Dashboard>(queueSize);
+        this.uploadQueue = new ArrayBlockingQueue<DashboardUpload>(queueSize);
+        this.aborted = false;
+        this.cancelled = false;
+    }
+
+    /**
+     * Open the sink and start the diff and upload stages
+     */
+    public void start() throws RemoteException, SQLException, IOException {
+
+        // The Salesforce sink sends what an earlier run left in its outbox here so it is in Salesforce before the diff
+        // stage looks for existing datas
+        Boolean opened = false;
+        try {
+            this.sink.open();
+            opened = true;
+        }
+        finally {
+            if (!opened) {
+                this.sink.close();
+            }
+        }
+        this.stages = Executors.newFixedThreadPool(2);
+        this.diffStage = this.stages.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                try {
+                    runDiffStage();
+                }
+                catch (Exception e) {
+                    stopOnFailure();
+                    logDropped("calculated", calculatedQueue);
+                    throw e;
+                }
+                finally {
+                    DatabaseHelpers.releaseConnection();
+                }
+                return null;
+            }
+        });
+        this.uploadStage = this.stages.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                try {
+                    runUploadStage();
+                }
+                catch (Exception e) {
+                    stopOnFailure();
+                    throw e;
+                }
+                finally {
+                    DatabaseHelpers.releaseConnection();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Set the scheduler that handed out the dashboards being submitted
+     *
+     * @param scheduler - The scheduler or null if the dashboards are not scheduled
+     */
+    public void setScheduler(DashboardScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Hand a calculated dashboard on to the diff stage. Waits if the diff stage has fallen behind
+     *
+     * @param dashboard - The calculated dashboard
+     */
+    public void submit(Dashboard dashboard) throws RemoteException, SQLException, ServiceException {
+
+        if (!put(this.calculatedQueue, dashboard)) {
+
+            // A later stage has failed. Find out why
+            finish();
+        }
+    }
+
+    /**
+     * Wait for everything that has been submitted to be uploaded
+     */
+    public void finish() throws RemoteException, SQLException, ServiceException {
+
+        put(this.calculatedQueue, END_OF_DASHBOARDS);
+        try {
+            waitForStage(this.diffStage);
+            waitForStage(this.uploadStage);
+        }
+        finally {
+            this.stages.shutdownNow();
+        }
+    }
+
+    /**
+     * How many calculated dashboards are waiting to be diffed
+     */
+    public int getCalculatedQueueDepth() {
+        return this.calculatedQueue.size();
+    }
+
+    /**
+     * How many dashboards are waiting to be uploaded
+     */
+    public int getUploadQueueDepth() {
+        return this.uploadQueue.size();
+    }
+
+    /**
+     * Give up on the run. Anything waiting in the queues is dropped
+     */
+    public void abort() {
+
+        this.cancelled = true;
+        stopOnFailure();
+        this.stages.shutdownNow();
+        logDropped("calculated", this.calculatedQueue);
+        logDropped("diffed", this.uploadQueue);
+    }
+
+    /**
+     * Stop the stages and the scheduler so the calculate stage is not left waiting for dashboards that will never finish
+     */
+    private void stopOnFailure() {
+
+        this.aborted = true;
+        DashboardScheduler current = this.scheduler;
+        if (current != null) {
+            current.stop();
+        }
+    }
+
+    /**
+     * Let the scheduler know a dashboard has left the pipeline
+     */
+    private void finished(int dashboardId) {
+
+        DashboardScheduler current = this.scheduler;
+        if (current != null) {
+            current.finished(dashboardId);
+        }
+    }
+
+    private void runDiffStage() throws RemoteException, SQLException, ServiceException {
+
+        while (true) {
+            Dashboard dashboard = take(this.calculatedQueue);
+            if (dashboard == null || dashboard == END_OF_DASHBOARDS) {
+                break;
+            }
+            QueryContext.setDashboard(dashboard.getDashboardId());
+            DashboardUpload upload;
+            try {
+                upload = dashboard.getUpload();
+            }
+            finally {
+                QueryContext.clear();
+            }
+            if (!put(this.uploadQueue, upload)) {
+                Log.warn("pipelineDropped", "Dropped the diffed dashboard with id: " + upload.getDashboardId() + " as the run has been stopped");
+                return;
+            }
+        }
+        if (this.aborted && !this.cancelled) {
+            logDropped("calculated", this.calculatedQueue);
+        }
+        put(this.uploadQueue, END_OF_UPLOADS);
+    }
+
+    private void runUploadStage() throws RemoteException, SQLException, IOException {
+
+        try {
+            while (true) {
+                DashboardUpload upload = take(this.uploadQueue);
+                if (upload == END_OF_UPLOADS) {
+                    break;
+                }
+                if (upload == null) {
+
+                    // The diff stage has failed. Upload what it had already diffed so the work is not lost
+                    if (!this.cancelled) {
+                        DashboardUpload waiting = this.uploadQueue.poll();
+                        while (waiting != null && waiting != END_OF_UPLOADS) {
+                            writeUpload(waiting);
+                            waiting = this.uploadQueue.poll();
+                        }
+                    }
+                    break;
+                }
+                writeUpload(upload);
+            }
+        }
+        finally {
+            this.sink.close();
+        }
+    }
+
+    /**
+     * Write a dashboard to the sink and record how it went
+     */
+    private void writeUpload(DashboardUpload upload) throws RemoteException, SQLException, IOException {
+
+        long start = RunMetrics.startTimer();
+        ArrayList<M_E_Metric_Data__c> failedDatas = this.sink.write(upload);
+        ArrayList<M_E_Metric_Data__c> pendingDatas = this.sink.getPending(upload);
+        RunMetrics.stopTimer("upload", upload.getDashboardId(), start);
+        int uploaded = upload.getDatas().size() - failedDatas.size() - pendingDatas.size();
+        RunMetrics.addCount("upserts", upload.getDashboardId(), uploaded);
+        RunMetrics.addCount("pendingUpserts", upload.getDashboardId(), pendingDatas.size());
+        RunMetrics.addCount("failedUpserts", upload.getDashboardId(), failedDatas.size());
+        RunSummary.addUploadResult(uploaded, pendingDatas.size(), failedDatas.size());
+
+        // Remember the fingerprint if the dashboard made it up to Salesforce in full so it is not recalculated until it changes
+        if (failedDatas.isEmpty() && pendingDatas.isEmpty() && upload.getFingerprint() != null && !MetricSinks.isOffline()) {
+            upload.getFingerprint().store();
+        }
+        upload.release();
+        finished(upload.getDashboardId());
+    }
+
+    /**
+     * Log the dashboards left in a queue that will not go any further
+     *
+     * @param stage - What has been done to the dashboards in the queue
+     * @param queue - The queue
+     */
+    private void logDropped(String stage, ArrayBlockingQueue<?> queue) {
+
+        ArrayList<Integer> dashboardIds = new ArrayList<Integer>();
+        for (Object item : queue.toArray()) {
+            if (item instanceof Dashboard && item != END_OF_DASHBOARDS) {
+                dashboardIds.add(((Dashboard)item).getDashboardId());
+            }
+            else if (item instanceof DashboardUpload && item != END_OF_UPLOADS) {
+                dashboardIds.add(((DashboardUpload)item).getDashboardId());
+            }
+        }
+        if (!dashboardIds.isEmpty()) {
+            Log.warn("pipelineDropped", "Dropped " + dashboardIds.size() + " " + stage + " dashboards that will be calculated again in the next run: " + dashboardIds);
+        }
+    }
+
+    /**
+     * Put an item on a queue, waiting for space if needed
+     *
+     * @return - False if the pipeline was aborted before there was space
+     */
+    private <T> Boolean put(ArrayBlockingQueue<T> queue, T item) {
+
+        try {
+            while (!this.aborted) {
+                if (queue.offer(item, 1, TimeUnit.SECONDS)) {
+                    return true;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.aborted = true;
+        }
+        return false;
+    }
+
+    /**
+     * Take an item off a queue, waiting for one if needed
+     *
+     * @return - The item or null if the pipeline was aborted first
+     */
+    private <T> T take(ArrayBlockingQueue<T> queue) {
+
+        try {
+            while (!this.aborted) {
+                T item = queue.poll(1, TimeUnit.SECONDS);
+                if (item != null) {
+                    return item;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.aborted = true;
+        }
+        return null;
+    }
+
+    /**
+     * Wait for a stage to finish and pass on anything it threw
+     */
+    private void waitForStage(Future<Object> stage) throws RemoteException, SQLException, ServiceException {
+
+        try {
+            stage.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException)cause;
+            }
+            if (cause instanceof SQLException) {
+                throw (SQLException)cause;
+            }
+            if (cause instanceof ServiceException) {
+                throw (ServiceException)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package applab.metricCalculator;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+import com.sforce.soap.enterprise.sobject.M_E_Metric_Data__c;
+
+/**
+ * Somewhere the calculated metric datas are written to. The upload stage of the MetricPipeline passes each dashboard
+ * to the sink for the run. See MetricSinks for how the sink is chosen.
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public interface MetricSink {
+
+    /**
+     * Get ready to write. Called once at the start of the run before any dashboard is calculated
+     */
+    public void open() throws RemoteException, SQLException, IOException;
+
+    /**
+     * Write the datas for a dashboard
+     *
+     * @param upload - The datas for the dashboard along with their metric names and districts
+     *
+     * @return - The datas that could not be written and have been given up on
+     */
+    public ArrayList<M_E_Metric_Data__c> write(DashboardUpload upload) throws RemoteException, SQLException, IOException;
+
+    /**
+     * Get the datas for a dashboard that have not been written yet but will be tried again e.g. waiting in an outbox
+     * for Salesforce to come back
+     *
+     * @param upload - The upload that was passed to write()
+     *
+     * @return - The datas. Empty if the sink writes everything straight away
+     */
+    public ArrayList<M_E_Metric_Data__c> getPending(DashboardUpload upload);
+
+    /**
+     * Write out anything that is still buffered. Called once at the end of the run, even if the run failed
+     */
+    public void close() throws SQLException, IOException;
+}
@@ -0,0 +1,55 @@
+package applab.metricCalculator;
+
+/**
+ * Picks the MetricSink for a run from the config.
+ *
+ * Any sink other than Salesforce makes the run offline so it can be run without a Salesforce org:
+ *     The metrics are created from their names rather than looked up in Salesforce
+ *     The existing metric datas are not fetched so every data is written as new
+ *     The interviewer districts are read from the interviewer_dim table, which must have been synced by an earlier run,
+ *     and the table is not synced again
+ *     The dashboard fingerprints are not stored as the datas have not reached Salesforce. Use force to recalculate
+ *     dashboards that have not changed since they were last uploaded
+ *
+ * Config items used:
+ *     metricSink - salesforce, jdbc, csv or jsonl. Default salesforce
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class MetricSinks {
+
+    /**
+     * Create the sink for a run
+     *
+     * @return - The sink
+     */
+    public static MetricSink create() {
+
+        String name = getName();
+        if (name.equals("jdbc")) {
+            return new JdbcMetricSink();
+        }
+        if (name.equals("csv") || name.equals("jsonl")) {
+            return new FileMetricSink(name.equals("jsonl"));
+        }
+        if (!name.equals("salesforce")) {
+            Log.warn("unknownMetricSink", "Unknown metricSink " + name + ". Uploading to Salesforce");
+        }
+        return new SalesforceMetricSink();
+    }
+
+    /**
+     * Is the run writing somewhere other than Salesforce
+     *
+     * @return - True if Salesforce should not be used
+     */
+    public static Boolean isOffline() {
+
+        String name = getName();
+        return name.equals("jdbc") || name.equals("csv") || name.equals("jsonl");
+    }
+
+    private static String getName() {
+        return Configuration.getConfiguration("metricSink", "salesforce").toLowerCase();
+    }
+}
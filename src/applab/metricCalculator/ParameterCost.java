@@ -0,0 +1,264 @@
+package applab.metricCalculator;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What it cost to calculate one metric parameter for one dashboard. The queries run for the parameter add their rows
+ * and DB time to it through the QueryContext, so the queries run by the scan workers are counted as well. The fold
+ * time is the time spent folding the rows the queries return into the calculations. Each thread times its own folding,
+ * so a parameter scanned in ranges gets the fold time of every range in the same way as it gets their DB time.
+ *
+ * The costs for a run are saved to the metric_parameter_cost table at the end of the run so the most expensive
+ * parameters can be found with the costReport option.
+ *
+ * Config items used:
+ *     parameterCostHistory - Y to save the cost of each parameter at the end of each run. Default Y
+ *     costReportDays       - How many days of history the cost report covers. Default 30
+ *     costReportSize       - How many parameters the cost report lists. Default 20
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class ParameterCost {
+
+    // The costs recorded in this run
+    private static ArrayList<ParameterCost> runCosts = new ArrayList<ParameterCost>();
+    private static long runStartTime = System.currentTimeMillis();
+
+    private Integer dashboardId;
+    private Integer parameterId;
+    private String parameterName;
+    private String questionType;
+    private long dataCount;
+    private AtomicLong queryCount;
+    private AtomicLong rowsScanned;
+    private AtomicLong dbMillis;
+    private AtomicLong foldMillis;
+
+    private ParameterCost(Integer dashboardId, MetricParameter parameter) {
+        this.dashboardId = dashboardId;
+        this.parameterId = parameter.getParameterId();
+        this.parameterName = parameter.getMetricName();
+        this.questionType = parameter.getQuestionType() == null ? null : parameter.getQuestionType().toString();
+        this.queryCount = new AtomicLong();
+        this.rowsScanned = new AtomicLong();
+        this.dbMillis = new AtomicLong();
+        this.foldMillis = new AtomicLong();
+    }
+
+    /**
+     * Start counting the cost of a parameter
+     *
+     * @param dashboardId - The dashboard the parameter is being calculated for
+     * @param parameter   - The parameter
+     *
+     * @return - The cost to pass to the QueryContext and to finish once the parameter has been calculated
+     */
+    public static ParameterCost start(Integer dashboardId, MetricParameter parameter) {
+        return new ParameterCost(dashboardId, parameter);
+    }
+
+    /**
+     * Add a query run for the parameter. Called from any thread
+     *
+     * @param executeMillis - How long the DB took to run the query
+     * @param rows          - How many rows were read
+     */
+    public void addQuery(long executeMillis, long rows) {
+
+        this.queryCount.incrementAndGet();
+        this.dbMillis.addAndGet(executeMillis);
+        this.rowsScanned.addAndGet(rows);
+    }
+
+    /**
+     * Add the time spent folding the rows from a query into the calculations. Called from any thread
+     *
+     * @param millis - How long the fold took on the calling thread
+     */
+    public void addFold(long millis) {
+        this.foldMillis.addAndGet(millis);
+    }
+
+    /**
+     * Finish counting the cost and keep it to be saved at the end of the run
+     *
+     * @param dataCount - How many metric calculations the parameter produced
+     */
+    public void finish(long dataCount) {
+
+        this.dataCount = dataCount;
+        synchronized (runCosts) {
+            runCosts.add(this);
+        }
+    }
+
+    public long getFoldMillis() {
+        return this.foldMillis.get();
+    }
+
+    /**
+     * Forget the costs from the last run. Should be called at the start of each run
+     */
+    public static void startRun() {
+
+        synchronized (runCosts) {
+            runCosts.clear();
+            runStartTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Save the costs recorded in this run to the history table. Never fails the run as the history is only advice
+     */
+    public static void saveRun() {
+
+        if (!Configuration.getConfiguration("parameterCostHistory", "Y").equals("Y")) {
+            return;
+        }
+        ArrayList<ParameterCost> costs;
+        synchronized (runCosts) {
+            costs = new ArrayList<ParameterCost>(runCosts);
+        }
+        if (costs.isEmpty()) {
+            return;
+        }
+        try {
+            createTable();
+            ArrayList<String> queries = new ArrayList<String>();
+            StringBuilder values = new StringBuilder();
+            String runTime = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(runStartTime));
+            for (ParameterCost cost : costs) {
+                if (values.length() > 0) {
+                    values.append(", ");
+                }
+                values.append("(");
+                values.append(runStartTime + ", ");
+                values.append("'" + runTime + "', ");
+                values.append(cost.dashboardId + ", ");
+                values.append(cost.parameterId + ", ");
+                values.append(quote(cost.parameterName) + ", ");
+                values.append(quote(cost.questionType) + ", ");
+                values.append(cost.queryCount.get() + ", ");
+                values.append(cost.rowsScanned.get() + ", ");
+                values.append(cost.dbMillis.get() + ", ");
+                values.append(cost.getFoldMillis() + ", ");
+                values.append(cost.dataCount + ")");
+                if (values.length() > 500000) {
+                    queries.add(getInsertQuery(values.toString()));
+                    values = new StringBuilder();
+                }
+            }
+            if (values.length() > 0) {
+                queries.add(getInsertQuery(values.toString()));
+            }
+            DatabaseHelpers.executeUpdatesInTransaction(queries);
+        }
+        catch (SQLException e) {
+            Log.warn("parameterCost", "Failed to save the parameter costs: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Print the parameters that have cost the most over the last costReportDays
+     */
+    public static void printReport() throws SQLException {
+
+        int days = Integer.valueOf(Configuration.getConfiguration("costReportDays", "30"));
+        int size = Integer.valueOf(Configuration.getConfiguration("costReportSize", "20"));
+        createTable();
+        System.out.println("Most expensive metric parameters over the last " + days + " days");
+        System.out.println(String.format("%-10s %-12s %-40s %-12s %6s %14s %12s %12s %10s",
+                "Dashboard", "Parameter", "Name", "Type", "Runs", "Avg rows", "Avg DB ms", "Avg fold ms", "Avg datas"));
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getReportQuery(days, size));
+        while (resultSet.next()) {
+            System.out.println(String.format("%-10s %-12s %-40s %-12s %6d %14.0f %12.0f %12.0f %10.0f",
+                    resultSet.getString("dashboard_id"),
+                    resultSet.getString("parameter_id"),
+                    resultSet.getString("parameter_name"),
+                    resultSet.getString("question_type"),
+                    resultSet.getLong("runs"),
+                    resultSet.getDouble("avg_rows"),
+                    resultSet.getDouble("avg_db_millis"),
+                    resultSet.getDouble("avg_fold_millis"),
+                    resultSet.getDouble("avg_datas")
+            ));
+        }
+        resultSet.close();
+    }
+
+    private static String quote(String value) {
+
+        if (value == null) {
+            return "NULL";
+        }
+        return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+
+    private static void createTable() throws SQLException {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("CREATE TABLE IF NOT EXISTS ");
+        commandText.append(DatabaseHelpers.PARAMETER_COST_TABLE);
+        commandText.append(" (");
+        commandText.append("run_id BIGINT NOT NULL, ");
+        commandText.append("run_time DATETIME NOT NULL, ");
+        commandText.append("dashboard_id INT NOT NULL, ");
+        commandText.append("parameter_id INT NOT NULL, ");
+        commandText.append("parameter_name VARCHAR(255) NULL, ");
+        commandText.append("question_type VARCHAR(32) NULL, ");
+        commandText.append("query_count INT NOT NULL, ");
+        commandText.append("rows_scanned BIGINT NOT NULL, ");
+        commandText.append("db_millis BIGINT NOT NULL, ");
+        commandText.append("fold_millis BIGINT NOT NULL, ");
+        commandText.append("data_count INT NOT NULL, ");
+        commandText.append("PRIMARY KEY (run_id, dashboard_id, parameter_id), ");
+        commandText.append("KEY run_time (run_time)");
+        commandText.append(") ENGINE=InnoDB");
+        DatabaseHelpers.executeUpdateQuery(commandText.toString());
+    }
+
+    private static String getInsertQuery(String values) {
+
+        // A parameter calculated twice in a run, such as a retry after a deadline, keeps the last cost
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("INSERT INTO ");
+        commandText.append(DatabaseHelpers.PARAMETER_COST_TABLE);
+        commandText.append(" (run_id, run_time, dashboard_id, parameter_id, parameter_name, question_type, query_count, rows_scanned, db_millis, fold_millis, data_count) VALUES ");
+        commandText.append(values);
+        commandText.append(" ON DUPLICATE KEY UPDATE ");
+        commandText.append("query_count = VALUES(query_count), ");
+        commandText.append("rows_scanned = VALUES(rows_scanned), ");
+        commandText.append("db_millis = VALUES(db_millis), ");
+        commandText.append("fold_millis = VALUES(fold_millis), ");
+        commandText.append("data_count = VALUES(data_count)");
+        return commandText.toString();
+    }
+
+    private static String getReportQuery(int days, int size) {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("dashboard_id, ");
+        commandText.append("parameter_id, ");
+        commandText.append("MAX(parameter_name) AS parameter_name, ");
+        commandText.append("MAX(question_type) AS question_type, ");
+        commandText.append("COUNT(*) AS runs, ");
+        commandText.append("AVG(rows_scanned) AS avg_rows, ");
+        commandText.append("AVG(db_millis) AS avg_db_millis, ");
+        commandText.append("AVG(fold_millis) AS avg_fold_millis, ");
+        commandText.append("AVG(data_count) AS avg_datas ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.PARAMETER_COST_TABLE);
+        commandText.append(" WHERE ");
+        commandText.append("run_time > DATE_SUB(NOW(), INTERVAL " + days + " DAY) ");
+        commandText.append("GROUP BY dashboard_id, parameter_id ");
+        commandText.append("ORDER BY AVG(db_millis + fold_millis) DESC ");
+        commandText.append("LIMIT " + size);
+        return commandText.toString();
+    }
+}
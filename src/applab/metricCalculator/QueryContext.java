@@ -0,0 +1,79 @@
+package applab.metricCalculator;
+
+/**
+ * What the calculator was working on when it ran a query. Used to tie slow queries back to the dashboard and metric
+ * parameter that ran them.
+ * Per thread. Work handed to another thread should take the context with it in the same way as the deadline.
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class QueryContext {
+
+    private static ThreadLocal<QueryContext> current = new ThreadLocal<QueryContext>();
+
+    private Integer dashboardId;
+    private String parameterName;
+
+    // The cost of the metric parameter that the queries are counted against. Can be null
+    private ParameterCost cost;
+
+    public QueryContext(Integer dashboardId, String parameterName, ParameterCost cost) {
+        this.dashboardId = dashboardId;
+        this.parameterName = parameterName;
+        this.cost = cost;
+    }
+
+    public Integer getDashboardId() {
+        return this.dashboardId;
+    }
+
+    public String getParameterName() {
+        return this.parameterName;
+    }
+
+    public ParameterCost getCost() {
+        return this.cost;
+    }
+
+    public String toString() {
+        return "dashboard=" + this.dashboardId + " parameter=" + this.parameterName;
+    }
+
+    /**
+     * Get the context for this thread
+     *
+     * @return - The context or null if the thread is not working on a dashboard
+     */
+    public static QueryContext get() {
+        return current.get();
+    }
+
+    public static void set(QueryContext context) {
+
+        if (context == null) {
+            current.remove();
+            return;
+        }
+        current.set(context);
+    }
+
+    public static void setDashboard(Integer dashboardId) {
+        current.set(new QueryContext(dashboardId, null, null));
+    }
+
+    /**
+     * Record the metric parameter being worked on while keeping the dashboard
+     *
+     * @param parameterName - The name of the parameter
+     * @param cost          - The cost to add the queries for the parameter to. Can be null
+     */
+    public static void setParameter(String parameterName, ParameterCost cost) {
+
+        QueryContext context = current.get();
+        current.set(new QueryContext(context == null ? null : context.getDashboardId(), parameterName, cost));
+    }
+
+    public static void clear() {
+        current.remove();
+    }
+}
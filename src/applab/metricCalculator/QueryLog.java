@@ -0,0 +1,160 @@
+package applab.metricCalculator;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records how long each query takes. Every query is added to the run summary as soon as it has run so the latency
+ * percentiles can be reported for the run. Queries that take longer than the threshold are also written to the slow
+ * query log along with the dashboard and metric parameter that ran them. The rows read and the time spent reading them
+ * are added when the result set is closed.
+ *
+ * Config items used:
+ *     slowQueryMillis  - Queries that take at least this long to run are logged. Default 10000
+ *     slowQueryLog     - The file to write the slow queries to. Default slow-queries.log
+ *     slowQueryExplain - Y to add the EXPLAIN output for each slow query to the log. Default N
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class QueryLog {
+
+    // Queries that the DB is running now. Shown on the status page
+    private static AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Record that a query is about to be run. Must be followed by a call to executed or recordFailure
+     */
+    public static void started() {
+        inFlight.incrementAndGet();
+    }
+
+    public static int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Record a query that the DB has run
+     *
+     * @param query         - The query that was run
+     * @param executeMillis - How long the DB took to run the query
+     */
+    public static void executed(String query, long executeMillis) {
+
+        inFlight.decrementAndGet();
+        RunSummary.addQueryTiming(executeMillis);
+        if (executeMillis < getThreshold()) {
+            return;
+        }
+        QueryContext context = QueryContext.get();
+        StringBuilder entry = new StringBuilder();
+        entry.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+        entry.append(" executeMillis=" + executeMillis);
+        entry.append(" " + (context == null ? "dashboard=null parameter=null" : context.toString()));
+        entry.append("\n");
+        entry.append(query);
+        entry.append("\n");
+        if (Configuration.getConfiguration("slowQueryExplain", "N").equals("Y")) {
+            entry.append(explain(query));
+        }
+        write(entry.toString());
+    }
+
+    /**
+     * Record the reading of a query's result set once it has been closed
+     *
+     * @param context       - What the calculator was working on when the query was run. Can be null
+     * @param executeMillis - How long the DB took to run the query
+     * @param totalMillis   - How long from running the query to the result set being closed
+     * @param rows          - How many rows were read
+     * @param bytes         - Roughly how many bytes were read
+     */
+    public static void fetched(QueryContext context, long executeMillis, long totalMillis, long rows, long bytes) {
+
+        RunSummary.addQueryRead(rows, bytes);
+        Integer dashboardId = context == null ? null : context.getDashboardId();
+        RunMetrics.addTime("query", dashboardId, totalMillis / 1000.0);
+        RunMetrics.addCount("rows", dashboardId, rows);
+        if (context != null && context.getCost() != null) {
+            context.getCost().addQuery(executeMillis, rows);
+        }
+    }
+
+    /**
+     * Record a query that failed. Only logged if it had been running for longer than the threshold
+     */
+    public static void recordFailure(String query, long executeMillis, SQLException e) {
+
+        inFlight.decrementAndGet();
+        if (executeMillis < getThreshold()) {
+            return;
+        }
+        QueryContext context = QueryContext.get();
+        StringBuilder entry = new StringBuilder();
+        entry.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+        entry.append(" executeMillis=" + executeMillis);
+        entry.append(" failed=" + e.getMessage());
+        entry.append(" " + (context == null ? "dashboard=null parameter=null" : context.toString()));
+        entry.append("\n");
+        entry.append(query);
+        entry.append("\n");
+        write(entry.toString());
+    }
+
+    private static long getThreshold() {
+        return Long.valueOf(Configuration.getConfiguration("slowQueryMillis", "10000"));
+    }
+
+    private static String explain(String query) {
+
+        StringBuilder plan = new StringBuilder();
+        try {
+            ResultSet resultSet = DatabaseHelpers.explain(query);
+            try {
+                ResultSetMetaData metaData = resultSet.getMetaData();
+                while (resultSet.next()) {
+                    plan.append("    ");
+                    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                        plan.append(metaData.getColumnLabel(i) + "=" + resultSet.getString(i) + " ");
+                    }
+                    plan.append("\n");
+                }
+            }
+            finally {
+                resultSet.close();
+            }
+        }
+        catch (SQLException e) {
+            plan.append("    EXPLAIN failed: " + e.getMessage() + "\n");
+        }
+        return plan.toString();
+    }
+
+    private static synchronized void write(String entry) {
+
+        String fileName = Configuration.getConfiguration("slowQueryLog", "slow-queries.log");
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(fileName, true);
+            writer.write(entry);
+        }
+        catch (IOException e) {
+            Log.warn("slowQueryLog", "Failed to write to the slow query log " + fileName + ": " + e.getMessage());
+        }
+        finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                }
+                catch (IOException e) {
+                    // Nothing more can be done
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package applab.metricCalculator;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * Checks at start up that the DB has the indexes that the generated queries need.
+ *
+ * Two checks are made:
+ *     The tables are checked for the composite indexes that the generated queries filter and join on
+ *     A sample of the generated queries are run through EXPLAIN and any full scan of a large table is flagged
+ * The plans and anything that is flagged are added to the run summary. The DDL to create any missing indexes can also be
+ * written out to a file so it can be checked and run by hand. The calculator never changes the indexes itself.
+ *
+ * Config items used:
+ *     queryPlanCheck        - Y to run the check once when the process starts. Default Y
+ *     queryPlanDdlFile      - File to write the DDL for missing indexes to. Default none
+ *     queryPlanScanRowLimit - A full scan that EXPLAIN thinks will read more rows than this is flagged. Default 1000
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class QueryPlanCheck {
+
+    // Set once the check has run so it is only done once for a long running process
+    private static Boolean checked = false;
+
+    /**
+     * Run the check if it is turned on and has not been run yet. Never fails the run as the check is only advice
+     */
+    public static synchronized void runOnce() {
+
+        if (checked || !Configuration.getConfiguration("queryPlanCheck", "Y").equals("Y")) {
+            return;
+        }
+        checked = true;
+        try {
+            ArrayList<String> ddl = checkIndexes();
+            explainQueries();
+            writeDdl(ddl);
+        }
+        catch (Exception e) {
+            Log.warn("queryPlanCheck", "Query plan check failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Check each table has the indexes the generated queries need
+     *
+     * @return - The DDL to create the missing indexes
+     */
+    private static ArrayList<String> checkIndexes() throws SQLException {
+
+        ArrayList<String> ddl = new ArrayList<String>();
+        for (String[] index : getRequiredIndexes()) {
+            String table = index[0];
+            String name = index[1];
+            String columns = index[2];
+            if (!hasIndex(table, columns.split(", "))) {
+                RunSummary.addQueryPlanWarning("Missing index on " + table + " (" + columns + ")");
+                ddl.add("CREATE INDEX " + name + " ON " + table + " (" + columns + ");");
+            }
+        }
+        return ddl;
+    }
+
+    /**
+     * The indexes that the generated queries rely on. Each is the table, a name for the index and the columns in order
+     */
+    private static ArrayList<String[]> getRequiredIndexes() {
+
+        ArrayList<String[]> indexes = new ArrayList<String[]>();
+        indexes.add(new String[] { DatabaseHelpers.SUBMISSION_TABLE, "idx_survey_submit_time", "survey_id, handset_submit_time" });
+        indexes.add(new String[] { DatabaseHelpers.SUBMISSION_ANSWERS_TABLE, "idx_submission_question", "submission_id, question_name" });
+        indexes.add(new String[] { DatabaseHelpers.METRIC_PARAMETER_TABLE, "idx_dashboard", "dashboard_id" });
+        indexes.add(new String[] { DatabaseHelpers.DASHBOARD_SURVEY_TABLE, "idx_dashboard_survey", "dashboard_id, survey_id" });
+        if (InterviewerDimension.isEnabled()) {
+            indexes.add(new String[] { DatabaseHelpers.SUBMISSION_TABLE, "idx_survey_interviewer", "survey_id, interviewer_id" });
+        }
+        return indexes;
+    }
+
+    /**
+     * Does a table have an index that starts with the given columns
+     */
+    private static Boolean hasIndex(String table, String[] columns) throws SQLException {
+
+        // Key name to the columns in the index in order
+        HashMap<String, ArrayList<String>> indexes = new HashMap<String, ArrayList<String>>();
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery("SHOW INDEX FROM " + table);
+        while (resultSet.next()) {
+            String keyName = resultSet.getString("Key_name");
+            if (!indexes.containsKey(keyName)) {
+                indexes.put(keyName, new ArrayList<String>());
+            }
+            ArrayList<String> indexColumns = indexes.get(keyName);
+            int position = resultSet.getInt("Seq_in_index");
+            while (indexColumns.size() < position) {
+                indexColumns.add(null);
+            }
+            indexColumns.set(position - 1, resultSet.getString("Column_name"));
+        }
+        resultSet.close();
+        for (ArrayList<String> indexColumns : indexes.values()) {
+            if (indexColumns.size() < columns.length) {
+                continue;
+            }
+            Boolean matches = true;
+            for (int i = 0; i < columns.length; i++) {
+                if (!columns[i].equalsIgnoreCase(indexColumns.get(i))) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * EXPLAIN a sample of the generated queries and add the plans to the run summary
+     */
+    private static void explainQueries() throws SQLException {
+
+        long scanRowLimit = Long.valueOf(Configuration.getConfiguration("queryPlanScanRowLimit", "1000"));
+        for (Entry<String, String> entry : getSampleQueries().entrySet()) {
+            StringBuilder plan = new StringBuilder();
+            ResultSet resultSet = DatabaseHelpers.executeSelectQuery("EXPLAIN " + entry.getValue());
+            ResultSetMetaData metaData = resultSet.getMetaData();
+            while (resultSet.next()) {
+                for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                    plan.append(metaData.getColumnLabel(i) + "=" + resultSet.getString(i) + " ");
+                }
+                plan.append("\n");
+                if ("ALL".equals(resultSet.getString("type")) && resultSet.getLong("rows") > scanRowLimit) {
+                    RunSummary.addQueryPlanWarning(entry.getKey() + " does a full scan of " + resultSet.getString("table") + " reading about " + resultSet.getLong("rows") + " rows");
+                }
+            }
+            resultSet.close();
+            RunSummary.addQueryPlan(entry.getKey(), plan.toString());
+        }
+    }
+
+    /**
+     * Build one of each kind of query that the calculator runs. The metric queries are built for a sample of real
+     * metric parameters, one for each question type
+     *
+     * @return - The queries keyed by a description of each one
+     */
+    private static LinkedHashMap<String, String> getSampleQueries() throws SQLException {
+
+        LinkedHashMap<String, String> queries = new LinkedHashMap<String, String>();
+        ArrayList<String> questionTypes = new ArrayList<String>();
+        Integer dashboardId = null;
+        Boolean addedSurveyQueries = false;
+        Boolean addedOptionIndexQuery = false;
+        ResultSet resultSet = DatabaseHelpers.executeSelectQuery(getSampleParametersQuery());
+        while (resultSet.next()) {
+            if (dashboardId == null) {
+                dashboardId = resultSet.getInt("dashboard_id");
+            }
+            String questionType = resultSet.getString("question_type");
+
+            // Keep looking through the types already seen until there is a multi select that uses the answer_option table
+            Boolean seenType = questionTypes.contains(questionType);
+            if (questionType == null || (seenType && (addedOptionIndexQuery || !AnswerOptionIndex.isReady()))) {
+                continue;
+            }
+            MetricParameter parameter;
+            try {
+                parameter = new MetricParameter(
+                        resultSet.getString("name"),
+                        resultSet.getInt("survey_id"),
+                        resultSet.getString("binding"),
+                        resultSet.getString("question_type"),
+                        resultSet.getString("calculation_type"),
+                        resultSet.getString("select_options"),
+                        resultSet.getString("group_by_field"),
+                        resultSet.getInt("lickert"),
+                        resultSet.getString("only_answered_surveys"),
+                        resultSet.getString("is_repeat")
+                );
+            }
+            catch (RuntimeException e) {
+
+                // The question or calculation type is not one the calculator knows so it would never be run anyway
+                continue;
+            }
+            String name = "MetricParameter " + parameter.getQuestionType() + " (" + parameter.getMetricName() + ")";
+            if (!addedOptionIndexQuery && AnswerOptionIndex.isReady() && parameter.getQuestionType() == QuestionType.multiSelect && parameter.getLickert() == 0) {
+                addedOptionIndexQuery = true;
+                queries.put(name + " answer options", parameter.getOptionIndexQuery(null, null));
+            }
+            if (seenType) {
+                continue;
+            }
+            questionTypes.add(questionType);
+            queries.put(name + " answers", parameter.getQueryString());
+            queries.put(name + " submission range", parameter.getSubmissionRangeQuery());
+            if (InterviewerDimension.isEnabled() && !parameter.getIsRepeat().equals("Y")) {
+                queries.put(name + " by district", parameter.getDistrictQueryString());
+            }
+            if (AnswerRollup.isEnabled() && !parameter.getIsRepeat().equals("Y")) {
+                queries.put(name + " rollup", parameter.getRollupQueryString());
+            }
+            if (!addedSurveyQueries) {
+                addedSurveyQueries = true;
+                queries.put("InterviewerMap submission count", InterviewerMap.getSubmissionCountQuery(parameter.getSurveyId()));
+                queries.put("InterviewerMap distinct interviewers", InterviewerMap.getDistinctInterviewerNameQuery(String.valueOf(parameter.getSurveyId())));
+            }
+        }
+        resultSet.close();
+        if (dashboardId != null) {
+            queries.put("DatabaseHelpers metric parameters", DatabaseHelpers.getMetricParametersQueryString(dashboardId, true));
+        }
+        return queries;
+    }
+
+    private static String getSampleParametersQuery() {
+
+        StringBuilder commandText = new StringBuilder();
+        commandText.append("SELECT ");
+        commandText.append("* ");
+        commandText.append("FROM ");
+        commandText.append(DatabaseHelpers.METRIC_PARAMETER_TABLE);
+        commandText.append(" WHERE ");
+        commandText.append("binding IS NOT NULL ");
+        commandText.append("AND survey_id IS NOT NULL ");
+        commandText.append("AND active = 'Y' ");
+        commandText.append("ORDER BY id DESC ");
+        commandText.append("LIMIT 100");
+        return commandText.toString();
+    }
+
+    private static void writeDdl(ArrayList<String> ddl) {
+
+        String fileName = Configuration.getConfiguration("queryPlanDdlFile", "");
+        if (fileName.equals("") || ddl.isEmpty()) {
+            return;
+        }
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(fileName);
+            for (String statement : ddl) {
+                writer.write(statement + "\n");
+            }
+            Log.info("queryPlanCheck", "DDL for " + ddl.size() + " missing indexes written to " + fileName);
+        }
+        catch (IOException e) {
+            Log.warn("queryPlanCheck", "Failed to write the index DDL to " + fileName + ": " + e.getMessage());
+        }
+        finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                }
+                catch (IOException e) {
+                    // Nothing more can be done
+                }
+            }
+        }
+    }
+}
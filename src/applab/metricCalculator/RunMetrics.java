@@ -0,0 +1,357 @@
+package applab.metricCalculator;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.TreeMap;
+import java.util.Map.Entry;
+
+/**
+ * Counters and timers for each phase of a run, broken down by dashboard. Written out at the end of each run as a
+ * Prometheus text format file and a JSON report so runs can be compared with each other.
+ *
+ * The phases are:
+ *     parameterLoad    - Loading the metric parameters for a dashboard
+ *     roster           - Finding the interviewers and looking them up in Salesforce
+ *     metricScan       - Reading the answers for a metric parameter
+ *     submissionTotals - Counting the submissions for a survey
+ *     query            - Every query run against the DB
+ *     salesforceFetch  - Getting the existing metrics and metric datas from Salesforce
+ *     diff             - Working out which metric datas need updating
+ *     upload           - Upserting the metric datas to Salesforce
+ * Work that is not for a single dashboard is recorded against the dashboard "run".
+ *
+ * Singleton class that is reset at the start of each run.
+ *
+ * Config items used:
+ *     runMetricsPrometheusFile - Where to write the Prometheus text file. Default metric-calculator.prom
+ *     runMetricsJsonFile       - Where to write the JSON report. Default metric-calculator-run.json
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class RunMetrics {
+
+    // Upper bounds of the buckets for the phase timings in seconds
+    private static final double[] BUCKETS = { 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300, 900 };
+
+    private static RunMetrics singletonValue;
+
+    private long startTime;
+
+    // Timings for each phase and dashboard. Key is the phase then the dashboard
+    private TreeMap<String, TreeMap<String, Timer>> timers;
+
+    // Counters for each counter name and dashboard. Key is the counter then the dashboard
+    private TreeMap<String, TreeMap<String, Long>> counters;
+
+    public RunMetrics() {
+    }
+
+    public static synchronized void init() {
+
+        RunMetrics metrics = new RunMetrics();
+        metrics.startTime = System.currentTimeMillis();
+        metrics.timers = new TreeMap<String, TreeMap<String, Timer>>();
+        metrics.counters = new TreeMap<String, TreeMap<String, Long>>();
+        singletonValue = metrics;
+    }
+
+    private static RunMetrics get() {
+
+        if (singletonValue == null) {
+            init();
+        }
+        return singletonValue;
+    }
+
+    /**
+     * Start timing a phase
+     *
+     * @return - The start time to pass to stopTimer
+     */
+    public static long startTimer() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the time taken by a phase
+     *
+     * @param phase       - The phase
+     * @param dashboardId - The dashboard the work was for. Null for the dashboard the thread is working on
+     * @param start       - The time returned by startTimer
+     */
+    public static void stopTimer(String phase, Integer dashboardId, long start) {
+        addTime(phase, dashboardId, (System.nanoTime() - start) / 1000000000.0);
+    }
+
+    public static synchronized void addTime(String phase, Integer dashboardId, double seconds) {
+
+        RunMetrics metrics = get();
+        if (!metrics.timers.containsKey(phase)) {
+            metrics.timers.put(phase, new TreeMap<String, Timer>());
+        }
+        String dashboard = getDashboardLabel(dashboardId);
+        Timer timer = metrics.timers.get(phase).get(dashboard);
+        if (timer == null) {
+            timer = new Timer();
+            metrics.timers.get(phase).put(dashboard, timer);
+        }
+        timer.add(seconds);
+    }
+
+    /**
+     * Add to a counter
+     *
+     * @param counter     - The name of the counter
+     * @param dashboardId - The dashboard the count is for. Null for the dashboard the thread is working on
+     * @param amount      - How much to add
+     */
+    public static synchronized void addCount(String counter, Integer dashboardId, long amount) {
+
+        RunMetrics metrics = get();
+        if (!metrics.counters.containsKey(counter)) {
+            metrics.counters.put(counter, new TreeMap<String, Long>());
+        }
+        String dashboard = getDashboardLabel(dashboardId);
+        Long total = metrics.counters.get(counter).get(dashboard);
+        metrics.counters.get(counter).put(dashboard, (total == null ? 0 : total) + amount);
+    }
+
+    private static String getDashboardLabel(Integer dashboardId) {
+
+        if (dashboardId == null) {
+            QueryContext context = QueryContext.get();
+            if (context != null) {
+                dashboardId = context.getDashboardId();
+            }
+        }
+        return dashboardId == null ? "run" : String.valueOf(dashboardId);
+    }
+
+    /**
+     * Write the metrics for the run out to the Prometheus and JSON files
+     */
+    public static synchronized void write() {
+
+        RunMetrics metrics = get();
+        writeFile(Configuration.getConfiguration("runMetricsPrometheusFile", "metric-calculator.prom"), metrics.toPrometheus());
+        writeFile(Configuration.getConfiguration("runMetricsJsonFile", "metric-calculator-run.json"), metrics.toJson());
+    }
+
+    private double getRunSeconds() {
+        return (System.currentTimeMillis() - this.startTime) / 1000.0;
+    }
+
+    private long getCounterTotal(String counter) {
+
+        long total = 0;
+        if (this.counters.containsKey(counter)) {
+            for (Long value : this.counters.get(counter).values()) {
+                total += value;
+            }
+        }
+        return total;
+    }
+
+    private double getRate(String counter) {
+
+        double seconds = getRunSeconds();
+        return seconds <= 0 ? 0 : getCounterTotal(counter) / seconds;
+    }
+
+    private String toPrometheus() {
+
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP metric_calculator_run_start_seconds When the run started\n");
+        text.append("# TYPE metric_calculator_run_start_seconds gauge\n");
+        text.append("metric_calculator_run_start_seconds " + (this.startTime / 1000) + "\n");
+        text.append("# HELP metric_calculator_run_seconds How long the run took\n");
+        text.append("# TYPE metric_calculator_run_seconds gauge\n");
+        text.append("metric_calculator_run_seconds " + getRunSeconds() + "\n");
+        text.append("# HELP metric_calculator_rows_per_second Rows read from the DB per second over the run\n");
+        text.append("# TYPE metric_calculator_rows_per_second gauge\n");
+        text.append("metric_calculator_rows_per_second " + getRate("rows") + "\n");
+        text.append("# HELP metric_calculator_upserts_per_second Metric datas upserted per second over the run\n");
+        text.append("# TYPE metric_calculator_upserts_per_second gauge\n");
+        text.append("metric_calculator_upserts_per_second " + getRate("upserts") + "\n");
+
+        text.append("# HELP metric_calculator_phase_seconds Time spent in each phase of the run\n");
+        text.append("# TYPE metric_calculator_phase_seconds histogram\n");
+        for (Entry<String, TreeMap<String, Timer>> phase : this.timers.entrySet()) {
+            for (Entry<String, Timer> dashboard : phase.getValue().entrySet()) {
+                String labels = "phase=\"" + phase.getKey() + "\",dashboard=\"" + dashboard.getKey() + "\"";
+                Timer timer = dashboard.getValue();
+                long cumulative = 0;
+                for (int i = 0; i < BUCKETS.length; i++) {
+                    cumulative += timer.buckets[i];
+                    text.append("metric_calculator_phase_seconds_bucket{" + labels + ",le=\"" + BUCKETS[i] + "\"} " + cumulative + "\n");
+                }
+                text.append("metric_calculator_phase_seconds_bucket{" + labels + ",le=\"+Inf\"} " + timer.count + "\n");
+                text.append("metric_calculator_phase_seconds_sum{" + labels + "} " + timer.total + "\n");
+                text.append("metric_calculator_phase_seconds_count{" + labels + "} " + timer.count + "\n");
+            }
+        }
+
+        text.append("# HELP metric_calculator_count_total Counts of the work done in the run\n");
+        text.append("# TYPE metric_calculator_count_total counter\n");
+        for (Entry<String, TreeMap<String, Long>> counter : this.counters.entrySet()) {
+            for (Entry<String, Long> dashboard : counter.getValue().entrySet()) {
+                text.append("metric_calculator_count_total{counter=\"" + counter.getKey() + "\",dashboard=\"" + dashboard.getKey() + "\"} " + dashboard.getValue() + "\n");
+            }
+        }
+        return text.toString();
+    }
+
+    private String toJson() {
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"startTime\": " + this.startTime + ",\n");
+        json.append("  \"runSeconds\": " + getRunSeconds() + ",\n");
+        json.append("  \"rowsPerSecond\": " + getRate("rows") + ",\n");
+        json.append("  \"upsertsPerSecond\": " + getRate("upserts") + ",\n");
+
+        // Totals for the whole run then the break down for each dashboard
+        json.append("  \"phases\": {");
+        ArrayList<String> entries = new ArrayList<String>();
+        for (Entry<String, TreeMap<String, Timer>> phase : this.timers.entrySet()) {
+            Timer total = new Timer();
+            for (Timer timer : phase.getValue().values()) {
+                total.merge(timer);
+            }
+            entries.add("\n    " + Utils.jsonString(phase.getKey()) + ": " + total.toJson());
+        }
+        json.append(join(entries));
+        json.append("\n  },\n");
+
+        json.append("  \"counters\": {");
+        entries = new ArrayList<String>();
+        for (String counter : this.counters.keySet()) {
+            entries.add("\n    " + Utils.jsonString(counter) + ": " + getCounterTotal(counter));
+        }
+        json.append(join(entries));
+        json.append("\n  },\n");
+
+        json.append("  \"dashboards\": {");
+        ArrayList<String> dashboards = new ArrayList<String>();
+        for (TreeMap<String, Timer> phase : this.timers.values()) {
+            for (String dashboard : phase.keySet()) {
+                if (!dashboards.contains(dashboard)) {
+                    dashboards.add(dashboard);
+                }
+            }
+        }
+        for (TreeMap<String, Long> counter : this.counters.values()) {
+            for (String dashboard : counter.keySet()) {
+                if (!dashboards.contains(dashboard)) {
+                    dashboards.add(dashboard);
+                }
+            }
+        }
+        Collections.sort(dashboards);
+        entries = new ArrayList<String>();
+        for (String dashboard : dashboards) {
+            ArrayList<String> values = new ArrayList<String>();
+            for (Entry<String, TreeMap<String, Timer>> phase : this.timers.entrySet()) {
+                Timer timer = phase.getValue().get(dashboard);
+                if (timer != null) {
+                    values.add(Utils.jsonString(phase.getKey()) + ": " + timer.toJson());
+                }
+            }
+            for (Entry<String, TreeMap<String, Long>> counter : this.counters.entrySet()) {
+                Long value = counter.getValue().get(dashboard);
+                if (value != null) {
+                    values.add(Utils.jsonString(counter.getKey()) + ": " + value);
+                }
+            }
+            entries.add("\n    " + Utils.jsonString(dashboard) + ": {" + join(values) + "}");
+        }
+        json.append(join(entries));
+        json.append("\n  }\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    private static String join(ArrayList<String> values) {
+
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < values.size(); i++) {
+            joined.append(values.get(i));
+            if (i < values.size() - 1) {
+                joined.append(", ");
+            }
+        }
+        return joined.toString();
+    }
+
+    private static void writeFile(String fileName, String contents) {
+
+        if (fileName.equals("")) {
+            return;
+        }
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(fileName);
+            writer.write(contents);
+        }
+        catch (IOException e) {
+            Log.warn("runMetrics", "Failed to write the run metrics to " + fileName + ": " + e.getMessage());
+        }
+        finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                }
+                catch (IOException e) {
+                    // Nothing more can be done
+                }
+            }
+        }
+    }
+
+    /**
+     * The timings for one phase of one dashboard
+     */
+    private static class Timer {
+
+        private long count;
+        private double total;
+        private double max;
+        private long[] buckets;
+
+        public Timer() {
+            this.count = 0;
+            this.total = 0.0;
+            this.max = 0.0;
+            this.buckets = new long[BUCKETS.length];
+        }
+
+        public void add(double seconds) {
+
+            this.count++;
+            this.total += seconds;
+            this.max = Math.max(this.max, seconds);
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    this.buckets[i]++;
+                    break;
+                }
+            }
+        }
+
+        public void merge(Timer other) {
+
+            this.count += other.count;
+            this.total += other.total;
+            this.max = Math.max(this.max, other.max);
+            for (int i = 0; i < BUCKETS.length; i++) {
+                this.buckets[i] += other.buckets[i];
+            }
+        }
+
+        public String toJson() {
+            return "{\"count\": " + this.count + ", \"seconds\": " + this.total + ", \"maxSeconds\": " + this.max + "}";
+        }
+    }
+}
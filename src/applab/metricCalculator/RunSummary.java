@@ -0,0 +1,206 @@
+package applab.metricCalculator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * Collects what happened to each dashboard during a run so it can be printed at the end.
+ * Singleton class that is reset at the start of each run.
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class RunSummary {
+
+    private static RunSummary singletonValue;
+
+    private long startTime;
+
+    // Dashboards that were calculated and had metrics to upload
+    private ArrayList<Integer> calculated;
+
+    // Dashboards that were skipped as nothing had changed
+    private ArrayList<Integer> skipped;
+
+    // Dashboards that ran out of time and will be tried again
+    private ArrayList<Integer> deferred;
+
+    private int uploadedDatas;
+    private int failedDatas;
+
+    // Datas that are waiting in the outbox to be sent in a later run
+    private int pendingDatas;
+
+    // Datas that Salesforce would not take and were written to the dead letter report
+    private int deadLetteredDatas;
+
+    // The EXPLAIN output for the sample queries checked at start up. Key is a description of the query
+    private LinkedHashMap<String, String> queryPlans;
+
+    // Missing indexes and full table scans found by the query plan check
+    private ArrayList<String> queryPlanWarnings;
+
+    // How long each query took to run in millis along with the rows and bytes read
+    private ArrayList<Long> queryTimes;
+    private long queryRows;
+    private long queryBytes;
+
+    public RunSummary() {
+    }
+
+    public static synchronized void init() {
+
+        RunSummary summary = new RunSummary();
+        summary.startTime = System.currentTimeMillis();
+        summary.calculated = new ArrayList<Integer>();
+        summary.skipped = new ArrayList<Integer>();
+        summary.deferred = new ArrayList<Integer>();
+        summary.uploadedDatas = 0;
+        summary.failedDatas = 0;
+        summary.pendingDatas = 0;
+        summary.deadLetteredDatas = 0;
+        summary.queryPlans = new LinkedHashMap<String, String>();
+        summary.queryPlanWarnings = new ArrayList<String>();
+        summary.queryTimes = new ArrayList<Long>();
+        summary.queryRows = 0;
+        summary.queryBytes = 0;
+        singletonValue = summary;
+    }
+
+    private static RunSummary get() {
+
+        if (singletonValue == null) {
+            init();
+        }
+        return singletonValue;
+    }
+
+    public static synchronized void addCalculated(Integer dashboardId) {
+        get().calculated.add(dashboardId);
+    }
+
+    public static synchronized void addSkipped(Integer dashboardId) {
+        get().skipped.add(dashboardId);
+    }
+
+    /**
+     * Record a dashboard as deferred. A dashboard that is deferred and then calculated on a retry is taken off the list
+     */
+    public static synchronized void addDeferred(Integer dashboardId) {
+
+        if (!get().deferred.contains(dashboardId)) {
+            get().deferred.add(dashboardId);
+        }
+    }
+
+    public static synchronized void removeDeferred(Integer dashboardId) {
+        get().deferred.remove(dashboardId);
+    }
+
+    public static synchronized void addUploadResult(int uploaded, int pending, int failed) {
+        get().uploadedDatas += uploaded;
+        get().pendingDatas += pending;
+        get().failedDatas += failed;
+    }
+
+    public static synchronized void addDeadLettered(int count) {
+        get().deadLetteredDatas += count;
+    }
+
+    public static synchronized void addQueryPlan(String query, String plan) {
+        get().queryPlans.put(query, plan);
+    }
+
+    public static synchronized void addQueryPlanWarning(String warning) {
+        get().queryPlanWarnings.add(warning);
+    }
+
+    public static synchronized void addQueryTiming(long millis) {
+        get().queryTimes.add(millis);
+    }
+
+    public static synchronized void addQueryRead(long rows, long bytes) {
+        get().queryRows += rows;
+        get().queryBytes += bytes;
+    }
+
+    public static synchronized long getStartTime() {
+        return get().startTime;
+    }
+
+    public static synchronized int getCalculatedCount() {
+        return get().calculated.size();
+    }
+
+    public static synchronized int getSkippedCount() {
+        return get().skipped.size();
+    }
+
+    public static synchronized int getDeferredCount() {
+        return get().deferred.size();
+    }
+
+    public static synchronized int getUploadedDatas() {
+        return get().uploadedDatas;
+    }
+
+    public static synchronized int getFailedDatas() {
+        return get().failedDatas;
+    }
+
+    public static synchronized int getPendingDatas() {
+        return get().pendingDatas;
+    }
+
+    public static synchronized int getDeadLetteredDatas() {
+        return get().deadLetteredDatas;
+    }
+
+    /**
+     * Get a percentile of the query times for the run
+     *
+     * @param percentile - The percentile between 0 and 100
+     *
+     * @return - The time in millis
+     */
+    private long getQueryTimePercentile(ArrayList<Long> sortedTimes, double percentile) {
+
+        if (sortedTimes.isEmpty()) {
+            return 0;
+        }
+        int index = (int)Math.ceil(percentile / 100.0 * sortedTimes.size()) - 1;
+        return sortedTimes.get(Math.max(0, Math.min(index, sortedTimes.size() - 1)));
+    }
+
+    /**
+     * Print the summary to the console
+     */
+    public static synchronized void print() {
+
+        RunSummary summary = get();
+        System.out.println("Run summary");
+        System.out.println("Time taken (seconds)  : " + ((System.currentTimeMillis() - summary.startTime) / 1000));
+        System.out.println("Dashboards calculated : " + summary.calculated.size() + " " + summary.calculated);
+        System.out.println("Dashboards skipped    : " + summary.skipped.size() + " " + summary.skipped);
+        System.out.println("Dashboards deferred   : " + summary.deferred.size() + " " + summary.deferred);
+        System.out.println("Metric datas uploaded : " + summary.uploadedDatas);
+        System.out.println("Metric datas pending  : " + summary.pendingDatas);
+        System.out.println("Metric datas failed   : " + summary.failedDatas);
+        System.out.println("Dead lettered         : " + summary.deadLetteredDatas);
+        ArrayList<Long> sortedTimes = new ArrayList<Long>(summary.queryTimes);
+        Collections.sort(sortedTimes);
+        System.out.println("Queries run           : " + sortedTimes.size() + " reading " + summary.queryRows + " rows and about " + summary.queryBytes + " bytes");
+        System.out.println("Query millis p50/p95/p99 : "
+                + summary.getQueryTimePercentile(sortedTimes, 50) + "/"
+                + summary.getQueryTimePercentile(sortedTimes, 95) + "/"
+                + summary.getQueryTimePercentile(sortedTimes, 99));
+        for (String warning : summary.queryPlanWarnings) {
+            System.out.println("Query plan warning    : " + warning);
+        }
+        for (Entry<String, String> entry : summary.queryPlans.entrySet()) {
+            System.out.println("Query plan for " + entry.getKey() + ":");
+            System.out.print(entry.getValue());
+        }
+    }
+}
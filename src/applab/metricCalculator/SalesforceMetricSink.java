@@ -0,0 +1,262 @@
+package applab.metricCalculator;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+
+import javax.xml.rpc.ServiceException;
+
+import com.sforce.soap.enterprise.sobject.M_E_Metric_Data__c;
+
+/**
+ * Upserts the metric datas to Salesforce. This is the sink used by a normal run.
+ *
+ * The datas go through a MetricOutbox so they are kept on disk until Salesforce has taken them. Anything left in the
+ * outbox by an earlier run is sent when the sink is opened, before any dashboard is diffed against Salesforce. Datas that
+ * fail with a transient error are sent again, up to five attempts in all. The wait before each retry doubles, starting
+ * at uploadRetrySeconds. Batches wait in the outbox while later dashboards are uploaded. At the end of the run the sink
+ * waits for any retries that are still due. Datas that fail with a permanent error, or run out of attempts, are written
+ * to the DeadLetterReport and not sent again (see UpsertFailure for which errors are which). If Salesforce cannot be reached the upload circuit breaker opens and the datas
+ * are left in the outbox while the run carries on calculating. They go up at the end of the run if Salesforce is back by
+ * then, otherwise in the next run or when the calculator is run with replay.
+ *
+ * Config items used:
+ *     uploadBreakerFailures - How many uploads in a row can fail to reach Salesforce before uploads are paused. Default 3
+ *     uploadBreakerSeconds  - How long uploads are paused for. Default 300
+ *     uploadRetrySeconds    - How long to wait before the first retry of datas that failed with a transient error. Default 2
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class SalesforceMetricSink implements MetricSink {
+
+    // Salesforce only allows objects to be pushed up in batches of 200
+    private static final int BATCH_SIZE = 200;
+
+    // How many times a batch is sent before the datas that keep failing with transient errors are given up on
+    private static final int MAX_ATTEMPTS = 5;
+
+    // Kept across runs so a daemon does not go straight back to a Salesforce that was down at the end of the last run
+    private static final CircuitBreaker breaker = new CircuitBreaker("Salesforce upload", "uploadBreakerFailures", "uploadBreakerSeconds");
+
+    // The outbox that is open in this process. Read by the status page
+    private static volatile MetricOutbox openOutbox;
+
+    private MetricOutbox outbox;
+
+    // Datas that have been given up on, by the upload they came from
+    private IdentityHashMap<DashboardUpload, ArrayList<M_E_Metric_Data__c>> givenUp;
+
+    // When each requeued batch can be sent again
+    private IdentityHashMap<MetricOutbox.Batch, Long> retryTimes;
+
+    public SalesforceMetricSink() {
+        this.givenUp = new IdentityHashMap<DashboardUpload, ArrayList<M_E_Metric_Data__c>>();
+        this.retryTimes = new IdentityHashMap<MetricOutbox.Batch, Long>();
+    }
+
+    /**
+     * Open the outbox and send anything an earlier run left in it
+     */
+    public void open() throws IOException {
+
+        getOutbox();
+        drain();
+    }
+
+    /**
+     * Add the datas to the outbox and send everything in it
+     *
+     * @return - The datas from this upload that have been given up on
+     */
+    public ArrayList<M_E_Metric_Data__c> write(DashboardUpload upload) throws IOException {
+
+        getOutbox().add(upload, BATCH_SIZE);
+        drain();
+        if (this.givenUp.containsKey(upload)) {
+            return this.givenUp.remove(upload);
+        }
+        return new ArrayList<M_E_Metric_Data__c>();
+    }
+
+    /**
+     * @return - The datas from this upload that are still waiting in the outbox
+     */
+    public ArrayList<M_E_Metric_Data__c> getPending(DashboardUpload upload) {
+
+        ArrayList<M_E_Metric_Data__c> pending = new ArrayList<M_E_Metric_Data__c>();
+        if (this.outbox == null) {
+            return pending;
+        }
+        for (MetricOutbox.Batch batch : this.outbox.getPending()) {
+            if (batch.getUpload() == upload) {
+                pending.addAll(batch.getDatas());
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Send anything left in the outbox, waiting for retries that are not due yet, and close it
+     */
+    public void close() throws IOException {
+
+        if (this.outbox == null) {
+            return;
+        }
+        try {
+            drain();
+            while (!this.retryTimes.isEmpty() && breaker.getState() == CircuitBreaker.State.CLOSED) {
+                long wait = Collections.min(this.retryTimes.values()) - System.currentTimeMillis();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                drain();
+            }
+            int pendingCount = this.outbox.getPendingDataCount();
+            if (pendingCount > 0) {
+                Log.warn("outbox", pendingCount + " metric datas are waiting in the outbox. They will be sent in the next run or run replay");
+            }
+        }
+        finally {
+            this.outbox.close();
+            this.outbox = null;
+            openOutbox = null;
+            this.givenUp.clear();
+            this.retryTimes.clear();
+        }
+    }
+
+    /**
+     * @return - The state of the upload circuit breaker
+     */
+    public static CircuitBreaker.State getBreakerState() {
+        return breaker.getState();
+    }
+
+    /**
+     * @return - How many datas are waiting in the outbox. 0 if it is not open
+     */
+    public static int getOutboxPendingCount() {
+
+        MetricOutbox current = openOutbox;
+        return current == null ? 0 : current.getPendingDataCount();
+    }
+
+    /**
+     * Open the outbox the first time it is needed. Picks up what an earlier run left behind
+     */
+    private MetricOutbox getOutbox() throws IOException {
+
+        if (this.outbox == null) {
+            MetricOutbox opened = new MetricOutbox();
+            try {
+                opened.open();
+            }
+            catch (IOException e) {
+                opened.close();
+                throw e;
+            }
+            this.outbox = opened;
+            openOutbox = opened;
+        }
+        return this.outbox;
+    }
+
+    /**
+     * Send each batch in the outbox once, unless the breaker is open. Batches waiting to be retried are left until they are due
+     */
+    private void drain() throws IOException {
+
+        for (MetricOutbox.Batch batch : getOutbox().getPending()) {
+            Long retryTime = this.retryTimes.get(batch);
+            if (retryTime != null && retryTime > System.currentTimeMillis()) {
+                continue;
+            }
+            if (!breaker.allowRequest()) {
+                return;
+            }
+            ArrayList<UpsertFailure> failures;
+            try {
+                failures = SalesforceProxy.saveDatasToSalesforce(batch.getDatas());
+            }
+            catch (RemoteException e) {
+                Log.error("uploadFailed", "Failed to upload " + batch.getDatas().size() + " metric datas for dashboard " + batch.getDashboardId() + ". Leaving them in the outbox", e);
+                breaker.recordFailure();
+                continue;
+            }
+            catch (ServiceException e) {
+                Log.error("uploadFailed", "Failed to upload " + batch.getDatas().size() + " metric datas for dashboard " + batch.getDashboardId() + ". Leaving them in the outbox", e);
+                breaker.recordFailure();
+                continue;
+            }
+            breaker.recordSuccess();
+            this.retryTimes.remove(batch);
+
+            // Permanent failures will never go up so there is no point sending them again
+            ArrayList<UpsertFailure> permanentFailures = new ArrayList<UpsertFailure>();
+            ArrayList<UpsertFailure> transientFailures = new ArrayList<UpsertFailure>();
+            for (UpsertFailure failure : failures) {
+                if (failure.isTransient()) {
+                    transientFailures.add(failure);
+                }
+                else {
+                    permanentFailures.add(failure);
+                }
+            }
+            DeadLetterReport.add(batch, permanentFailures, null);
+            addGivenUp(batch.getUpload(), permanentFailures);
+            if (transientFailures.isEmpty()) {
+                this.outbox.ack(batch);
+            }
+            else if (batch.getAttempts() + 1 >= MAX_ATTEMPTS) {
+                Log.warn("uploadFailed", "Giving up on " + transientFailures.size() + " metric datas for dashboard " + batch.getDashboardId() + " after " + MAX_ATTEMPTS + " attempts");
+                DeadLetterReport.add(batch, transientFailures, "(gave up after " + MAX_ATTEMPTS + " attempts)");
+                this.outbox.ack(batch);
+                addGivenUp(batch.getUpload(), transientFailures);
+            }
+            else {
+                ArrayList<M_E_Metric_Data__c> retryDatas = new ArrayList<M_E_Metric_Data__c>();
+                for (UpsertFailure failure : transientFailures) {
+                    retryDatas.add(failure.getData());
+                }
+                MetricOutbox.Batch retry = this.outbox.requeue(batch, retryDatas);
+                this.retryTimes.put(retry, System.currentTimeMillis() + getRetryMillis(retry.getAttempts()));
+            }
+        }
+    }
+
+    /**
+     * How long to wait before sending a batch again. Doubles with each attempt
+     *
+     * @param attempts - How many times the batch has been sent
+     *
+     * @return - The wait in millis
+     */
+    private static long getRetryMillis(int attempts) {
+
+        long firstWait = Long.valueOf(Configuration.getConfiguration("uploadRetrySeconds", "2")) * 1000;
+        return firstWait << Math.max(0, Math.min(attempts - 1, 10));
+    }
+
+    private void addGivenUp(DashboardUpload upload, ArrayList<UpsertFailure> failures) {
+
+        // Batches picked up from an earlier run do not belong to an upload in this run
+        if (upload == null) {
+            return;
+        }
+        if (!this.givenUp.containsKey(upload)) {
+            this.givenUp.put(upload, new ArrayList<M_E_Metric_Data__c>());
+        }
+        for (UpsertFailure failure : failures) {
+            this.givenUp.get(upload).add(failure.getData());
+        }
+    }
+}
@@ -24,9 +24,12 @@ import com.sforce.soap.enterprise.sobject.M_E_Metric_Data__c;
 
 public class SalesforceProxy {
 
-    private static SoapBindingStub binding;
+    private static volatile SoapBindingStub binding;
 
-    public static void initBinding() throws InvalidIdFault, UnexpectedErrorFault, LoginFault, RemoteException, ServiceException {
+    // When the current session was created. Sessions time out so long running processes need to log in again
+    private static long loginTime;
+
+    public static synchronized void initBinding() throws InvalidIdFault, UnexpectedErrorFault, LoginFault, RemoteException, ServiceException {
 
         SforceServiceLocator serviceLocator = new SforceServiceLocator();
         serviceLocator.setSoapEndpointAddress(Configuration.getConfiguration("salesforceAddress", ""));
@@ -43,43 +46,96 @@ public class SalesforceProxy {
                 loginResult.getSessionId());
         binding.setHeader(serviceLocator.getServiceName().getNamespaceURI(),
                 "SessionHeader", sessionHeader);
+        loginTime = System.currentTimeMillis();
     }
 
-    public static void getBinding() throws InvalidIdFault, UnexpectedErrorFault, LoginFault, RemoteException, ServiceException {
+    public static synchronized void getBinding() throws InvalidIdFault, UnexpectedErrorFault, LoginFault, RemoteException, ServiceException {
 
-        if (binding == null) {
+        long maxAge = Long.valueOf(Configuration.getConfiguration("salesforceSessionMinutes", "90")) * 60 * 1000;
+        if (binding == null || System.currentTimeMillis() - loginTime > maxAge) {
             initBinding();
         }
     }
 
+    /**
+     * Throw away the current session so the next call logs in again
+     */
+    public static synchronized void resetBinding() {
+        binding = null;
+    }
+
     public static QueryResult getSalesforceObjects(String query) throws RemoteException, ServiceException {
 
         getBinding();
-        return binding.query(query);
+        Trace.Span span = Trace.begin("SalesforceProxy.query");
+        try {
+            return binding.query(query);
+        }
+        finally {
+            Trace.end(span);
+        }
    }
 
     public static QueryResult getSalesforceObjectsMore(String queryLocator) throws RemoteException, ServiceException {
 
         getBinding();
-        return binding.queryMore(queryLocator);
+        Trace.Span span = Trace.begin("SalesforceProxy.queryMore");
+        try {
+            return binding.queryMore(queryLocator);
+        }
+        finally {
+            Trace.end(span);
+        }
    }
 
-    public static ArrayList<M_E_Metric_Data__c> saveDatasToSalesforce(ArrayList<M_E_Metric_Data__c> datas) throws RemoteException {
+    /**
+     * Upsert a batch of metric datas
+     *
+     * @param datas - The datas. No more than 200
+     *
+     * @return - The datas that failed along with the error for each
+     */
+    public static ArrayList<UpsertFailure> saveDatasToSalesforce(ArrayList<M_E_Metric_Data__c> datas) throws RemoteException, ServiceException {
 
-        ArrayList<M_E_Metric_Data__c> failedDatas = new ArrayList<M_E_Metric_Data__c>();
-        UpsertResult[] dataSaveResult = binding.upsert("ID", datas.toArray(new M_E_Metric_Data__c[0]));
+        getBinding();
+        ArrayList<UpsertFailure> failures = new ArrayList<UpsertFailure>();
+        UpsertResult[] dataSaveResult;
+        Trace.Span span = Trace.begin("SalesforceProxy.upsert");
+        try {
+            dataSaveResult = binding.upsert("ID", datas.toArray(new M_E_Metric_Data__c[0]));
+        }
+        finally {
+            Trace.end(span);
+        }
         for (int i = 0; i < dataSaveResult.length; i ++) {
             if (!dataSaveResult[i].isSuccess()) {
-                System.out.println(datas.get(i).getM_E_Metric__r().getName() + " has Failed because " + dataSaveResult[i].getErrors()[0].getMessage());
-                failedDatas.add(datas.get(i));
+
+                // Datas that already exist are sent with just their id so may not have the metric filled in
+                M_E_Metric_Data__c data = datas.get(i);
+                String name = data.getM_E_Metric__r() == null ? data.getId() : data.getM_E_Metric__r().getName();
+                String statusCode = null;
+                String reason = "no error given";
+                if (dataSaveResult[i].getErrors() != null && dataSaveResult[i].getErrors().length > 0) {
+                    com.sforce.soap.enterprise.Error error = dataSaveResult[i].getErrors()[0];
+                    statusCode = error.getStatusCode() == null ? null : error.getStatusCode().toString();
+                    reason = error.getMessage();
+                }
+                Log.warn("upsertFailed", name + " has Failed because " + statusCode + " " + reason);
+                failures.add(new UpsertFailure(data, statusCode, reason));
             }
         }
-        return failedDatas;
+        return failures;
     }
 
     public static void deleteRecords(ArrayList<String> ids) throws UnexpectedErrorFault, RemoteException, ServiceException {
 
         getBinding();
-        binding.delete(ids.toArray(new String[0]));
+        Trace.Span span = Trace.begin("SalesforceProxy.delete");
+        try {
+            binding.delete(ids.toArray(new String[0]));
+        }
+        finally {
+            Trace.end(span);
+        }
     }
 }
@@ -0,0 +1,155 @@
+package applab.metricCalculator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the status of the run in progress as JSON so a long run or a daemon can be watched while it works.
+ * Uses the HTTP server built in to the JDK and only listens on localhost.
+ *
+ * GET /status returns:
+ *     phase       - What the run is doing now e.g. roster, calculating, uploading, idle
+ *     dashboards  - The dashboard being calculated and how many are done, pending, skipped and deferred (ran out of time)
+ *     queries     - How many queries the DB is running right now. Settled as soon as each query returns, so it goes back
+ *                   to 0 between queries even if a result set is left open
+ *     caches      - Hit rates for the interviewer, roster, submission total, submission range, metric and fingerprint caches
+ *     pipeline    - How many dashboards are waiting to be diffed and uploaded
+ *     uploads     - How many metric datas have been uploaded, were left in the outbox for later (pending), have failed and were dead
+ *                   lettered, how many are waiting in the outbox now and
+ *                   whether the upload circuit breaker is closed, open or half_open
+ *
+ * Config items used:
+ *     statusPort - Port to serve the status on. The server is not started if this is 0. Default 0
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class StatusServer {
+
+    private static HttpServer server;
+
+    /**
+     * Start serving the status if a port has been set up
+     *
+     * @param calculator - The calculator to report on
+     */
+    public static synchronized void start(final MetricCalculator calculator) {
+
+        int port = Integer.valueOf(Configuration.getConfiguration("statusPort", "0"));
+        if (port == 0 || server != null) {
+            return;
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        }
+        catch (IOException e) {
+            Log.warn("statusServer", "Failed to start the status server on port " + port + ": " + e.getMessage());
+            return;
+        }
+        server.createContext("/status", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = getStatusJson(calculator).getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body);
+                }
+                finally {
+                    out.close();
+                }
+            }
+        });
+
+        // A daemon thread so the status server never keeps the JVM alive once the run is done
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "status");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        Log.info("statusServer", "Serving the run status on http://127.0.0.1:" + port + "/status");
+    }
+
+    public static synchronized void stop() {
+
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    /**
+     * Build the status of the calculator as JSON
+     *
+     * @param calculator - The calculator to report on
+     *
+     * @return - The JSON string
+     */
+    static String getStatusJson(MetricCalculator calculator) {
+
+        int requested = calculator.getDashboardsRequested();
+        int done = calculator.getDashboardsDone();
+        int skipped = RunSummary.getSkippedCount();
+        int deferred = RunSummary.getDeferredCount();
+        MetricPipeline pipeline = calculator.getPipeline();
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"phase\": " + Utils.jsonString(calculator.getPhase()) + ",\n");
+        json.append("  \"runStartTime\": " + RunSummary.getStartTime() + ",\n");
+        json.append("  \"runSeconds\": " + (System.currentTimeMillis() - RunSummary.getStartTime()) / 1000 + ",\n");
+        json.append("  \"dashboards\": {");
+        json.append("\"current\": " + calculator.getCurrentDashboardId());
+        json.append(", \"requested\": " + requested);
+        json.append(", \"done\": " + done);
+        json.append(", \"withMetrics\": " + RunSummary.getCalculatedCount());
+        json.append(", \"skipped\": " + skipped);
+        json.append(", \"deferred\": " + deferred);
+        json.append(", \"pending\": " + Math.max(0, requested - done - skipped - deferred));
+        json.append("},\n");
+        json.append("  \"queries\": {");
+        json.append("\"inFlight\": " + QueryLog.getInFlight());
+        json.append("},\n");
+        json.append("  \"caches\": {");
+        Boolean first = true;
+        for (Entry<String, CacheStats> entry : CacheStats.getAll().entrySet()) {
+            if (!first) {
+                json.append(", ");
+            }
+            first = false;
+            CacheStats stats = entry.getValue();
+            json.append("\n    " + Utils.jsonString(entry.getKey()) + ": {");
+            json.append("\"hits\": " + stats.getHits());
+            json.append(", \"misses\": " + stats.getMisses());
+            json.append(", \"hitRate\": " + stats.getHitRate());
+            json.append("}");
+        }
+        json.append("\n  },\n");
+        json.append("  \"pipeline\": {");
+        json.append("\"calculatedQueueDepth\": " + (pipeline == null ? 0 : pipeline.getCalculatedQueueDepth()));
+        json.append(", \"uploadQueueDepth\": " + (pipeline == null ? 0 : pipeline.getUploadQueueDepth()));
+        json.append("},\n");
+        json.append("  \"uploads\": {");
+        json.append("\"uploaded\": " + RunSummary.getUploadedDatas());
+        json.append(", \"pending\": " + RunSummary.getPendingDatas());
+        json.append(", \"failed\": " + RunSummary.getFailedDatas());
+        json.append(", \"deadLettered\": " + RunSummary.getDeadLetteredDatas());
+        json.append(", \"outboxPending\": " + SalesforceMetricSink.getOutboxPendingCount());
+        json.append(", \"breaker\": " + Utils.jsonString(SalesforceMetricSink.getBreakerState().toString().toLowerCase()));
+        json.append("}\n");
+        json.append("}\n");
+        return json.toString();
+    }
+}
@@ -0,0 +1,112 @@
+package applab.metricCalculator;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Wraps the result set for a query so the rows and bytes read from it can be counted. The rows read and the time taken
+ * to read them are recorded when the result set is closed. If the statement was created just for this query it is closed along with the
+ * result set, as the driver keeps every open statement on the connection until it is closed.
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class TimedResultSet implements InvocationHandler {
+
+    private ResultSet resultSet;
+
+    // The statement to close along with the result set. Null if the caller owns the statement
+    private Statement statement;
+    private String query;
+    private QueryContext context;
+    private long startTime;
+    private long executeMillis;
+    private long rows;
+    private long bytes;
+    private Boolean recorded;
+
+    private TimedResultSet(ResultSet resultSet, Statement statement, String query, long startTime) {
+        this.resultSet = resultSet;
+        this.statement = statement;
+        this.query = query;
+        this.context = QueryContext.get();
+        this.startTime = startTime;
+        this.executeMillis = System.currentTimeMillis() - startTime;
+        this.rows = 0;
+        this.bytes = 0;
+        this.recorded = false;
+    }
+
+    /**
+     * Wrap a result set
+     *
+     * @param resultSet - The result set returned by the driver
+     * @param statement - The statement to close when the result set is closed. Null if the caller closes it
+     * @param query     - The query that was run. Null if the query should not be timed
+     * @param startTime - When the query was started in millis
+     *
+     * @return - A result set that records the query timings when it is closed
+     */
+    public static ResultSet wrap(ResultSet resultSet, Statement statement, String query, long startTime) throws SQLException {
+
+        if (resultSet == null) {
+            if (statement != null) {
+                statement.close();
+            }
+            return null;
+        }
+        return (ResultSet)Proxy.newProxyInstance(
+                ResultSet.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class },
+                new TimedResultSet(resultSet, statement, query, startTime)
+        );
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+        String name = method.getName();
+        if (name.equals("close")) {
+            record();
+        }
+        Object value;
+        try {
+            value = method.invoke(this.resultSet, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+        finally {
+            if (name.equals("close") && this.statement != null) {
+                Statement owned = this.statement;
+                this.statement = null;
+                owned.close();
+            }
+        }
+        if (value instanceof Boolean && (Boolean)value && (name.equals("next") || name.equals("last") || name.equals("first") || name.equals("absolute") || name.equals("relative"))) {
+            this.rows = Math.max(this.rows, this.resultSet.getRow());
+        }
+        else if (value instanceof String) {
+            this.bytes += ((String)value).length();
+        }
+        else if (value instanceof byte[]) {
+            this.bytes += ((byte[])value).length;
+        }
+        else if (value instanceof Number && name.startsWith("get")) {
+            this.bytes += 8;
+        }
+        return value;
+    }
+
+    private void record() {
+
+        if (this.recorded || this.query == null) {
+            return;
+        }
+        this.recorded = true;
+        QueryLog.fetched(this.context, this.executeMillis, System.currentTimeMillis() - this.startTime, this.rows, this.bytes);
+    }
+}
@@ -0,0 +1,171 @@
+package applab.metricCalculator;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records spans around the hot paths of the calculator so a slow run shows which dashboard and metric was on the
+ * critical path. Each span carries the dashboard and metric parameter from the QueryContext of the thread that ran it.
+ * The spans for a run are written out at the end of the run in the Chrome trace event format, which can be opened in
+ * chrome://tracing or Perfetto.
+ *
+ * When tracing is off begin returns null and end does nothing, so the cost of leaving the spans in is one volatile read.
+ *
+ * Used like this:
+ *     Trace.Span span = Trace.begin("Dashboard.getMetricDatas");
+ *     try {
+ *         ...
+ *     }
+ *     finally {
+ *         Trace.end(span);
+ *     }
+ *
+ * Config items used:
+ *     traceFile      - File to write the spans for each run to. Tracing is off if not set. Default none
+ *     traceMaxEvents - Spans after this many in a run are dropped so a long run cannot use up the heap. Default 500000
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class Trace {
+
+    private static volatile Boolean enabled = false;
+    private static volatile long startNanos = System.nanoTime();
+    private static int maxEvents = 500000;
+    private static ConcurrentLinkedQueue<Span> spans = new ConcurrentLinkedQueue<Span>();
+    private static AtomicInteger spanCount = new AtomicInteger();
+    private static AtomicInteger droppedCount = new AtomicInteger();
+
+    /**
+     * Start recording the spans for a run. Throws away anything left from the last run
+     */
+    public static void startRun() {
+
+        spans.clear();
+        spanCount.set(0);
+        droppedCount.set(0);
+        startNanos = System.nanoTime();
+        maxEvents = Integer.valueOf(Configuration.getConfiguration("traceMaxEvents", "500000"));
+        enabled = !Configuration.getConfiguration("traceFile", "").equals("");
+    }
+
+    /**
+     * Start a span on this thread
+     *
+     * @param name - What is being done. Usually the class and method
+     *
+     * @return - The span to pass to end. Null if tracing is off
+     */
+    public static Span begin(String name) {
+
+        if (!enabled) {
+            return null;
+        }
+        return new Span(name, QueryContext.get());
+    }
+
+    /**
+     * Finish a span. Does nothing if the span is null
+     *
+     * @param span - The span returned by begin
+     */
+    public static void end(Span span) {
+
+        if (span == null) {
+            return;
+        }
+        span.endNanos = System.nanoTime();
+        if (spanCount.incrementAndGet() > maxEvents) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        spans.add(span);
+    }
+
+    /**
+     * Write the spans for the run out to the trace file
+     */
+    public static void write() {
+
+        if (!enabled) {
+            return;
+        }
+        String fileName = Configuration.getConfiguration("traceFile", "");
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(fileName);
+            writer.write("{\"traceEvents\": [\n");
+            Boolean first = true;
+            for (Span span : spans) {
+                if (!first) {
+                    writer.write(",\n");
+                }
+                first = false;
+                writer.write(span.toJson());
+            }
+            writer.write("\n],\n\"otherData\": {\"droppedSpans\": " + droppedCount.get() + "}}\n");
+            Log.info("trace", "Trace with " + Math.min(spanCount.get(), maxEvents) + " spans written to " + fileName);
+        }
+        catch (IOException e) {
+            Log.warn("trace", "Failed to write the trace to " + fileName + ": " + e.getMessage());
+        }
+        finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                }
+                catch (IOException e) {
+                    // Nothing more can be done
+                }
+            }
+        }
+        spans.clear();
+    }
+
+    /**
+     * One piece of work done on one thread
+     */
+    public static class Span {
+
+        private String name;
+        private String threadName;
+        private long threadId;
+        private Integer dashboardId;
+        private String parameterName;
+        private long beginNanos;
+        private long endNanos;
+
+        private Span(String name, QueryContext context) {
+            this.name = name;
+            this.threadName = Thread.currentThread().getName();
+            this.threadId = Thread.currentThread().getId();
+            if (context != null) {
+                this.dashboardId = context.getDashboardId();
+                this.parameterName = context.getParameterName();
+            }
+            this.beginNanos = System.nanoTime();
+        }
+
+        /**
+         * A complete event in the Chrome trace format. Times are in microseconds from the start of the run
+         */
+        private String toJson() {
+
+            StringBuilder json = new StringBuilder();
+            json.append("{\"name\": " + Utils.jsonString(this.name));
+            json.append(", \"cat\": \"calculator\"");
+            json.append(", \"ph\": \"X\"");
+            json.append(", \"ts\": " + (this.beginNanos - startNanos) / 1000);
+            json.append(", \"dur\": " + (this.endNanos - this.beginNanos) / 1000);
+            json.append(", \"pid\": 1");
+            json.append(", \"tid\": " + this.threadId);
+            json.append(", \"args\": {");
+            json.append("\"thread\": " + Utils.jsonString(this.threadName));
+            json.append(", \"dashboard\": " + this.dashboardId);
+            json.append(", \"metric\": " + Utils.jsonString(this.parameterName));
+            json.append("}}");
+            return json.toString();
+        }
+    }
+}
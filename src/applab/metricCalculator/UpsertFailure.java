@@ -0,0 +1,65 @@
+package applab.metricCalculator;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import com.sforce.soap.enterprise.sobject.M_E_Metric_Data__c;
+
+/**
+ * A metric data that Salesforce would not take along with why.
+ *
+ * Failures are transient if sending the data again could work e.g. the row was locked by another update. Everything
+ * else, such as a validation rule, a deleted metric or a bad id, is permanent and will fail however many times it is
+ * sent. A failure with no status code is treated as transient.
+ *
+ * Config items used:
+ *     transientUpsertErrors - Comma separated status codes that are worth retrying.
+ *                             Default UNABLE_TO_LOCK_ROW,REQUEST_RUNNING_TOO_LONG,TOO_MANY_APEX_REQUESTS,UNKNOWN_EXCEPTION
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class UpsertFailure {
+
+    private static final String DEFAULT_TRANSIENT_ERRORS = "UNABLE_TO_LOCK_ROW,REQUEST_RUNNING_TOO_LONG,TOO_MANY_APEX_REQUESTS,UNKNOWN_EXCEPTION";
+
+    private M_E_Metric_Data__c data;
+    private String statusCode;
+    private String message;
+
+    /**
+     * @param data       - The data that failed
+     * @param statusCode - The status code of the first error. Null if Salesforce did not give one
+     * @param message    - The message for the first error
+     */
+    public UpsertFailure(M_E_Metric_Data__c data, String statusCode, String message) {
+        this.data = data;
+        this.statusCode = statusCode;
+        this.message = message;
+    }
+
+    public M_E_Metric_Data__c getData() {
+        return this.data;
+    }
+
+    public String getStatusCode() {
+        return this.statusCode;
+    }
+
+    public String getMessage() {
+        return this.message;
+    }
+
+    /**
+     * Is the failure worth retrying
+     *
+     * @return - True if sending the data again could work
+     */
+    public Boolean isTransient() {
+
+        if (this.statusCode == null) {
+            return true;
+        }
+        String codes = Configuration.getConfiguration("transientUpsertErrors", DEFAULT_TRANSIENT_ERRORS);
+        return new HashSet<String>(Arrays.asList(codes.toUpperCase().replace(" ", "").split(","))).contains(this.statusCode.toUpperCase());
+    }
+}
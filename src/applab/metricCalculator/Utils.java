@@ -1,5 +1,8 @@
 package applab.metricCalculator;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
@@ -92,7 +95,7 @@ public class Utils {
             dateString += "00:00:00";
         }
         else {
-            dateString += "23:23:59";
+            dateString += "23:59:59";
         }
         if (forSoql) {
             dateString.replace(" ", "T");
@@ -101,6 +104,59 @@ public class Utils {
         return dateString;
     }
 
+    /**
+     * Create an MD5 hash of a string as hex. Used to create a short fingerprint of a large string
+     *
+     * @param value - The string to hash
+     *
+     * @return - The 32 character hex string
+     */
+    public static String md5Hex(String value) {
+
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Quote a string for use in JSON
+     *
+     * @param value - The string to quote. Can be null
+     *
+     * @return - The quoted and escaped string or null
+     */
+    public static String jsonString(String value) {
+
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder json = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int)c));
+            }
+            else {
+                json.append(c);
+            }
+        }
+        json.append("\"");
+        return json.toString();
+    }
+
     /**
      * Get the Date that starts the current quarter
      *
@@ -0,0 +1,78 @@
+package applab.metricCalculator;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the thread pools that are shared by all the dashboards in the process.
+ * Each kind of work has its own pool so that work waiting on work in another pool can never use up all the threads.
+ * The threads are daemon threads so they do not keep a one off run alive once it has finished.
+ *
+ * Config items used:
+ *     metricThreads - How many metric parameters can be calculated at once. Default 4
+ *     scanThreads   - How many ranges of a large metric can be scanned at once. Default 4
+ *
+ * Copyright (C) 2012 Grameen Foundation
+ */
+public class WorkerPools {
+
+    private static ExecutorService metricExecutor;
+    private static ExecutorService scanExecutor;
+
+    /**
+     * Get the pool that calculates metric parameters
+     *
+     * @return - The pool or null if metrics should be calculated one at a time
+     */
+    public static synchronized ExecutorService getMetricExecutor() {
+
+        if (metricExecutor == null) {
+            int threads = Integer.valueOf(Configuration.getConfiguration("metricThreads", "4"));
+            if (threads <= 1) {
+                return null;
+            }
+            metricExecutor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("metric"));
+        }
+        return metricExecutor;
+    }
+
+    /**
+     * Get the pool that scans ranges of submissions for large metrics
+     *
+     * @return - The pool or null if large metrics should be scanned in one go
+     */
+    public static synchronized ExecutorService getScanExecutor() {
+
+        if (scanExecutor == null) {
+            int threads = Integer.valueOf(Configuration.getConfiguration("scanThreads", "4"));
+            if (threads <= 1) {
+                return null;
+            }
+            scanExecutor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("scan"));
+        }
+        return scanExecutor;
+    }
+
+    /**
+     * Names the threads so they can be picked out in a thread dump
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private String name;
+        private AtomicInteger count;
+
+        public NamedThreadFactory(String name) {
+            this.name = name;
+            this.count = new AtomicInteger();
+        }
+
+        public Thread newThread(Runnable runnable) {
+
+            Thread thread = new Thread(runnable, this.name + "-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}